@@ -0,0 +1,526 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * An append-only log of the status changes and custom timer events of all
+ * monitors, for offline analysis. Install it with
+ * {@link ActivityMonitor#setEventLog(ActivityEventLog)} and read it back with
+ * {@link ActivityEventLogReader}.
+ *
+ * Events are written as fixed-width binary records into memory-mapped
+ * segment files in a directory. Appending claims a slot with a single atomic
+ * increment and writes the record straight into the mapped file; the
+ * operating system writes the pages to disk in the background. When a
+ * segment is full, the log rolls over to the next one, which has been mapped
+ * and paged in ahead of time on a background thread, where old segments are
+ * deleted as well. Only the most recent {@code maxSegments} segments are
+ * kept.
+ *
+ * Most appends thus neither lock nor do I/O of their own, but they are not
+ * free of either: the append that rolls over takes a lock, and maps the next
+ * segment itself if the background thread has not done so yet, the first
+ * event of a new timer name takes a lock, and a write to a page that the
+ * operating system has evicted stalls on a page fault.
+ *
+ * Each segment starts with a {@value #HEADER_SIZE} byte header (magic number,
+ * format version, record size, number of records), followed by records of
+ * {@value #RECORD_SIZE} bytes in little-endian byte order:
+ * <ul>
+ * <li>timestamp in server milliseconds since the epoch ({@code long}), 0 for
+ * an unused slot</li>
+ * <li>session code ({@code int}), the hash of the HTTP session ID</li>
+ * <li>UI ID ({@code int})</li>
+ * <li>event code ({@code int}), the {@link ClientStatus} ordinal for a
+ * status change or {@link #TIMER_EVENT} for a custom timer event</li>
+ * <li>timer ID ({@code int}), or -1 for a status change</li>
+ * </ul>
+ * Timer names are assigned IDs when they are first seen, and listed one per
+ * line in the {@value #TIMER_FILE} file of the directory, with line breaks
+ * replaced by spaces. The names are
+ * written on a background thread, so a reader may see the ID of a timer
+ * before its name.
+ *
+ * Events are appended in roughly, not exactly, chronological order. Events
+ * appended after the log is closed are dropped, as are events whose segment
+ * has already been rolled over twice when they are written, which only
+ * happens if the writing thread stalls for a whole segment; see
+ * {@link #getDroppedCount()}. The log survives a crash of the JVM, but not
+ * necessarily of the operating system.
+ *
+ * Defaults: segments of 64 MiB, 16 segments kept.
+ */
+public class ActivityEventLog implements Closeable {
+
+    private static final Logger logger = Logger
+            .getLogger(ActivityEventLog.class.getName());
+
+    /**
+     * Size of the segment header, in bytes
+     */
+    public static final int HEADER_SIZE = 16;
+
+    /**
+     * Size of a record, in bytes
+     */
+    public static final int RECORD_SIZE = 24;
+
+    /**
+     * Event code of a custom timer event
+     */
+    public static final int TIMER_EVENT = 255;
+
+    /**
+     * Name of the file listing the timer names
+     */
+    public static final String TIMER_FILE = "timers.txt";
+
+    static final int MAGIC = 0x414d4c47;
+    static final int VERSION = 1;
+    static final String SEGMENT_PREFIX = "activity-";
+    static final String SEGMENT_SUFFIX = ".log";
+    static final String PREPARED_SUFFIX = ".tmp";
+
+    private static final class Segment {
+        private final long index;
+        private final MappedByteBuffer buffer;
+        private volatile Segment previous;
+
+        private Segment(long index, MappedByteBuffer buffer,
+                Segment previous) {
+            this.index = index;
+            this.buffer = buffer;
+            this.previous = previous;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int recordsPerSegment;
+    private final int segmentShift;
+    private final int maxSegments;
+    private final Executor mapper;
+
+    private final long startSequence;
+    private final AtomicLong sequence;
+    private volatile Segment current;
+    private volatile boolean closed = false;
+    // Guarded by this
+    private Segment next;
+    // Guarded by this; number of segments being prepared
+    private int preparing = 0;
+
+    // Keyed by both the original and the written spelling of a name
+    private final Map<String, Integer> timerIds = new ConcurrentHashMap<>();
+    // Guarded by timerIds; the line of the next name in the timer file
+    private int nextTimerId;
+    // Guarded by timerIds; names not yet written, in ID order
+    private final List<String> pendingTimers = new ArrayList<>();
+    // Guarded by itself
+    private final BufferedWriter timerWriter;
+
+    private final LongAdder dropped = new LongAdder();
+
+    /**
+     * Open a log with segments of 64 MiB, keeping at most 16 segments.
+     *
+     * @param directory
+     *            directory of the segment files, created if needed
+     * @throws IOException
+     *             if the directory or the first segment cannot be created
+     */
+    public ActivityEventLog(Path directory) throws IOException {
+        this(directory, 64 << 20, 16);
+    }
+
+    /**
+     * Open a log. Appending continues in a new segment after the existing
+     * ones, if any.
+     *
+     * @param directory
+     *            directory of the segment files, created if needed
+     * @param segmentSize
+     *            maximum size of a segment file in bytes; rounded down so
+     *            that a segment holds a power of two records
+     * @param maxSegments
+     *            number of segments to keep
+     * @throws IOException
+     *             if the directory or the first segment cannot be created
+     */
+    public ActivityEventLog(Path directory, int segmentSize, int maxSegments)
+            throws IOException {
+        this.directory = directory;
+        // A power of two, so that appending does not need divisions
+        this.recordsPerSegment = Integer.highestOneBit(
+                Math.max((segmentSize - HEADER_SIZE) / RECORD_SIZE, 1));
+        this.segmentShift = Integer.numberOfTrailingZeros(recordsPerSegment);
+        this.segmentSize = HEADER_SIZE + recordsPerSegment * RECORD_SIZE;
+        this.maxSegments = Math.max(maxSegments, 1);
+        this.mapper = ListenerDispatcher.defaultExecutor();
+
+        Files.createDirectories(directory);
+        List<String> names = ActivityEventLogReader.readTimerNames(directory);
+        // IDs are line numbers; the first of any duplicate lines is used
+        for (int i = 0; i < names.size(); i++) {
+            timerIds.putIfAbsent(names.get(i), i);
+        }
+        nextTimerId = names.size();
+        timerWriter = Files.newBufferedWriter(
+                directory.resolve(TIMER_FILE), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+
+        // Left behind if the JVM stopped while preparing a segment
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+                directory, SEGMENT_PREFIX + "*" + PREPARED_SUFFIX)) {
+            for (Path path : stream) {
+                Files.deleteIfExists(path);
+            }
+        }
+        List<Path> segments = ActivityEventLogReader.listSegments(directory);
+        long first = segments.isEmpty() ? 0
+                : segmentIndex(segments.get(segments.size() - 1)) + 1;
+        startSequence = first * recordsPerSegment;
+        sequence = new AtomicLong(startSequence);
+        current = new Segment(first, map(segmentPath(first)), null);
+        prepareNext(first + 1);
+    }
+
+    /**
+     * Append a status change.
+     *
+     * @param timestamp
+     *            time of the change in milliseconds since the epoch
+     * @param session
+     *            session code
+     * @param ui
+     *            UI ID
+     * @param status
+     *            the new status
+     */
+    public void statusChanged(long timestamp, int session, int ui,
+            ClientStatus status) {
+        append(timestamp, session, ui, status.ordinal(), -1);
+    }
+
+    /**
+     * Append a custom timer event.
+     *
+     * @param timestamp
+     *            time of the event in milliseconds since the epoch
+     * @param session
+     *            session code
+     * @param ui
+     *            UI ID
+     * @param timerName
+     *            name of the timer
+     */
+    public void timerTriggered(long timestamp, int session, int ui,
+            String timerName) {
+        if (closed) {
+            dropped.increment();
+            return;
+        }
+        Integer id = timerIds.get(timerName);
+        if (id == null) {
+            id = registerTimer(timerName);
+        }
+        append(timestamp, session, ui, TIMER_EVENT, id);
+    }
+
+    private void append(long timestamp, int session, int ui, int code,
+            int timer) {
+        if (closed) {
+            dropped.increment();
+            return;
+        }
+        long seq = sequence.getAndIncrement();
+        long index = seq >>> segmentShift;
+        Segment segment = current;
+        if (segment.index < index) {
+            segment = roll(index);
+        }
+        while (segment != null && segment.index > index) {
+            segment = segment.previous;
+        }
+        if (segment == null) {
+            dropped.increment();
+            return;
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = HEADER_SIZE
+                + (int) (seq & (recordsPerSegment - 1)) * RECORD_SIZE;
+        buffer.putInt(offset + 8, session);
+        buffer.putInt(offset + 12, ui);
+        buffer.putInt(offset + 16, code);
+        buffer.putInt(offset + 20, timer);
+        // Written last; readers treat a zero timestamp as an unused slot
+        buffer.putLong(offset, Math.max(timestamp, 1));
+    }
+
+    private synchronized Segment roll(long index) {
+        Segment segment = current;
+        while (segment.index < index) {
+            if (closed) {
+                return null;
+            }
+            long nextIndex = segment.index + 1;
+            MappedByteBuffer buffer;
+            if (next != null && next.index == nextIndex) {
+                buffer = next.buffer;
+            } else {
+                try {
+                    buffer = map(segmentPath(nextIndex));
+                } catch (IOException e) {
+                    logger.log(Level.WARNING,
+                            "Cannot create activity log segment", e);
+                    return null;
+                }
+            }
+            next = null;
+            // Only writers that stalled during a whole segment need more
+            // than the previous one
+            segment.previous = null;
+            segment = new Segment(nextIndex, buffer, segment);
+            current = segment;
+            prepareNext(nextIndex + 1);
+        }
+        return segment;
+    }
+
+    private void prepareNext(long index) {
+        try {
+            mapper.execute(() -> prepare(index));
+        } catch (RejectedExecutionException e) {
+            // Mapped on demand instead
+            deleteOldSegments(index - 1);
+        }
+    }
+
+    private void prepare(long index) {
+        synchronized (this) {
+            if (closed || current.index >= index) {
+                return;
+            }
+            preparing++;
+        }
+        Path prepared = null;
+        try {
+            deleteOldSegments(index - 1);
+            // Mapped and paged in under another name, so that a roll-over
+            // does not need to wait for it and never shares its pages
+            prepared = directory.resolve(
+                    segmentPath(index).getFileName() + PREPARED_SUFFIX);
+            MappedByteBuffer buffer = map(prepared);
+            for (int i = 0; i < segmentSize; i += 4096) {
+                buffer.put(i, buffer.get(i));
+            }
+            synchronized (this) {
+                if (!closed && current.index < index) {
+                    Files.move(prepared, segmentPath(index),
+                            StandardCopyOption.ATOMIC_MOVE);
+                    prepared = null;
+                    next = new Segment(index, buffer, null);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot create activity log segment", e);
+        } finally {
+            try {
+                if (prepared != null) {
+                    Files.deleteIfExists(prepared);
+                }
+            } catch (IOException e) {
+                logger.log(Level.WARNING,
+                        "Cannot delete activity log segment", e);
+            }
+            synchronized (this) {
+                preparing--;
+                notifyAll();
+            }
+        }
+    }
+
+    private MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel
+                    .map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, RECORD_SIZE);
+            buffer.putInt(12, recordsPerSegment);
+            return buffer;
+        }
+    }
+
+    private void deleteOldSegments(long currentIndex) {
+        try {
+            for (Path path : ActivityEventLogReader.listSegments(directory)) {
+                if (segmentIndex(path) <= currentIndex - maxSegments) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Cannot delete activity log segment", e);
+        }
+    }
+
+    private Integer registerTimer(String timerName) {
+        Integer id;
+        synchronized (timerIds) {
+            id = timerIds.get(timerName);
+            if (id != null) {
+                return id;
+            }
+            // Line breaks would split the name over several lines of the
+            // timer file, which is read back line by line
+            String name = timerName.replace('\r', ' ').replace('\n', ' ');
+            id = timerIds.get(name);
+            boolean added = id == null;
+            if (added) {
+                id = nextTimerId++;
+                pendingTimers.add(name);
+                timerIds.put(name, id);
+            }
+            // Also under the original spelling, so it is found without the
+            // lock next time
+            timerIds.put(timerName, id);
+            if (!added) {
+                return id;
+            }
+        }
+        try {
+            mapper.execute(this::writeTimers);
+        } catch (RejectedExecutionException e) {
+            // Written on close instead
+        }
+        return id;
+    }
+
+    private void writeTimers() {
+        // Names are taken and written under the same lock to keep ID order
+        synchronized (timerWriter) {
+            List<String> names;
+            synchronized (timerIds) {
+                if (pendingTimers.isEmpty()) {
+                    return;
+                }
+                names = new ArrayList<>(pendingTimers);
+                pendingTimers.clear();
+            }
+            try {
+                for (String name : names) {
+                    timerWriter.write(name);
+                    timerWriter.newLine();
+                }
+                timerWriter.flush();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Cannot write activity log timer",
+                        e);
+            }
+        }
+    }
+
+    private Path segmentPath(long index) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX,
+                index, SEGMENT_SUFFIX));
+    }
+
+    static long segmentIndex(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Get the directory of the segment files.
+     *
+     * @return the directory
+     */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the number of events appended so far, including dropped ones.
+     *
+     * @return number of events
+     */
+    public long getAppendedCount() {
+        return sequence.get() - startSequence;
+    }
+
+    /**
+     * Get the number of events that could not be written.
+     *
+     * @return number of events
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Write all appended events to disk.
+     */
+    public void force() {
+        Segment segment = current;
+        while (segment != null) {
+            segment.buffer.force();
+            segment = segment.previous;
+        }
+    }
+
+    /**
+     * Write all appended events to disk and stop appending. Events appended
+     * after this call are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            while (preparing > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (next != null) {
+                next = null;
+                Files.deleteIfExists(segmentPath(current.index + 1));
+            }
+        }
+        force();
+        deleteOldSegments(current.index);
+        synchronized (timerWriter) {
+            writeTimers();
+            timerWriter.close();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * Reads the segments written by an {@link ActivityEventLog}, e.g. to replay
+ * them into an analytics system. Segments can be read while the log is still
+ * being written; events that have not been completely written yet are
+ * skipped.
+ *
+ * Can also be run from the command line to print the events of a directory
+ * as comma-separated values:
+ *
+ * <pre>
+ * java -cp activitymonitor.jar org.vaadin.addons.activitymonitor.ActivityEventLogReader &lt;directory&gt;
+ * </pre>
+ */
+public class ActivityEventLogReader {
+
+    private static final ClientStatus[] STATUSES = ClientStatus.values();
+
+    /**
+     * Receives the events of a log, in the order they were appended
+     */
+    public static interface EventVisitor {
+        /**
+         * Invoked for every event.
+         *
+         * @param timestamp
+         *            time of the event in milliseconds since the epoch
+         * @param session
+         *            session code
+         * @param ui
+         *            UI ID
+         * @param status
+         *            the new status, or null for a custom timer event
+         * @param timerName
+         *            name of the timer, or null for a status change
+         */
+        void event(long timestamp, int session, int ui, ClientStatus status,
+                String timerName);
+    }
+
+    private final Path directory;
+
+    /**
+     * Create a reader for the segments in a directory.
+     *
+     * @param directory
+     *            directory of the segment files
+     */
+    public ActivityEventLogReader(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Pass every event in the directory to a visitor, oldest segment first.
+     *
+     * @param visitor
+     *            the visitor
+     * @return number of events read
+     * @throws IOException
+     *             if a segment cannot be read or is not a segment of a
+     *             supported format
+     */
+    public long read(EventVisitor visitor) throws IOException {
+        List<String> timerNames = readTimerNames(directory);
+        long count = 0;
+        for (Path segment : listSegments(directory)) {
+            try {
+                count += read(segment, timerNames, visitor);
+            } catch (NoSuchFileException e) {
+                // Deleted by the writer since it was listed
+            }
+        }
+        return count;
+    }
+
+    private static long read(Path segment, List<String> timerNames,
+            EventVisitor visitor) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segment,
+                StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+        }
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.limit() < ActivityEventLog.HEADER_SIZE) {
+            // Created but not mapped yet
+            return 0;
+        }
+        checkHeader(segment, buffer);
+        long count = 0;
+        for (int offset = ActivityEventLog.HEADER_SIZE; offset
+                + ActivityEventLog.RECORD_SIZE <= buffer
+                        .limit(); offset += ActivityEventLog.RECORD_SIZE) {
+            long timestamp = buffer.getLong(offset);
+            if (timestamp == 0) {
+                continue;
+            }
+            int code = buffer.getInt(offset + 16);
+            ClientStatus status = null;
+            String timerName = null;
+            if (code == ActivityEventLog.TIMER_EVENT) {
+                int timer = buffer.getInt(offset + 20);
+                timerName = timer >= 0 && timer < timerNames.size()
+                        ? timerNames.get(timer)
+                        : "#" + timer;
+            } else if (code >= 0 && code < STATUSES.length) {
+                status = STATUSES[code];
+            } else {
+                continue;
+            }
+            visitor.event(timestamp, buffer.getInt(offset + 8),
+                    buffer.getInt(offset + 12), status, timerName);
+            count++;
+        }
+        return count;
+    }
+
+    private static void checkHeader(Path segment, ByteBuffer buffer)
+            throws IOException {
+        if (buffer.getInt(0) != ActivityEventLog.MAGIC) {
+            throw new IOException("Not an activity log segment: " + segment);
+        }
+        if (buffer.getInt(4) != ActivityEventLog.VERSION
+                || buffer.getInt(8) != ActivityEventLog.RECORD_SIZE) {
+            throw new IOException("Unsupported activity log version "
+                    + buffer.getInt(4) + ": " + segment);
+        }
+    }
+
+    /**
+     * Get the segment files of a log, oldest first.
+     *
+     * @param directory
+     *            directory of the segment files
+     * @return paths of the segments
+     * @throws IOException
+     *             if the directory cannot be listed
+     */
+    public static List<Path> listSegments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(
+                directory, ActivityEventLog.SEGMENT_PREFIX + "*"
+                        + ActivityEventLog.SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        // Indexes are zero-padded, so names sort in index order
+        Collections.sort(segments);
+        return segments;
+    }
+
+    static List<String> readTimerNames(Path directory) throws IOException {
+        Path file = directory.resolve(ActivityEventLog.TIMER_FILE);
+        if (!Files.exists(file)) {
+            return new ArrayList<>();
+        }
+        return Files.readAllLines(file, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Print the events of a log as comma-separated values: timestamp,
+     * session code, UI ID, and status or timer name.
+     *
+     * @param args
+     *            the directory of the log
+     * @throws IOException
+     *             if the log cannot be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java "
+                    + ActivityEventLogReader.class.getName() + " <directory>");
+            System.exit(1);
+        }
+        PrintStream out = System.out;
+        out.println("timestamp,session,ui,status,timer");
+        new ActivityEventLogReader(Paths.get(args[0]))
+                .read((timestamp, session, ui, status, timerName) -> out
+                        .println(timestamp + "," + session + "," + ui + ","
+                                + (status != null ? status.name() : "") + ","
+                                + (timerName != null ? csv(timerName)
+                                        : "")));
+    }
+
+    /**
+     * Quote a value for CSV output if it contains a separator, a quote or a
+     * line break, as in RFC 4180.
+     */
+    static String csv(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+                return '"' + value.replace("\"", "\"\"") + '"';
+            }
+        }
+        return value;
+    }
+}
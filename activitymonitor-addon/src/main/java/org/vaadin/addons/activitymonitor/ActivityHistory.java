@@ -0,0 +1,323 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * A fixed-size record of the most recent status changes and custom timer
+ * events of a single {@link ActivityMonitor}.
+ *
+ * Events are kept in a ring buffer of primitive arrays, one {@code long}
+ * timestamp and one {@code byte} code per event, so recording an event never
+ * allocates and a history of {@code n} events takes about {@code 9 * n} bytes.
+ * When the buffer is full, the oldest event is overwritten. Queries only cover
+ * the time since the oldest retained status change; see
+ * {@link #getStartTime()}.
+ *
+ * Up to 128 distinct custom timer names are recorded; events of further
+ * timers are ignored.
+ *
+ * All methods are safe to call from any thread.
+ */
+@SuppressWarnings("serial")
+public final class ActivityHistory implements Serializable {
+
+    private static final ClientStatus[] STATUSES = ClientStatus.values();
+    private static final int MAX_TIMERS = 128;
+
+    /**
+     * A recorded status change or custom timer event
+     */
+    public static final class Entry {
+        private final long timestamp;
+        private final ClientStatus status;
+        private final String timerName;
+
+        private Entry(long timestamp, ClientStatus status, String timerName) {
+            this.timestamp = timestamp;
+            this.status = status;
+            this.timerName = timerName;
+        }
+
+        /**
+         * Get the time of the event.
+         *
+         * @return time in server milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Get the new status.
+         *
+         * @return a {@link ClientStatus} value, or null for a custom timer
+         *         event
+         */
+        public ClientStatus getStatus() {
+            return status;
+        }
+
+        /**
+         * Get the name of the custom timer that fired.
+         *
+         * @return a timer name, or null for a status change
+         */
+        public String getTimerName() {
+            return timerName;
+        }
+
+        @Override
+        public String toString() {
+            return (status != null ? status.name() : timerName) + "@"
+                    + timestamp;
+        }
+    }
+
+    private final long[] timestamps;
+    // Status ordinal, or -1 - index of the timer name
+    private final byte[] codes;
+    // Rebuilt from the names on deserialization
+    private transient Map<String, Byte> timerCodes = new HashMap<>();
+    private final List<String> timerNames = new ArrayList<>();
+
+    private int head = 0;
+    private int size = 0;
+    private ClientStatus startStatus;
+    private long startTime;
+
+    ActivityHistory(int capacity, ClientStatus status, long time) {
+        timestamps = new long[Math.max(capacity, 1)];
+        codes = new byte[timestamps.length];
+        startStatus = status;
+        startTime = time;
+    }
+
+    synchronized void statusChanged(ClientStatus status, long timestamp) {
+        append((byte) status.ordinal(), timestamp);
+    }
+
+    synchronized void timerTriggered(String name, long timestamp) {
+        Byte code = timerCodes.get(name);
+        if (code == null) {
+            if (timerNames.size() >= MAX_TIMERS) {
+                return;
+            }
+            code = (byte) (-1 - timerNames.size());
+            timerCodes.put(name, code);
+            timerNames.add(name);
+        }
+        append(code, timestamp);
+    }
+
+    private void append(byte code, long timestamp) {
+        int index = (head + size) % timestamps.length;
+        if (size == timestamps.length) {
+            // Overwrite the oldest event; a status change there becomes the
+            // known starting point
+            if (codes[head] >= 0) {
+                startStatus = STATUSES[codes[head]];
+                startTime = timestamps[head];
+            }
+            head = (head + 1) % timestamps.length;
+        } else {
+            size++;
+        }
+        timestamps[index] = timestamp;
+        codes[index] = code;
+    }
+
+    /**
+     * Get the maximum number of events retained.
+     *
+     * @return number of events
+     */
+    public int getCapacity() {
+        return timestamps.length;
+    }
+
+    /**
+     * Get the number of events currently retained.
+     *
+     * @return number of events
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the time from which the status history is complete. This is the
+     * time the history was started, or the time of the last status change
+     * that has been overwritten.
+     *
+     * @return time in server milliseconds since the epoch
+     */
+    public synchronized long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Get the total time the client spent in the given status during the
+     * given period. The part of the period before {@link #getStartTime()} is
+     * not counted.
+     *
+     * @param status
+     *            a {@link ClientStatus} value
+     * @param from
+     *            start of the period, in server milliseconds since the epoch
+     * @param to
+     *            end of the period, in server milliseconds since the epoch
+     * @return time in milliseconds
+     */
+    public synchronized long getTimeInState(ClientStatus status, long from,
+            long to) {
+        long total = 0;
+        byte wanted = (byte) status.ordinal();
+        byte current = (byte) startStatus.ordinal();
+        long since = startTime;
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % timestamps.length;
+            if (codes[index] < 0) {
+                continue;
+            }
+            if (current == wanted) {
+                total += overlap(since, timestamps[index], from, to);
+            }
+            current = codes[index];
+            since = timestamps[index];
+        }
+        if (current == wanted) {
+            total += overlap(since, to, from, to);
+        }
+        return total;
+    }
+
+    /**
+     * Get the total time the client spent in the given status during the last
+     * {@code period} milliseconds.
+     *
+     * @param status
+     *            a {@link ClientStatus} value
+     * @param period
+     *            length of the period, in milliseconds
+     * @return time in milliseconds
+     */
+    public long getTimeInState(ClientStatus status, long period) {
+        long now = System.currentTimeMillis();
+        return getTimeInState(status, now - period, now);
+    }
+
+    private static long overlap(long start, long end, long from, long to) {
+        return Math.max(0, Math.min(end, to) - Math.max(start, from));
+    }
+
+    /**
+     * Get the number of times the client entered the given status during the
+     * given period.
+     *
+     * @param status
+     *            a {@link ClientStatus} value
+     * @param from
+     *            start of the period, in server milliseconds since the epoch
+     * @param to
+     *            end of the period, in server milliseconds since the epoch
+     * @return number of transitions to the status
+     */
+    public synchronized int getEpisodeCount(ClientStatus status, long from,
+            long to) {
+        return count((byte) status.ordinal(), from, to);
+    }
+
+    /**
+     * Get the number of times a custom timer fired during the given period.
+     *
+     * @param timerName
+     *            name of the timer
+     * @param from
+     *            start of the period, in server milliseconds since the epoch
+     * @param to
+     *            end of the period, in server milliseconds since the epoch
+     * @return number of timer events
+     */
+    public synchronized int getTimerCount(String timerName, long from,
+            long to) {
+        Byte code = timerCodes.get(timerName);
+        return code == null ? 0 : count(code, from, to);
+    }
+
+    private int count(byte code, long from, long to) {
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % timestamps.length;
+            if (codes[index] == code && timestamps[index] >= from
+                    && timestamps[index] < to) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the most recent status changes, oldest first.
+     *
+     * @param count
+     *            maximum number of status changes to return
+     * @return a new list of entries
+     */
+    public List<Entry> getLastTransitions(int count) {
+        return getLast(count, false);
+    }
+
+    /**
+     * Get the most recent events, status changes and custom timer events
+     * alike, oldest first.
+     *
+     * @param count
+     *            maximum number of events to return
+     * @return a new list of entries
+     */
+    public List<Entry> getLastEvents(int count) {
+        return getLast(count, true);
+    }
+
+    private synchronized List<Entry> getLast(int count,
+            boolean includeTimers) {
+        List<Entry> entries = new ArrayList<>(Math.min(count, size));
+        for (int i = size - 1; i >= 0 && entries.size() < count; i--) {
+            int index = (head + i) % timestamps.length;
+            byte code = codes[index];
+            if (code >= 0) {
+                entries.add(new Entry(timestamps[index], STATUSES[code],
+                        null));
+            } else if (includeTimers) {
+                entries.add(new Entry(timestamps[index], null,
+                        timerNames.get(-1 - code)));
+            }
+        }
+        Collections.reverse(entries);
+        return entries;
+    }
+
+    private synchronized void writeObject(ObjectOutputStream out)
+            throws IOException {
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        timerCodes = new HashMap<>();
+        for (int i = 0; i < timerNames.size(); i++) {
+            timerCodes.put(timerNames.get(i), (byte) (-1 - i));
+        }
+    }
+}
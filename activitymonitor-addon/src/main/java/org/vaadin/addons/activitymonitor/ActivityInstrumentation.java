@@ -0,0 +1,84 @@
+package org.vaadin.addons.activitymonitor;
+
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * Receives notifications about the work done by {@link ActivityMonitor}
+ * instances, for collecting metrics. Install an implementation with
+ * {@link ActivityMonitor#setInstrumentation(ActivityInstrumentation)};
+ * {@link ActivityMetrics} is a ready-made, dependency-free one.
+ *
+ * A monitor reports to the instrumentation that was installed when it was
+ * attached, until it is detached. Methods are invoked on the request thread,
+ * usually with the session locked, so they must be fast and thread-safe. All
+ * methods do nothing by default.
+ */
+public interface ActivityInstrumentation {
+
+    /**
+     * The RPC calls a client can make
+     */
+    public static enum Rpc {
+        STATUS_CHANGE, CUSTOM_TIMER, BATCH, DEFERRED_BATCH, LAST_ACTIVITY,
+        INTENSITY
+    }
+
+    /**
+     * Invoked when a monitor is attached.
+     *
+     * @param status
+     *            the current status of the monitor
+     */
+    default void monitorAttached(ClientStatus status) {
+    }
+
+    /**
+     * Invoked when a monitor is detached.
+     *
+     * @param status
+     *            the current status of the monitor
+     */
+    default void monitorDetached(ClientStatus status) {
+    }
+
+    /**
+     * Invoked for every RPC call received from a client.
+     *
+     * @param rpc
+     *            the kind of call
+     */
+    default void rpcReceived(Rpc rpc) {
+    }
+
+    /**
+     * Invoked when the status of a monitor changes.
+     *
+     * @param from
+     *            the previous status
+     * @param to
+     *            the new status
+     * @param timeInPrevious
+     *            time spent in the previous status, in milliseconds
+     */
+    default void statusChanged(ClientStatus from, ClientStatus to,
+            long timeInPrevious) {
+    }
+
+    /**
+     * Invoked when a custom timer fires.
+     *
+     * @param name
+     *            name of the timer
+     */
+    default void customTimerTriggered(String name) {
+    }
+
+    /**
+     * Invoked after the listeners of a monitor have handled an event.
+     *
+     * @param nanos
+     *            time taken by the listeners, in nanoseconds
+     */
+    default void listenersInvoked(long nanos) {
+    }
+}
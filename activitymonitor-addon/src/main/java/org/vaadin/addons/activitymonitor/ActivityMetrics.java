@@ -0,0 +1,305 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.shared.Registration;
+
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * A dependency-free {@link ActivityInstrumentation} that keeps lock-free
+ * counters, gauges and histograms of the activity of all monitors reporting
+ * to it.
+ *
+ * The following metrics are kept:
+ * <ul>
+ * <li>RPC calls received, per {@link ActivityInstrumentation.Rpc} kind</li>
+ * <li>status transitions, per pair of statuses</li>
+ * <li>custom timer events</li>
+ * <li>monitors currently in each status</li>
+ * <li>time spent in each status before leaving it, as a histogram in
+ * milliseconds</li>
+ * <li>time taken by the listeners to handle an event, as a histogram in
+ * nanoseconds</li>
+ * </ul>
+ *
+ * Recording only involves uncontended atomic increments. To feed the metrics
+ * into another metrics system, read them periodically with
+ * {@link #startExporting(MetricsExporter, long, TimeUnit)}.
+ */
+public class ActivityMetrics implements ActivityInstrumentation {
+
+    private static final Logger logger = Logger
+            .getLogger(ActivityMetrics.class.getName());
+
+    private static final int STATUS_COUNT = ClientStatus.values().length;
+
+    /**
+     * Reads the metrics periodically, e.g. to publish them in another metrics
+     * system
+     */
+    public static interface MetricsExporter {
+        void export(ActivityMetrics metrics);
+    }
+
+    /**
+     * A lock-free histogram with power-of-two buckets. Bucket {@code i}
+     * counts values in the range {@code [2^(i-1), 2^i)}, and bucket 0 counts
+     * values of 0 or less.
+     */
+    public static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * Record a value.
+         *
+         * @param value
+         *            the value
+         */
+        public void record(long value) {
+            int bucket = value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value);
+            buckets.incrementAndGet(Math.min(bucket, 63));
+            count.increment();
+            sum.add(value);
+            long current;
+            while (value > (current = max.get())
+                    && !max.compareAndSet(current, value)) {
+                // Retry
+            }
+        }
+
+        /**
+         * Get the number of recorded values.
+         *
+         * @return number of values
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * Get the sum of all recorded values.
+         *
+         * @return sum of values
+         */
+        public long getSum() {
+            return sum.sum();
+        }
+
+        /**
+         * Get the largest recorded value.
+         *
+         * @return largest value, or 0 if nothing has been recorded
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Get the mean of the recorded values.
+         *
+         * @return mean value, or 0 if nothing has been recorded
+         */
+        public double getMean() {
+            long n = getCount();
+            return n == 0 ? 0 : (double) getSum() / n;
+        }
+
+        /**
+         * Get an upper bound for the given percentile, accurate to a factor
+         * of two.
+         *
+         * @param percentile
+         *            a value between 0 and 100
+         * @return upper bound of the bucket containing the percentile
+         */
+        public long getPercentile(double percentile) {
+            long[] counts = getBucketCounts();
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            long rank = (long) Math.ceil(total * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(i == 0 ? 0 : (1L << i) - 1, getMax());
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Get the number of values in each bucket.
+         *
+         * @return a new array of 64 bucket counts
+         */
+        public long[] getBucketCounts() {
+            long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return counts;
+        }
+    }
+
+    private final LongAdder[] rpcs = new LongAdder[Rpc.values().length];
+    private final LongAdder[] transitions = new LongAdder[STATUS_COUNT
+            * STATUS_COUNT];
+    private final LongAdder[] monitors = new LongAdder[STATUS_COUNT];
+    private final Histogram[] timeInState = new Histogram[STATUS_COUNT];
+    private final LongAdder customTimers = new LongAdder();
+    private final Histogram listenerLatency = new Histogram();
+
+    /**
+     * Create a new, empty set of metrics.
+     */
+    public ActivityMetrics() {
+        for (int i = 0; i < rpcs.length; i++) {
+            rpcs[i] = new LongAdder();
+        }
+        for (int i = 0; i < transitions.length; i++) {
+            transitions[i] = new LongAdder();
+        }
+        for (int i = 0; i < STATUS_COUNT; i++) {
+            monitors[i] = new LongAdder();
+            timeInState[i] = new Histogram();
+        }
+    }
+
+    @Override
+    public void monitorAttached(ClientStatus status) {
+        monitors[status.ordinal()].increment();
+    }
+
+    @Override
+    public void monitorDetached(ClientStatus status) {
+        monitors[status.ordinal()].decrement();
+    }
+
+    @Override
+    public void rpcReceived(Rpc rpc) {
+        rpcs[rpc.ordinal()].increment();
+    }
+
+    @Override
+    public void statusChanged(ClientStatus from, ClientStatus to,
+            long timeInPrevious) {
+        transitions[from.ordinal() * STATUS_COUNT + to.ordinal()].increment();
+        monitors[from.ordinal()].decrement();
+        monitors[to.ordinal()].increment();
+        timeInState[from.ordinal()].record(timeInPrevious);
+    }
+
+    @Override
+    public void customTimerTriggered(String name) {
+        customTimers.increment();
+    }
+
+    @Override
+    public void listenersInvoked(long nanos) {
+        listenerLatency.record(nanos);
+    }
+
+    /**
+     * Get the number of RPC calls of the given kind received so far.
+     *
+     * @param rpc
+     *            the kind of call
+     * @return number of calls
+     */
+    public long getRpcCount(Rpc rpc) {
+        return rpcs[rpc.ordinal()].sum();
+    }
+
+    /**
+     * Get the number of transitions between two statuses so far.
+     *
+     * @param from
+     *            the previous status
+     * @param to
+     *            the new status
+     * @return number of transitions
+     */
+    public long getTransitionCount(ClientStatus from, ClientStatus to) {
+        return transitions[from.ordinal() * STATUS_COUNT + to.ordinal()]
+                .sum();
+    }
+
+    /**
+     * Get the number of custom timer events so far.
+     *
+     * @return number of events
+     */
+    public long getCustomTimerCount() {
+        return customTimers.sum();
+    }
+
+    /**
+     * Get the number of attached monitors currently in the given status.
+     *
+     * @param status
+     *            a {@link ClientStatus} value
+     * @return number of monitors
+     */
+    public long getMonitorCount(ClientStatus status) {
+        return monitors[status.ordinal()].sum();
+    }
+
+    /**
+     * Get the distribution of the time monitors spent in the given status
+     * before leaving it.
+     *
+     * @param status
+     *            a {@link ClientStatus} value
+     * @return a histogram of times in milliseconds
+     */
+    public Histogram getTimeInState(ClientStatus status) {
+        return timeInState[status.ordinal()];
+    }
+
+    /**
+     * Get the distribution of the time the listeners took to handle an
+     * event.
+     *
+     * @return a histogram of times in nanoseconds
+     */
+    public Histogram getListenerLatency() {
+        return listenerLatency;
+    }
+
+    /**
+     * Pass these metrics to an exporter at a fixed rate, on a shared
+     * background thread.
+     *
+     * @param exporter
+     *            the exporter
+     * @param period
+     *            time between exports
+     * @param unit
+     *            unit of the period
+     * @return a registration for stopping the exports
+     */
+    public Registration startExporting(MetricsExporter exporter, long period,
+            TimeUnit unit) {
+        ScheduledFuture<?> task = SharedScheduler.get()
+                .scheduleAtFixedRate(() -> {
+                    try {
+                        exporter.export(this);
+                    } catch (RuntimeException e) {
+                        logger.log(Level.WARNING, "Metrics export failed", e);
+                    }
+                }, period, period, unit);
+        return () -> task.cancel(false);
+    }
+}
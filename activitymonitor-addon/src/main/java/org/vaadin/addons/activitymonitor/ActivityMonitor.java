@@ -1,14 +1,32 @@
 package org.vaadin.addons.activitymonitor;
 
-import java.util.HashSet;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.vaadin.server.AbstractExtension;
+import com.vaadin.server.WrappedSession;
 import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
 
+import org.vaadin.addons.activitymonitor.client.shared.ActivityEvent;
+import org.vaadin.addons.activitymonitor.client.shared.ActivityIntensity;
+import org.vaadin.addons.activitymonitor.client.shared.ActivityMonitorClientRPC;
 import org.vaadin.addons.activitymonitor.client.shared.ActivityMonitorRPC;
 import org.vaadin.addons.activitymonitor.client.shared.ActivityMonitorState;
+import org.vaadin.addons.activitymonitor.client.shared.ActivityScheduler;
 import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+import org.vaadin.addons.activitymonitor.client.shared.DeliveryMode;
+import org.vaadin.addons.activitymonitor.client.shared.OverflowPolicy;
+import org.vaadin.addons.activitymonitor.client.shared.TimingMode;
+import org.vaadin.addons.activitymonitor.client.shared.VisibilityMode;
 
 /**
  * A UI extension that monitors client activity state. When the client moves
@@ -23,11 +41,16 @@ import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
  *
  * Custom timers can also be added in order to increase granularity. It is worth
  * noting that when a timer fires, a round-trip is initiated by the client. This
- * has the effect of extending the lifetime of the session.
+ * has the effect of extending the lifetime of the session, unless the timers
+ * are enforced by the server (see {@link #setTimingMode(TimingMode)}) or their
+ * events are deferred (see
+ * {@link #addCustomTimer(String, int, DeliveryMode)}).
  * 
  * This information can be used to provide present/away indication for real-time
  * chat functionality, or it can be used to throttle data feed speed to inactive
- * clients in order to save on resources, among other things.
+ * clients in order to save on resources, among other things. See
+ * {@link ThrottledFeed} for a ready-made way to do the latter, and
+ * {@link UIPassivator} for releasing the content of inactive UIs.
  */
 public class ActivityMonitor extends AbstractExtension {
 
@@ -36,6 +59,21 @@ public class ActivityMonitor extends AbstractExtension {
      */
     public static interface ClientStatusChangeListener {
         void statusChanged(ClientStatus newStatus);
+
+        /**
+         * Invoked whenever the client's status changes. Override this instead
+         * of {@link #statusChanged(ClientStatus)} to receive the time of the
+         * change as reported by the client.
+         * 
+         * @param newStatus
+         *            the new status
+         * @param timestamp
+         *            time of the change, in server milliseconds since the
+         *            epoch
+         */
+        default void statusChanged(ClientStatus newStatus, long timestamp) {
+            statusChanged(newStatus);
+        }
     }
 
     /**
@@ -43,31 +81,218 @@ public class ActivityMonitor extends AbstractExtension {
      */
     public static interface CustomTimerListener {
         void timerTriggered(String name);
+
+        /**
+         * Invoked whenever a custom timer fires. Override this instead of
+         * {@link #timerTriggered(String)} to receive the time the timer fired
+         * as reported by the client.
+         * 
+         * @param name
+         *            name of the timer
+         * @param timestamp
+         *            time the timer fired, in server milliseconds since the
+         *            epoch
+         */
+        default void timerTriggered(String name, long timestamp) {
+            timerTriggered(name);
+        }
+    }
+
+    /**
+     * Re-registers listeners after the monitor has been deserialized, e.g.
+     * when the session is replicated to another node. Listeners that are not
+     * {@link Serializable} are left out when the monitor is serialized.
+     */
+    public static interface ListenerRestorer extends Serializable {
+        /**
+         * Invoked while the monitor is being deserialized. Other parts of the
+         * UI may not have been deserialized yet, so this should only add
+         * listeners to the monitor.
+         * 
+         * @param monitor
+         *            the deserialized monitor
+         */
+        void restoreListeners(ActivityMonitor monitor);
     }
 
-    private final Set<ClientStatusChangeListener> changeListeners = new HashSet<>(
-            1);
-    private final Set<CustomTimerListener> customTimerListeners = new HashSet<>(
-            1);
-    private ClientStatus status = ClientStatus.ACTIVE;
+    // Fields marked transient are serialized in compact form by writeObject
+    private transient Set<ClientStatusChangeListener> changeListeners = new CopyOnWriteArraySet<>();
+    private transient Set<CustomTimerListener> customTimerListeners = new CopyOnWriteArraySet<>();
+    private transient volatile ClientStatus status = ClientStatus.ACTIVE;
+    private transient volatile long statusChangeTime = System
+            .currentTimeMillis();
+    private transient AtomicLong statusSequence = new AtomicLong();
+    private transient double clockOffset = 0;
+    private transient boolean registered = false;
+    private transient SessionActivityAggregator aggregator;
+    private transient ListenerRestorer listenerRestorer;
+    private transient ServerTiming serverTiming;
+    private transient volatile ListenerDispatcher dispatcher;
+    private transient volatile ActivityHistory history;
+    private transient volatile ActivityInstrumentation instrumentation;
+    private transient volatile ActivityEventLog eventLog;
+    private transient volatile ActivityIntensity intensity;
+    private transient int sessionCode;
+    private transient int uiId;
+
+    private static volatile ActivityInstrumentation defaultInstrumentation;
+    private static volatile ActivityEventLog defaultEventLog;
 
     private final ActivityMonitorRPC rpc = new ActivityMonitorRPC() {
         @Override
         public void clientStatusChanged(ClientStatus status) {
-            ActivityMonitor.this.status = status;
-            for (ClientStatusChangeListener l : changeListeners) {
-                l.statusChanged(status);
-            }
+            rpcReceived(ActivityInstrumentation.Rpc.STATUS_CHANGE);
+            statusChanged(status, System.currentTimeMillis());
         }
 
         @Override
         public void customTimerTriggered(String timerName) {
-            for (CustomTimerListener l : customTimerListeners) {
-                l.timerTriggered(timerName);
+            rpcReceived(ActivityInstrumentation.Rpc.CUSTOM_TIMER);
+            ActivityMonitor.this.customTimerTriggered(timerName,
+                    System.currentTimeMillis());
+        }
+
+        @Override
+        public void activityReported(List<ActivityEvent> events,
+                double clientTime) {
+            // Translate client timestamps to server time. Network latency
+            // makes the events appear slightly older than they are.
+            rpcReceived(ActivityInstrumentation.Rpc.BATCH);
+            clockOffset = System.currentTimeMillis() - clientTime;
+            replay(events);
+        }
+
+        @Override
+        public void deferredActivityReported(List<ActivityEvent> events) {
+            // The time the events were sent is unknown; use the clock offset
+            // measured on the latest immediate report
+            rpcReceived(ActivityInstrumentation.Rpc.DEFERRED_BATCH);
+            replay(events);
+        }
+
+        @Override
+        public void lastActivityReported(double lastActivity,
+                double clientTime) {
+            rpcReceived(ActivityInstrumentation.Rpc.LAST_ACTIVITY);
+            clockOffset = System.currentTimeMillis() - clientTime;
+            if (serverTiming != null) {
+                serverTiming.activity((long) (clientTime - lastActivity));
+            }
+        }
+
+        @Override
+        public void intensityChanged(ActivityIntensity intensity) {
+            rpcReceived(ActivityInstrumentation.Rpc.INTENSITY);
+            if (getState(false).intensityWindow > 0) {
+                ActivityMonitor.this.intensity = intensity;
             }
         }
     };
 
+    private void rpcReceived(ActivityInstrumentation.Rpc rpc) {
+        ActivityInstrumentation instrumentation = this.instrumentation;
+        if (instrumentation != null) {
+            instrumentation.rpcReceived(rpc);
+        }
+    }
+
+    private void replay(List<ActivityEvent> events) {
+        long now = System.currentTimeMillis();
+        for (ActivityEvent event : events) {
+            long timestamp = Math.min(now,
+                    Math.round(event.timestamp + clockOffset));
+            if (event.status != null) {
+                statusChanged(event.status, timestamp);
+            } else if (event.timerName != null) {
+                customTimerTriggered(event.timerName, timestamp);
+            }
+        }
+    }
+
+    private void statusChanged(ClientStatus newStatus, long timestamp) {
+        ClientStatus previous = status;
+        if (newStatus == previous) {
+            return;
+        }
+        long previousChangeTime = statusChangeTime;
+        status = newStatus;
+        statusChangeTime = timestamp;
+        statusSequence.incrementAndGet();
+        ActivityInstrumentation instrumentation = this.instrumentation;
+        if (instrumentation != null) {
+            instrumentation.statusChanged(previous, newStatus,
+                    Math.max(0, timestamp - previousChangeTime));
+        }
+        ActivityEventLog eventLog = this.eventLog;
+        if (eventLog != null) {
+            eventLog.statusChanged(timestamp, sessionCode, uiId, newStatus);
+        }
+        ActivityHistory history = this.history;
+        if (history != null) {
+            history.statusChanged(newStatus, timestamp);
+        }
+        if (registered) {
+            ActivityRegistry.get().statusChanged(this, previous, newStatus);
+        }
+        if (aggregator != null) {
+            aggregator.monitorStatusChanged();
+        }
+        if ((newStatus == ClientStatus.INACTIVE
+                || previous == ClientStatus.INACTIVE)
+                && SessionEvictionScheduler.isEnabled()) {
+            SessionEvictionScheduler.get().update(getSession(), null);
+        }
+        fireEvent(new ListenerDispatcher.Event(newStatus, null, timestamp));
+    }
+
+    private void customTimerTriggered(String timerName, long timestamp) {
+        ActivityInstrumentation instrumentation = this.instrumentation;
+        if (instrumentation != null) {
+            instrumentation.customTimerTriggered(timerName);
+        }
+        ActivityEventLog eventLog = this.eventLog;
+        if (eventLog != null) {
+            eventLog.timerTriggered(timestamp, sessionCode, uiId, timerName);
+        }
+        ActivityHistory history = this.history;
+        if (history != null) {
+            history.timerTriggered(timerName, timestamp);
+        }
+        fireEvent(new ListenerDispatcher.Event(null, timerName, timestamp));
+    }
+
+    private void fireEvent(ListenerDispatcher.Event event) {
+        ListenerDispatcher dispatcher = this.dispatcher;
+        if (dispatcher == null) {
+            deliverEvent(event);
+        } else {
+            dispatcher.dispatch(event);
+        }
+    }
+
+    private void deliverEvent(ListenerDispatcher.Event event) {
+        ActivityInstrumentation instrumentation = this.instrumentation;
+        if (instrumentation == null) {
+            invokeListeners(event);
+        } else {
+            long start = System.nanoTime();
+            invokeListeners(event);
+            instrumentation.listenersInvoked(System.nanoTime() - start);
+        }
+    }
+
+    private void invokeListeners(ListenerDispatcher.Event event) {
+        if (event.timerName == null) {
+            for (ClientStatusChangeListener l : changeListeners) {
+                l.statusChanged(event.status, event.timestamp);
+            }
+        } else {
+            for (CustomTimerListener l : customTimerListeners) {
+                l.timerTriggered(event.timerName, event.timestamp);
+            }
+        }
+    }
+
     @Override
     protected ActivityMonitorState getState() {
         return (ActivityMonitorState) super.getState();
@@ -78,6 +303,11 @@ public class ActivityMonitor extends AbstractExtension {
         return (ActivityMonitorState) super.getState(markDirty);
     }
 
+    @Override
+    protected ActivityMonitorState createState() {
+        return new CompactMonitorState();
+    }
+
     /**
      * Create an ActivityMonitor instance and attach it to the current UI
      */
@@ -96,12 +326,139 @@ public class ActivityMonitor extends AbstractExtension {
         registerRpc(rpc);
     }
 
+    @Override
+    public void attach() {
+        super.attach();
+        connect();
+        SessionActivityAggregator sessionAggregator = SessionActivityAggregator
+                .find(getSession());
+        if (sessionAggregator != null) {
+            sessionAggregator.add(this);
+        }
+        if (SessionEvictionScheduler.isEnabled()) {
+            SessionEvictionScheduler.get().update(getSession(), null);
+        }
+        updateServerTiming();
+    }
+
+    /**
+     * Hook up the JVM-wide instrumentation, event log and registry. Done on
+     * attach, and again after deserialization since none of them travel with
+     * the monitor.
+     */
+    private void connect() {
+        instrumentation = defaultInstrumentation;
+        if (instrumentation != null) {
+            instrumentation.monitorAttached(status);
+        }
+        eventLog = defaultEventLog;
+        if (eventLog != null) {
+            if (sessionCode == 0) {
+                // Kept when serialized, as the wrapped session is not
+                // available yet while deserializing
+                WrappedSession wrappedSession = getSession().getSession();
+                sessionCode = wrappedSession != null
+                        ? wrappedSession.getId().hashCode()
+                        : System.identityHashCode(getSession());
+            }
+            uiId = getUI().getUIId();
+        }
+        if (ActivityRegistry.isEnabled()) {
+            ActivityRegistry.get().add(this, status);
+            registered = true;
+        }
+    }
+
+    /**
+     * Restore what the monitor had on the previous node once the whole
+     * session has been deserialized. The session eviction scheduler is left
+     * out, as the session cannot be locked yet; it picks the session up on
+     * the next status change.
+     */
+    private void deserialized() {
+        if (isAttached()) {
+            connect();
+            updateServerTiming();
+        }
+    }
+
+    @Override
+    public void detach() {
+        if (registered) {
+            ActivityRegistry.get().remove(this, status);
+            registered = false;
+        }
+        if (aggregator != null) {
+            aggregator.remove(this);
+        }
+        if (serverTiming != null) {
+            serverTiming.cancel();
+            serverTiming = null;
+        }
+        if (SessionEvictionScheduler.isEnabled()) {
+            SessionEvictionScheduler.get().update(getSession(), this);
+        }
+        if (instrumentation != null) {
+            instrumentation.monitorDetached(status);
+            instrumentation = null;
+        }
+        eventLog = null;
+        super.detach();
+    }
+
+    void setAggregator(SessionActivityAggregator aggregator) {
+        this.aggregator = aggregator;
+    }
+
+    ServerTiming getServerTiming() {
+        return serverTiming;
+    }
+
+    /**
+     * Create the timing used in {@link TimingMode#SERVER} mode. Overridden in
+     * tests to drive it with a virtual clock.
+     */
+    ServerTiming createServerTiming(ActivityScheduler.Callback callback) {
+        return new ServerTiming(this, callback);
+    }
+
+    private void updateServerTiming() {
+        ActivityMonitorState state = getState(false);
+        boolean active = isAttached() && state.timersEnabled
+                && state.timingMode == TimingMode.SERVER;
+        if (active && serverTiming == null) {
+            serverTiming = createServerTiming(
+                    new ActivityScheduler.Callback() {
+                        @Override
+                        public void statusChanged(ClientStatus status,
+                                double time) {
+                            ActivityMonitor.this.statusChanged(status,
+                                    (long) time);
+                        }
+
+                        @Override
+                        public void customTimerTriggered(String name,
+                                double time) {
+                            ActivityMonitor.this.customTimerTriggered(name,
+                                    (long) time);
+                        }
+                    });
+            serverTiming.configure(state.idleThreshold,
+                    state.inactiveTimeThreshold, state.customTimers);
+            serverTiming.start(status);
+        } else if (!active && serverTiming != null) {
+            serverTiming.cancel();
+            serverTiming = null;
+        }
+    }
+
     /**
      * Enable/start client activity status monitoring. (Enabled/started by
      * default when ActivityMonitor instance is created).
      */
     public void enable() {
         getState(true).timersEnabled = true;
+        updateServerTiming();
     }
 
     /**
@@ -110,6 +467,7 @@ public class ActivityMonitor extends AbstractExtension {
      */
     public void disable() {
         getState(true).timersEnabled = false;
+        updateServerTiming();
     }
 
     /**
@@ -123,6 +481,7 @@ public class ActivityMonitor extends AbstractExtension {
 
     /**
      * Add a listener that gets triggered whenever the client's status changes.
+     * Listeners can be added and removed from any thread.
      * 
      * @param listener
      *            a ClientStatusChangeListener instance (usually a lambda)
@@ -150,6 +509,175 @@ public class ActivityMonitor extends AbstractExtension {
         changeListeners.clear();
     }
 
+    /**
+     * Set the callback that re-registers listeners after this monitor has
+     * been deserialized. Serializable listeners are serialized along with the
+     * monitor, others are left out and need to be restored by this callback.
+     * 
+     * @param restorer
+     *            a serializable callback, or null
+     */
+    public void setListenerRestorer(ListenerRestorer restorer) {
+        listenerRestorer = restorer;
+    }
+
+    /**
+     * Get the callback that re-registers listeners after deserialization.
+     * 
+     * @return the callback, or null if none is set
+     */
+    public ListenerRestorer getListenerRestorer() {
+        return listenerRestorer;
+    }
+
+    /**
+     * Deliver status change and custom timer events to listeners
+     * asynchronously on the given executor instead of synchronously within
+     * the client request. Listeners of this monitor are still invoked one at a
+     * time and in the order the events were reported, but they no longer hold
+     * up the client round-trip or the session lock.
+     * 
+     * Note, that asynchronous listeners run without the session lock and
+     * without {@link UI#getCurrent()}. Use {@link #access(Runnable)} to update
+     * components from within such a listener.
+     * 
+     * Events wait in a queue of 64 entries, overflowing with
+     * {@link OverflowPolicy#COALESCE}; see
+     * {@link #setAsynchronousListeners(Executor, int, OverflowPolicy)} to
+     * change these.
+     * 
+     * When the monitor is serialized, an executor that is not
+     * {@link Serializable} is replaced with the
+     * {@link #getDefaultListenerExecutor() default listener executor}.
+     * 
+     * @param executor
+     *            executor for listener invocations, or null to invoke
+     *            listeners synchronously (the default)
+     */
+    public void setAsynchronousListeners(Executor executor) {
+        setAsynchronousListeners(executor, 64, OverflowPolicy.COALESCE);
+    }
+
+    /**
+     * Deliver status change and custom timer events to listeners
+     * asynchronously on the given executor, using a bounded event queue. See
+     * {@link #setAsynchronousListeners(Executor)}.
+     * 
+     * @param executor
+     *            executor for listener invocations, or null to invoke
+     *            listeners synchronously (the default)
+     * @param queueCapacity
+     *            maximum number of events waiting to be delivered
+     * @param overflowPolicy
+     *            what to do with new events when the queue is full
+     */
+    public void setAsynchronousListeners(Executor executor, int queueCapacity,
+            OverflowPolicy overflowPolicy) {
+        dispatcher = executor == null ? null
+                : new ListenerDispatcher(executor, queueCapacity,
+                        overflowPolicy, this::deliverEvent);
+    }
+
+    /**
+     * Get the executor used for asynchronous listener invocations.
+     * 
+     * @return an executor, or null if listeners are invoked synchronously
+     */
+    public Executor getListenerExecutor() {
+        ListenerDispatcher dispatcher = this.dispatcher;
+        return dispatcher == null ? null : dispatcher.getExecutor();
+    }
+
+    /**
+     * Get the number of events that have been dropped because the
+     * asynchronous listener queue was full.
+     * 
+     * @return number of dropped events
+     */
+    public long getDroppedListenerEvents() {
+        ListenerDispatcher dispatcher = this.dispatcher;
+        return dispatcher == null ? 0 : dispatcher.getDroppedCount();
+    }
+
+    /**
+     * Get a shared executor suitable for asynchronous listeners. Uses virtual
+     * threads when running on a Java version that supports them, and a cached
+     * pool of daemon threads otherwise.
+     * 
+     * @return a shared executor
+     */
+    public static Executor getDefaultListenerExecutor() {
+        return ListenerDispatcher.defaultExecutor();
+    }
+
+    /**
+     * Install the instrumentation that monitors report to, e.g. an
+     * {@link ActivityMetrics} instance. Only monitors attached after this
+     * call report to the new instrumentation; monitors that are already
+     * attached keep reporting to the previous one until they are detached.
+     * 
+     * Default: null (no instrumentation).
+     * 
+     * @param instrumentation
+     *            an instrumentation, or null to stop instrumenting new
+     *            monitors
+     */
+    public static void setInstrumentation(
+            ActivityInstrumentation instrumentation) {
+        defaultInstrumentation = instrumentation;
+    }
+
+    /**
+     * Get the instrumentation that newly attached monitors report to.
+     * 
+     * @return an instrumentation, or null if none is installed
+     */
+    public static ActivityInstrumentation getInstrumentation() {
+        return defaultInstrumentation;
+    }
+
+    /**
+     * Install the log that monitors append their status changes and custom
+     * timer events to. Like instrumentation, this only affects monitors
+     * attached after this call.
+     * 
+     * Default: null (no logging).
+     * 
+     * @param eventLog
+     *            an event log, or null to stop logging new monitors
+     */
+    public static void setEventLog(ActivityEventLog eventLog) {
+        defaultEventLog = eventLog;
+    }
+
+    /**
+     * Get the log that newly attached monitors append their events to.
+     * 
+     * @return an event log, or null if none is installed
+     */
+    public static ActivityEventLog getEventLog() {
+        return defaultEventLog;
+    }
+
+    /**
+     * Run a task with the monitored UI locked. Convenience for asynchronous
+     * listeners that need to update components.
+     * 
+     * @see UI#access(Runnable)
+     * @param command
+     *            the task to run
+     * @return a future that can be used to check for task completion
+     * @throws UIDetachedException
+     *             if the monitor is no longer attached to a UI
+     */
+    public Future<Void> access(Runnable command) {
+        UI ui = getUI();
+        if (ui == null) {
+            throw new UIDetachedException();
+        }
+        return ui.access(command);
+    }
+
     /**
      * Add a named timer with a custom threshold. This function is provided to
      * allow for additional granularity in the activity levels. No custom timers
@@ -162,11 +690,48 @@ public class ActivityMonitor extends AbstractExtension {
      *            time of inactivity until timer fires, in milliseconds
      */
     public void addCustomTimer(String name, int threshold) {
-        getState(true).customTimers.put(name, threshold);
+        addCustomTimer(name, threshold, DeliveryMode.IMMEDIATE);
     }
 
     /**
-     * Update the threshold for a custom timer.
+     * Add a named timer with a custom threshold and delivery mode. With
+     * {@link DeliveryMode#DEFERRED}, the client does not make a request when
+     * the timer fires, but sends the event along with the next request made
+     * for any other reason. This suits purely informational timers, such as
+     * analytics buckets, that should not extend the lifetime of the session.
+     * The timestamp passed to the listener is still the time the timer fired.
+     * 
+     * @see #setDeferredEventQueue(int, OverflowPolicy)
+     * @param name
+     *            name of the timer. Used for identifying the timer in the
+     *            listener.
+     * @param threshold
+     *            time of inactivity until timer fires, in milliseconds
+     * @param delivery
+     *            when to send the timer events to the server
+     */
+    public void addCustomTimer(String name, int threshold,
+            DeliveryMode delivery) {
+        // Custom timer changes are sent to the client one at a time. The
+        // state is kept up to date without marking it dirty, so that it is
+        // correct when the state is sent in full, e.g. on page reload.
+        ActivityMonitorState state = getState(false);
+        state.customTimers.put(name, threshold);
+        if (delivery == DeliveryMode.DEFERRED) {
+            state.deferredTimers.add(name);
+        } else {
+            state.deferredTimers.remove(name);
+        }
+        clientRpc().customTimerSet(name, threshold, delivery);
+        if (serverTiming != null) {
+            serverTiming.getScheduler().setCustomTimer(name, threshold);
+            serverTiming.reschedule();
+        }
+    }
+
+    /**
+     * Update the threshold for a custom timer. The delivery mode of the timer
+     * is not changed.
      * 
      * @param name
      *            name of timer. Used for identifying the timer in the listener.
@@ -174,11 +739,27 @@ public class ActivityMonitor extends AbstractExtension {
      *            time of inactivity until timer fires, in milliseconds
      */
     public void setCustomTimerThreshold(String name, int threshold) {
-        if (getState().customTimers.remove(name) != null) {
-            getState(true).customTimers.put(name, threshold);
+        if (getState(false).customTimers.containsKey(name)) {
+            addCustomTimer(name, threshold, getCustomTimerDeliveryMode(name));
         }
     }
 
+    /**
+     * Get the delivery mode of a custom timer.
+     * 
+     * @param name
+     *            name of a previously added custom timer
+     * @return a {@link DeliveryMode} value, or null if there is no such timer
+     */
+    public DeliveryMode getCustomTimerDeliveryMode(String name) {
+        ActivityMonitorState state = getState(false);
+        if (!state.customTimers.containsKey(name)) {
+            return null;
+        }
+        return state.deferredTimers.contains(name) ? DeliveryMode.DEFERRED
+                : DeliveryMode.IMMEDIATE;
+    }
+
     /**
      * Remove a custom timer. This also removes and stops the associated
      * client-side timer object.
@@ -187,24 +768,42 @@ public class ActivityMonitor extends AbstractExtension {
      *            name of a previously added custom timer.
      */
     public void removeCustomTimer(String name) {
-        getState(true).customTimers.remove(name);
+        getState(false).deferredTimers.remove(name);
+        if (getState(false).customTimers.remove(name) != null) {
+            clientRpc().customTimerRemoved(name);
+            if (serverTiming != null) {
+                serverTiming.getScheduler().removeCustomTimer(name);
+                serverTiming.reschedule();
+            }
+        }
     }
 
     /**
      * Remove all custom timers.
      */
     public void clearCustomTimers() {
-        getState(true).customTimers.clear();
+        getState(false).customTimers.clear();
+        getState(false).deferredTimers.clear();
+        clientRpc().customTimersCleared();
+        if (serverTiming != null) {
+            serverTiming.getScheduler().clearCustomTimers();
+            serverTiming.reschedule();
+        }
+    }
+
+    private ActivityMonitorClientRPC clientRpc() {
+        return getRpcProxy(ActivityMonitorClientRPC.class);
     }
 
     /**
      * Add a custom timer listener. This function gets called whenever a custom
      * timer fires (i.e. when the user has been idle for longer than the
      * specified amount of time). The custom timer can be identified by the name
-     * string provided as the listener function parameter.
+     * string provided as the listener function parameter. Listeners can be
+     * added and removed from any thread.
      * 
-     * Note, that adding a custom timer or modifying its interval will cause all
-     * existing custom timers to be reset for that client.
+     * Adding, changing or removing a custom timer does not affect the other
+     * timers of that client.
      * 
      * @param listener
      *            a listener instance or lambda
@@ -242,6 +841,7 @@ public class ActivityMonitor extends AbstractExtension {
      */
     public void setIdleTimeThreshold(int msec) {
         getState(true).idleThreshold = Math.max(msec, 0);
+        updateServerThresholds();
     }
 
     /**
@@ -267,6 +867,16 @@ public class ActivityMonitor extends AbstractExtension {
      */
     public void setInactiveTimeThreshold(int msec) {
         getState(true).inactiveTimeThreshold = Math.max(msec, 0);
+        updateServerThresholds();
+    }
+
+    private void updateServerThresholds() {
+        if (serverTiming != null) {
+            serverTiming.getScheduler().setStatusThresholds(
+                    getState(false).idleThreshold,
+                    getState(false).inactiveTimeThreshold);
+            serverTiming.reschedule();
+        }
     }
 
     /**
@@ -279,11 +889,322 @@ public class ActivityMonitor extends AbstractExtension {
         return getState().inactiveTimeThreshold;
     }
 
+    /**
+     * Set the activity sampling interval. High-frequency events such as mouse
+     * moves, touch moves and scrolling are counted as at most one activity
+     * signal per interval, which keeps the cost of monitoring low on slow
+     * devices. Idle detection stays accurate, as the time of the latest event
+     * is always recorded. The interval should be well below the idle time
+     * threshold.
+     * 
+     * Set this to 0 to handle every event.
+     * 
+     * Default: 0 (no sampling).
+     * 
+     * @param msec
+     *            time in milliseconds
+     */
+    public void setActivitySampleInterval(int msec) {
+        getState(true).activitySampleInterval = Math.max(msec, 0);
+    }
+
+    /**
+     * Set how long the client collects status changes and custom timer events
+     * before sending them to the server in a single request. Status changes
+     * that are reverted within this time (e.g. IDLE followed by ACTIVE) are
+     * not sent at all. Event timestamps are preserved regardless of the
+     * delay.
+     * 
+     * Set this to 0 to send events as soon as the browser has finished
+     * handling the current event, which still combines transitions that happen
+     * at the same time, e.g. after a throttled background tab wakes up.
+     * 
+     * Default: 0.
+     * 
+     * @param msec
+     *            time in milliseconds
+     */
+    public void setEventBatchDelay(int msec) {
+        getState(true).eventBatchDelay = Math.max(msec, 0);
+    }
+
+    /**
+     * Set when the client sends status changes to the server. With
+     * {@link DeliveryMode#DEFERRED}, status changes do not cause requests of
+     * their own, but are sent along with the next request made for any other
+     * reason. A status change that is reverted before that is not sent at
+     * all. The status reported by {@link #getCurrentStatus()} then lags behind
+     * the client, so this is mostly useful for statistics.
+     * 
+     * Default: {@link DeliveryMode#IMMEDIATE}.
+     * 
+     * @see #setDeferredEventQueue(int, OverflowPolicy)
+     * @param delivery
+     *            a {@link DeliveryMode} value
+     */
+    public void setStatusDeliveryMode(DeliveryMode delivery) {
+        getState(true).statusDelivery = delivery;
+    }
+
+    /**
+     * Get the current status delivery mode.
+     * 
+     * @return a {@link DeliveryMode} value
+     */
+    public DeliveryMode getStatusDeliveryMode() {
+        return getState().statusDelivery;
+    }
+
+    /**
+     * Set the size of the client-side queue for events with
+     * {@link DeliveryMode#DEFERRED} delivery, and what to do with new events
+     * when the queue is full.
+     * 
+     * Default: 32 events, {@link OverflowPolicy#COALESCE}.
+     * 
+     * @param capacity
+     *            maximum number of queued events
+     * @param overflowPolicy
+     *            what to do with new events when the queue is full
+     */
+    public void setDeferredEventQueue(int capacity,
+            OverflowPolicy overflowPolicy) {
+        ActivityMonitorState state = getState(true);
+        state.deferredQueueCapacity = Math.max(capacity, 1);
+        state.deferredOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Get the size of the client-side queue for deferred events.
+     * 
+     * @return maximum number of queued events (default: 32).
+     */
+    public int getDeferredQueueCapacity() {
+        return getState().deferredQueueCapacity;
+    }
+
+    /**
+     * Get the overflow policy of the client-side queue for deferred events.
+     * 
+     * @return an {@link OverflowPolicy} value
+     */
+    public OverflowPolicy getDeferredOverflowPolicy() {
+        return getState().deferredOverflowPolicy;
+    }
+
+    /**
+     * Set how the client reacts when its browser tab is hidden or its window
+     * loses focus. In any mode other than {@link VisibilityMode#IGNORE}, the
+     * client stops its timers while hidden instead of letting the browser fire
+     * them late and in bursts, and reports a single reconciled status when the
+     * tab becomes visible again. Depending on the mode, the client can also be
+     * reported as IDLE, INACTIVE or {@link ClientStatus#HIDDEN} as soon as the
+     * tab is hidden. A client that stays hidden becomes INACTIVE once the
+     * inactive threshold has passed.
+     * 
+     * Default: {@link VisibilityMode#IGNORE}.
+     * 
+     * @param mode
+     *            a {@link VisibilityMode} value
+     */
+    public void setVisibilityMode(VisibilityMode mode) {
+        getState(true).visibilityMode = mode;
+    }
+
+    /**
+     * Set where the activity thresholds are enforced. In
+     * {@link TimingMode#SERVER} mode, the client only reports the time of its
+     * last activity - immediately after a pause longer than the shortest
+     * threshold, and otherwise at most once per
+     * {@link #setActivityReportInterval(int) report interval}. The server
+     * enforces the idle, inactive and custom thresholds for all monitors with
+     * a single shared timer thread. Idle clients then send no requests at
+     * all, so the thresholds no longer extend the lifetime of the session.
+     * 
+     * The visibility mode is ignored in server mode.
+     * 
+     * Default: {@link TimingMode#CLIENT}.
+     * 
+     * @param mode
+     *            a {@link TimingMode} value
+     */
+    public void setTimingMode(TimingMode mode) {
+        getState(true).timingMode = mode;
+        updateServerTiming();
+    }
+
+    /**
+     * Get the current timing mode.
+     * 
+     * @return a {@link TimingMode} value
+     */
+    public TimingMode getTimingMode() {
+        return getState().timingMode;
+    }
+
+    /**
+     * Set the maximum interval at which an active client reports its last
+     * activity in {@link TimingMode#SERVER} mode. The client never uses an
+     * interval longer than half of the shortest threshold.
+     * 
+     * Default: 10 seconds (10000 msec).
+     * 
+     * @param msec
+     *            time in milliseconds
+     */
+    public void setActivityReportInterval(int msec) {
+        getState(true).activityReportInterval = Math.max(msec, 0);
+    }
+
+    /**
+     * Get the maximum interval at which an active client reports its last
+     * activity in {@link TimingMode#SERVER} mode.
+     * 
+     * @return time in milliseconds (default: 10000).
+     */
+    public int getActivityReportInterval() {
+        return getState().activityReportInterval;
+    }
+
+    /**
+     * Get the current visibility mode.
+     * 
+     * @return a {@link VisibilityMode} value
+     */
+    public VisibilityMode getVisibilityMode() {
+        return getState().visibilityMode;
+    }
+
+    /**
+     * Stop or resume the Vaadin heartbeat of the client. A UI that sends no
+     * heartbeats and makes no other requests is eventually closed by the
+     * server, and its session can expire, even though the browser tab is
+     * still open. Any request made after resuming the heartbeat keeps the UI
+     * alive again, provided it has not been closed yet.
+     * 
+     * Default: false.
+     * 
+     * @see AdaptivePolling
+     * @param suspended
+     *            true to stop the heartbeat
+     */
+    public void setHeartbeatSuspended(boolean suspended) {
+        if (getState(false).heartbeatSuspended != suspended) {
+            getState(true).heartbeatSuspended = suspended;
+        }
+    }
+
+    /**
+     * Check whether the Vaadin heartbeat of the client is stopped.
+     * 
+     * @return true if the heartbeat is stopped
+     */
+    public boolean isHeartbeatSuspended() {
+        return getState(false).heartbeatSuspended;
+    }
+
+    /**
+     * Set the window over which the client measures the activity intensity,
+     * see {@link #getIntensity()}. The client splits the window into 32
+     * slots, so any activity sampling interval should be shorter than a
+     * thirty-second of the window. Changes in intensity are sent along with
+     * other requests and never cause a request of their own.
+     * 
+     * Set this to 0 to stop measuring the intensity.
+     * 
+     * Default: 0 (not measured).
+     * 
+     * @param msec
+     *            time in milliseconds
+     */
+    public void setIntensityWindow(int msec) {
+        getState(true).intensityWindow = Math.max(msec, 0);
+        // The client measures afresh and reports the new intensity
+        intensity = null;
+    }
+
+    /**
+     * Get the window over which the client measures the activity intensity.
+     * 
+     * @return time in milliseconds (default: 0).
+     */
+    public int getIntensityWindow() {
+        return getState(false).intensityWindow;
+    }
+
+    /**
+     * Get the activity intensity last reported by the client. Unlike the
+     * status, the intensity tells apart a user who moves the mouse now and
+     * then from one who is typing constantly, e.g. for shedding expensive
+     * features from the least engaged users first under load. Safe to call
+     * from any thread without locking the session.
+     * 
+     * The intensity is only measured if an intensity window has been set. It
+     * is reported lazily, along with other requests, so it can lag behind
+     * the client while the user makes no requests.
+     * 
+     * @see #setIntensityWindow(int)
+     * @return an {@link ActivityIntensity} value, or null if the intensity
+     *         is not measured or has not been reported yet
+     */
+    public ActivityIntensity getIntensity() {
+        return intensity;
+    }
+
+    /**
+     * Get the current event batching delay.
+     * 
+     * @return time in milliseconds (default: 0).
+     */
+    public int getEventBatchDelay() {
+        return getState().eventBatchDelay;
+    }
+
+    /**
+     * Get the current activity sampling interval.
+     * 
+     * @return time in milliseconds (default: 0).
+     */
+    public int getActivitySampleInterval() {
+        return getState().activitySampleInterval;
+    }
+
+    /**
+     * Start or stop recording the status changes and custom timer events of
+     * this monitor. Recording starts afresh with the current status; the
+     * previous history, if any, is discarded. Each recorded event takes 9
+     * bytes.
+     * 
+     * Default: 0 (no history).
+     * 
+     * @see ActivityHistory
+     * @param capacity
+     *            number of most recent events to retain, or 0 to stop
+     *            recording
+     */
+    public void setHistoryCapacity(int capacity) {
+        history = capacity > 0
+                ? new ActivityHistory(capacity, status, statusChangeTime)
+                : null;
+    }
+
+    /**
+     * Get the recorded activity history. Safe to call from any thread without
+     * locking the session.
+     * 
+     * @return the history, or null if no history is recorded
+     */
+    public ActivityHistory getHistory() {
+        return history;
+    }
+
     /**
      * Check if client is currently considered "active", i.e. has touched an
      * input device around the application before the idle (and inactivity)
      * timers have triggered.
      * 
+     * Safe to call from any thread without locking the session.
+     * 
      * @return true neither 'idle' nor 'inactive' timers have been exceeded.
      */
     public boolean isActive() {
@@ -291,7 +1212,8 @@ public class ActivityMonitor extends AbstractExtension {
     }
 
     /**
-     * Get the current status value.
+     * Get the current status value. Safe to call from any thread without
+     * locking the session.
      * 
      * @return a {@link ClientStatus} value
      */
@@ -299,4 +1221,109 @@ public class ActivityMonitor extends AbstractExtension {
         return status;
     }
 
+    /**
+     * Get the time of the latest status change, as reported by the client.
+     * Safe to call from any thread without locking the session.
+     * 
+     * @return time in server milliseconds since the epoch
+     */
+    public long getStatusChangeTime() {
+        return statusChangeTime;
+    }
+
+    /**
+     * Get the number of status transitions reported so far. The value
+     * increases by one for every transition, so comparing two readings tells
+     * whether (and how many) transitions happened in between, even if the
+     * status itself is the same. Safe to call from any thread without locking
+     * the session.
+     * 
+     * @return transition sequence number, starting from 0
+     */
+    public long getStatusSequence() {
+        return statusSequence.get();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeByte(status.ordinal());
+        out.writeLong(statusChangeTime);
+        out.writeLong(statusSequence.get());
+        out.writeDouble(clockOffset);
+        out.writeInt(sessionCode);
+        out.writeByte(intensity == null ? -1 : intensity.ordinal());
+        ListenerDispatcher dispatcher = this.dispatcher;
+        out.writeBoolean(dispatcher != null);
+        if (dispatcher != null) {
+            out.writeInt(dispatcher.getCapacity());
+            out.writeByte(dispatcher.getPolicy().ordinal());
+            Executor executor = dispatcher.getExecutor();
+            out.writeObject(
+                    executor instanceof Serializable ? executor : null);
+        }
+        out.writeObject(aggregator);
+        out.writeObject(history);
+        out.writeObject(listenerRestorer);
+        writeListeners(out, changeListeners);
+        writeListeners(out, customTimerListeners);
+    }
+
+    private static void writeListeners(ObjectOutputStream out,
+            Set<?> listeners) throws IOException {
+        // Written as a plain sequence instead of a set, leaving out
+        // listeners that cannot be serialized
+        Object[] snapshot = listeners.toArray();
+        int count = 0;
+        for (Object listener : snapshot) {
+            if (listener instanceof Serializable) {
+                count++;
+            }
+        }
+        out.writeInt(count);
+        for (Object listener : snapshot) {
+            if (listener instanceof Serializable) {
+                out.writeObject(listener);
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        status = ClientStatus.values()[in.readByte()];
+        statusChangeTime = in.readLong();
+        statusSequence = new AtomicLong(in.readLong());
+        clockOffset = in.readDouble();
+        sessionCode = in.readInt();
+        int intensityOrdinal = in.readByte();
+        intensity = intensityOrdinal < 0 ? null
+                : ActivityIntensity.values()[intensityOrdinal];
+        if (in.readBoolean()) {
+            int capacity = in.readInt();
+            OverflowPolicy policy = OverflowPolicy.values()[in.readByte()];
+            Executor executor = (Executor) in.readObject();
+            setAsynchronousListeners(executor != null ? executor
+                    : ListenerDispatcher.defaultExecutor(), capacity, policy);
+        }
+        aggregator = (SessionActivityAggregator) in.readObject();
+        history = (ActivityHistory) in.readObject();
+        listenerRestorer = (ListenerRestorer) in.readObject();
+        changeListeners = new CopyOnWriteArraySet<>();
+        readListeners(in, changeListeners);
+        customTimerListeners = new CopyOnWriteArraySet<>();
+        readListeners(in, customTimerListeners);
+        if (listenerRestorer != null) {
+            listenerRestorer.restoreListeners(this);
+        }
+        in.registerValidation(this::deserialized, 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void readListeners(ObjectInputStream in,
+            Set<T> listeners) throws IOException, ClassNotFoundException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            listeners.add((T) in.readObject());
+        }
+    }
 }
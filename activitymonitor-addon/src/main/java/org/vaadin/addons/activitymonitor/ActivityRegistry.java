@@ -0,0 +1,179 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import com.vaadin.ui.UI;
+
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * A JVM-wide index of all attached {@link ActivityMonitor} instances, grouped
+ * by their current {@link ClientStatus}.
+ *
+ * The registry is opt-in. Once enabled with {@link #setEnabled(boolean)},
+ * every ActivityMonitor joins the registry when it is attached and leaves it
+ * when it is detached. Status changes reported by the client move the monitor
+ * between the per-status sets.
+ *
+ * None of the query methods take any session locks, so they can be called
+ * from background threads, e.g. to pick the recipients of a broadcast. The
+ * returned data is weakly consistent: a monitor that changes status while a
+ * query is running may be reported in either status.
+ */
+public final class ActivityRegistry {
+
+    private static final ActivityRegistry INSTANCE = new ActivityRegistry();
+
+    private static volatile boolean enabled = false;
+
+    private final Map<ClientStatus, Set<ActivityMonitor>> monitors = new EnumMap<>(
+            ClientStatus.class);
+    private final Map<ClientStatus, LongAdder> counters = new EnumMap<>(
+            ClientStatus.class);
+
+    private ActivityRegistry() {
+        for (ClientStatus status : ClientStatus.values()) {
+            monitors.put(status, ConcurrentHashMap.newKeySet());
+            counters.put(status, new LongAdder());
+        }
+    }
+
+    /**
+     * Get the registry instance.
+     *
+     * @return the JVM-wide registry
+     */
+    public static ActivityRegistry get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Enable or disable registration of ActivityMonitor instances. Only
+     * monitors attached while the registry is enabled are indexed; monitors
+     * that are already registered stay registered until they are detached.
+     *
+     * Default: false.
+     *
+     * @param enabled
+     *            true to register monitors on attach
+     */
+    public static void setEnabled(boolean enabled) {
+        ActivityRegistry.enabled = enabled;
+    }
+
+    /**
+     * Return true if ActivityMonitor instances are registered on attach.
+     *
+     * @return a boolean value.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    void add(ActivityMonitor monitor, ClientStatus status) {
+        if (monitors.get(status).add(monitor)) {
+            counters.get(status).increment();
+        }
+    }
+
+    void remove(ActivityMonitor monitor, ClientStatus status) {
+        if (monitors.get(status).remove(monitor)) {
+            counters.get(status).decrement();
+        }
+    }
+
+    void statusChanged(ActivityMonitor monitor, ClientStatus oldStatus,
+            ClientStatus newStatus) {
+        if (oldStatus != newStatus) {
+            remove(monitor, oldStatus);
+            add(monitor, newStatus);
+        }
+    }
+
+    /**
+     * Get the number of registered monitors with the given status.
+     *
+     * @param status
+     *            a {@link ClientStatus} value
+     * @return number of monitors
+     */
+    public long count(ClientStatus status) {
+        return counters.get(status).sum();
+    }
+
+    /**
+     * Get the total number of registered monitors.
+     *
+     * @return number of monitors
+     */
+    public long count() {
+        long total = 0;
+        for (LongAdder counter : counters.values()) {
+            total += counter.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Get a snapshot of the registered monitors with the given status.
+     *
+     * @param status
+     *            a {@link ClientStatus} value
+     * @return a new list of monitors
+     */
+    public List<ActivityMonitor> getMonitors(ClientStatus status) {
+        return new ArrayList<>(monitors.get(status));
+    }
+
+    /**
+     * Get a snapshot of the UIs whose monitor has the given status.
+     *
+     * @param status
+     *            a {@link ClientStatus} value
+     * @return a new list of UIs
+     */
+    public List<UI> getUIs(ClientStatus status) {
+        List<UI> uis = new ArrayList<>();
+        forEachUI(status, uis::add);
+        return uis;
+    }
+
+    /**
+     * Iterate over the registered monitors with the given status without
+     * creating a snapshot.
+     *
+     * @param status
+     *            a {@link ClientStatus} value
+     * @param action
+     *            action to invoke for each monitor
+     */
+    public void forEachMonitor(ClientStatus status,
+            Consumer<? super ActivityMonitor> action) {
+        monitors.get(status).forEach(action);
+    }
+
+    /**
+     * Iterate over the UIs whose monitor has the given status without creating
+     * a snapshot. UIs that are being detached concurrently are skipped.
+     *
+     * @param status
+     *            a {@link ClientStatus} value
+     * @param action
+     *            action to invoke for each UI
+     */
+    public void forEachUI(ClientStatus status, Consumer<? super UI> action) {
+        for (ActivityMonitor monitor : monitors.get(status)) {
+            UI ui = monitor.getUI();
+            if (ui != null) {
+                action.accept(ui);
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.io.Serializable;
+
+import com.vaadin.server.VaadinSession;
+import com.vaadin.shared.Registration;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
+
+import org.vaadin.addons.activitymonitor.ActivityMonitor.ClientStatusChangeListener;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * Adapts the poll interval of a UI, and optionally its heartbeat, to the
+ * status of its client.
+ *
+ * Each {@link ClientStatus} has its own poll interval, e.g. poll every 2
+ * seconds while the user is active, every 15 seconds while idle, and not at
+ * all while inactive. The heartbeat can be suspended in chosen statuses, so
+ * that a UI nobody looks at does not keep its session alive; see
+ * {@link ActivityMonitor#setHeartbeatSuspended(boolean)}.
+ *
+ * When the client reports a status change, the new settings are applied
+ * while the report is being handled, so they reach the client in the response
+ * to the report itself. In particular, a client that becomes active again
+ * resumes polling and heartbeats right away.
+ *
+ * Defaults: ACTIVE and IDLE keep the poll interval the UI had when this
+ * controller was created, INACTIVE and HIDDEN do not poll. The heartbeat is
+ * not suspended in any status.
+ *
+ * The controller is serialized along with the UI, so a UI that was
+ * serialized while inactive still resumes polling and heartbeats when its
+ * client becomes active again.
+ */
+@SuppressWarnings("serial")
+public class AdaptivePolling implements Serializable {
+
+    private final class StatusListener
+            implements ClientStatusChangeListener, Serializable {
+        @Override
+        public void statusChanged(ClientStatus newStatus) {
+            apply(newStatus);
+        }
+    }
+
+
+    private final ActivityMonitor monitor;
+    private final int[] pollIntervals = new int[ClientStatus.values().length];
+    private final boolean[] heartbeatSuspended = new boolean[ClientStatus
+            .values().length];
+    private final ClientStatusChangeListener statusListener = new StatusListener();
+    private Registration detachRegistration;
+    private boolean closed = false;
+
+    /**
+     * Create a controller for the UI of the given monitor.
+     *
+     * @param monitor
+     *            the monitor of the UI
+     */
+    public AdaptivePolling(ActivityMonitor monitor) {
+        this.monitor = monitor;
+        UI ui = monitor.getUI();
+        int interval = ui != null ? ui.getPollInterval() : -1;
+        pollIntervals[ClientStatus.ACTIVE.ordinal()] = interval;
+        pollIntervals[ClientStatus.IDLE.ordinal()] = interval;
+        pollIntervals[ClientStatus.INACTIVE.ordinal()] = -1;
+        pollIntervals[ClientStatus.HIDDEN.ordinal()] = -1;
+        monitor.addClientStatusChangeListener(statusListener);
+        if (ui != null) {
+            detachRegistration = ui.addDetachListener(e -> detached());
+        }
+    }
+
+    /**
+     * Set the poll interval used while the client is in the given status.
+     * Takes effect right away if the client is currently in that status.
+     *
+     * @see UI#setPollInterval(int)
+     * @param status
+     *            a {@link ClientStatus} value
+     * @param msec
+     *            poll interval in milliseconds, or -1 to disable polling
+     */
+    public void setPollInterval(ClientStatus status, int msec) {
+        pollIntervals[status.ordinal()] = msec;
+        applyIfCurrent(status);
+    }
+
+    /**
+     * Get the poll interval used while the client is in the given status.
+     *
+     * @param status
+     *            a {@link ClientStatus} value
+     * @return poll interval in milliseconds, or -1 if polling is disabled
+     */
+    public int getPollInterval(ClientStatus status) {
+        return pollIntervals[status.ordinal()];
+    }
+
+    /**
+     * Set whether the heartbeat is suspended while the client is in the
+     * given status. Takes effect right away if the client is currently in
+     * that status.
+     *
+     * @param status
+     *            a {@link ClientStatus} value
+     * @param suspended
+     *            true to stop the heartbeat in this status
+     */
+    public void setHeartbeatSuspended(ClientStatus status,
+            boolean suspended) {
+        heartbeatSuspended[status.ordinal()] = suspended;
+        applyIfCurrent(status);
+    }
+
+    /**
+     * Check whether the heartbeat is suspended while the client is in the
+     * given status.
+     *
+     * @param status
+     *            a {@link ClientStatus} value
+     * @return true if the heartbeat is stopped in this status
+     */
+    public boolean isHeartbeatSuspended(ClientStatus status) {
+        return heartbeatSuspended[status.ordinal()];
+    }
+
+    /**
+     * Stop adapting the UI. The settings of {@link ClientStatus#ACTIVE} are
+     * applied, and the status listener is removed from the monitor.
+     */
+    public void close() {
+        if (!closed) {
+            detached();
+            apply(ClientStatus.ACTIVE);
+        }
+    }
+
+    private void detached() {
+        closed = true;
+        monitor.removeClientStatusChangeListener(statusListener);
+        if (detachRegistration != null) {
+            detachRegistration.remove();
+            detachRegistration = null;
+        }
+    }
+
+    private void applyIfCurrent(ClientStatus status) {
+        if (monitor.getCurrentStatus() == status) {
+            apply(status);
+        }
+    }
+
+    private void apply(ClientStatus status) {
+        UI ui = monitor.getUI();
+        if (ui == null) {
+            return;
+        }
+        VaadinSession session = ui.getSession();
+        if (session != null && session.hasLock()) {
+            // Include the change in the response to the current request
+            update(ui, status);
+            return;
+        }
+        try {
+            ui.access(() -> update(ui, status));
+        } catch (UIDetachedException e) {
+            // Nothing to adapt anymore
+        }
+    }
+
+    private void update(UI ui, ClientStatus status) {
+        int interval = pollIntervals[status.ordinal()];
+        if (ui.getPollInterval() != interval) {
+            ui.setPollInterval(interval);
+        }
+        monitor.setHeartbeatSuspended(heartbeatSuspended[status.ordinal()]);
+    }
+}
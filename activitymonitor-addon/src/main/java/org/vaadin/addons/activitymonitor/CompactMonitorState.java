@@ -0,0 +1,257 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.vaadin.shared.communication.URLReference;
+
+import org.vaadin.addons.activitymonitor.client.shared.ActivityMonitorState;
+import org.vaadin.addons.activitymonitor.client.shared.DeliveryMode;
+import org.vaadin.addons.activitymonitor.client.shared.OverflowPolicy;
+import org.vaadin.addons.activitymonitor.client.shared.TimingMode;
+import org.vaadin.addons.activitymonitor.client.shared.VisibilityMode;
+
+/**
+ * Server-side instance of the shared state of an {@link ActivityMonitor},
+ * with a compact serialized form for session replication.
+ *
+ * Instead of the class descriptors and all fields of the state, with boxed
+ * maps and sets, the serialized form is a bit mask of the values that differ
+ * from their defaults, followed by those values only, in primitive form.
+ * Custom timers are written as name, threshold and delivery mode. The state of
+ * a monitor with default settings thus takes a few bytes. The whole state is
+ * written every time; skipping unchanged sessions is up to the session store.
+ */
+@SuppressWarnings("serial")
+class CompactMonitorState extends ActivityMonitorState {
+
+    private static final ActivityMonitorState DEFAULTS = new ActivityMonitorState();
+
+    private static final VisibilityMode[] VISIBILITY_MODES = VisibilityMode
+            .values();
+    private static final TimingMode[] TIMING_MODES = TimingMode.values();
+    private static final DeliveryMode[] DELIVERY_MODES = DeliveryMode
+            .values();
+    private static final OverflowPolicy[] OVERFLOW_POLICIES = OverflowPolicy
+            .values();
+
+    private static final int IDLE_THRESHOLD = 1;
+    private static final int INACTIVE_THRESHOLD = 1 << 1;
+    private static final int TIMERS_DISABLED = 1 << 2;
+    private static final int SAMPLE_INTERVAL = 1 << 3;
+    private static final int BATCH_DELAY = 1 << 4;
+    private static final int VISIBILITY_MODE = 1 << 5;
+    private static final int TIMING_MODE = 1 << 6;
+    private static final int REPORT_INTERVAL = 1 << 7;
+    private static final int STATUS_DELIVERY = 1 << 8;
+    private static final int DEFERRED_QUEUE = 1 << 9;
+    private static final int CUSTOM_TIMERS = 1 << 10;
+    private static final int CONNECTOR_DISABLED = 1 << 11;
+    private static final int RESOURCES = 1 << 12;
+    private static final int EVENT_LISTENERS = 1 << 13;
+    private static final int HEARTBEAT_SUSPENDED = 1 << 14;
+    private static final int INTENSITY_WINDOW = 1 << 15;
+
+    private Object writeReplace() {
+        return new SerializedForm(this);
+    }
+
+    private static final class SerializedForm implements Serializable {
+        private transient CompactMonitorState state;
+
+        private SerializedForm(CompactMonitorState state) {
+            this.state = state;
+        }
+
+        private void writeObject(ObjectOutputStream out) throws IOException {
+            out.defaultWriteObject();
+            CompactMonitorState s = state;
+            int mask = 0;
+            if (s.idleThreshold != DEFAULTS.idleThreshold) {
+                mask |= IDLE_THRESHOLD;
+            }
+            if (s.inactiveTimeThreshold != DEFAULTS.inactiveTimeThreshold) {
+                mask |= INACTIVE_THRESHOLD;
+            }
+            if (!s.timersEnabled) {
+                mask |= TIMERS_DISABLED;
+            }
+            if (s.activitySampleInterval != DEFAULTS.activitySampleInterval) {
+                mask |= SAMPLE_INTERVAL;
+            }
+            if (s.eventBatchDelay != DEFAULTS.eventBatchDelay) {
+                mask |= BATCH_DELAY;
+            }
+            if (s.visibilityMode != DEFAULTS.visibilityMode) {
+                mask |= VISIBILITY_MODE;
+            }
+            if (s.timingMode != DEFAULTS.timingMode) {
+                mask |= TIMING_MODE;
+            }
+            if (s.activityReportInterval != DEFAULTS.activityReportInterval) {
+                mask |= REPORT_INTERVAL;
+            }
+            if (s.statusDelivery != DEFAULTS.statusDelivery) {
+                mask |= STATUS_DELIVERY;
+            }
+            if (s.deferredQueueCapacity != DEFAULTS.deferredQueueCapacity) {
+                mask |= DEFERRED_QUEUE;
+            }
+            if (s.deferredOverflowPolicy != DEFAULTS.deferredOverflowPolicy) {
+                mask |= DEFERRED_QUEUE;
+            }
+            if (!s.customTimers.isEmpty() || !s.deferredTimers.isEmpty()) {
+                mask |= CUSTOM_TIMERS;
+            }
+            if (!s.enabled) {
+                mask |= CONNECTOR_DISABLED;
+            }
+            if (s.resources != null && !s.resources.isEmpty()) {
+                mask |= RESOURCES;
+            }
+            if (s.registeredEventListeners != null) {
+                mask |= EVENT_LISTENERS;
+            }
+            if (s.heartbeatSuspended) {
+                mask |= HEARTBEAT_SUSPENDED;
+            }
+            if (s.intensityWindow != DEFAULTS.intensityWindow) {
+                mask |= INTENSITY_WINDOW;
+            }
+
+            out.writeShort(mask);
+            if ((mask & IDLE_THRESHOLD) != 0) {
+                out.writeInt(s.idleThreshold);
+            }
+            if ((mask & INACTIVE_THRESHOLD) != 0) {
+                out.writeInt(s.inactiveTimeThreshold);
+            }
+            if ((mask & SAMPLE_INTERVAL) != 0) {
+                out.writeInt(s.activitySampleInterval);
+            }
+            if ((mask & BATCH_DELAY) != 0) {
+                out.writeInt(s.eventBatchDelay);
+            }
+            if ((mask & VISIBILITY_MODE) != 0) {
+                out.writeByte(s.visibilityMode.ordinal());
+            }
+            if ((mask & TIMING_MODE) != 0) {
+                out.writeByte(s.timingMode.ordinal());
+            }
+            if ((mask & REPORT_INTERVAL) != 0) {
+                out.writeInt(s.activityReportInterval);
+            }
+            if ((mask & STATUS_DELIVERY) != 0) {
+                out.writeByte(s.statusDelivery.ordinal());
+            }
+            if ((mask & DEFERRED_QUEUE) != 0) {
+                out.writeInt(s.deferredQueueCapacity);
+                out.writeByte(s.deferredOverflowPolicy.ordinal());
+            }
+            if ((mask & INTENSITY_WINDOW) != 0) {
+                out.writeInt(s.intensityWindow);
+            }
+            if ((mask & CUSTOM_TIMERS) != 0) {
+                out.writeInt(s.customTimers.size());
+                for (Map.Entry<String, Integer> e : s.customTimers
+                        .entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeInt(e.getValue() == null ? 0 : e.getValue());
+                    out.writeBoolean(s.deferredTimers.contains(e.getKey()));
+                }
+                // Deferred timers without a threshold, if any
+                int orphans = 0;
+                for (String name : s.deferredTimers) {
+                    if (!s.customTimers.containsKey(name)) {
+                        orphans++;
+                    }
+                }
+                out.writeInt(orphans);
+                for (String name : s.deferredTimers) {
+                    if (!s.customTimers.containsKey(name)) {
+                        out.writeUTF(name);
+                    }
+                }
+            }
+            if ((mask & RESOURCES) != 0) {
+                out.writeObject(s.resources);
+            }
+            if ((mask & EVENT_LISTENERS) != 0) {
+                out.writeObject(s.registeredEventListeners);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void readObject(ObjectInputStream in)
+                throws IOException, ClassNotFoundException {
+            in.defaultReadObject();
+            CompactMonitorState s = new CompactMonitorState();
+            int mask = in.readUnsignedShort();
+            if ((mask & IDLE_THRESHOLD) != 0) {
+                s.idleThreshold = in.readInt();
+            }
+            if ((mask & INACTIVE_THRESHOLD) != 0) {
+                s.inactiveTimeThreshold = in.readInt();
+            }
+            s.timersEnabled = (mask & TIMERS_DISABLED) == 0;
+            if ((mask & SAMPLE_INTERVAL) != 0) {
+                s.activitySampleInterval = in.readInt();
+            }
+            if ((mask & BATCH_DELAY) != 0) {
+                s.eventBatchDelay = in.readInt();
+            }
+            if ((mask & VISIBILITY_MODE) != 0) {
+                s.visibilityMode = VISIBILITY_MODES[in.readByte()];
+            }
+            if ((mask & TIMING_MODE) != 0) {
+                s.timingMode = TIMING_MODES[in.readByte()];
+            }
+            if ((mask & REPORT_INTERVAL) != 0) {
+                s.activityReportInterval = in.readInt();
+            }
+            if ((mask & STATUS_DELIVERY) != 0) {
+                s.statusDelivery = DELIVERY_MODES[in.readByte()];
+            }
+            if ((mask & DEFERRED_QUEUE) != 0) {
+                s.deferredQueueCapacity = in.readInt();
+                s.deferredOverflowPolicy = OVERFLOW_POLICIES[in.readByte()];
+            }
+            if ((mask & INTENSITY_WINDOW) != 0) {
+                s.intensityWindow = in.readInt();
+            }
+            if ((mask & CUSTOM_TIMERS) != 0) {
+                int count = in.readInt();
+                s.customTimers = new HashMap<>(Math.max(count * 2, 1));
+                for (int i = 0; i < count; i++) {
+                    String name = in.readUTF();
+                    s.customTimers.put(name, in.readInt());
+                    if (in.readBoolean()) {
+                        s.deferredTimers.add(name);
+                    }
+                }
+                int orphans = in.readInt();
+                for (int i = 0; i < orphans; i++) {
+                    s.deferredTimers.add(in.readUTF());
+                }
+            }
+            s.enabled = (mask & CONNECTOR_DISABLED) == 0;
+            s.heartbeatSuspended = (mask & HEARTBEAT_SUSPENDED) != 0;
+            if ((mask & RESOURCES) != 0) {
+                s.resources = (Map<String, URLReference>) in.readObject();
+            }
+            if ((mask & EVENT_LISTENERS) != 0) {
+                s.registeredEventListeners = (Set<String>) in.readObject();
+            }
+            state = s;
+        }
+
+        private Object readResolve() {
+            return state;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package org.vaadin.addons.activitymonitor;
+
+import com.vaadin.server.ClientConnector.DetachEvent;
+import com.vaadin.server.ClientConnector.DetachListener;
+import com.vaadin.shared.Registration;
+import com.vaadin.ui.UI;
+
+/**
+ * A detach listener for helpers that are not serialized along with the UI
+ * they observe.
+ *
+ * The UI keeps its listeners in its serialized state, so a listener that
+ * captures such a helper would make the whole session unserializable. The
+ * action of this listener is transient instead; a deserialized copy does
+ * nothing when the UI is detached.
+ */
+@SuppressWarnings("serial")
+final class DetachHook implements DetachListener {
+
+    private final transient Runnable action;
+
+    private DetachHook(Runnable action) {
+        this.action = action;
+    }
+
+    /**
+     * Run an action when the given UI is detached.
+     *
+     * @param ui
+     *            the UI to observe
+     * @param action
+     *            the action to run
+     * @return a registration for removing the hook
+     */
+    static Registration add(UI ui, Runnable action) {
+        return ui.addDetachListener(new DetachHook(action));
+    }
+
+    @Override
+    public void detach(DetachEvent event) {
+        if (action != null) {
+            action.run();
+        }
+    }
+}
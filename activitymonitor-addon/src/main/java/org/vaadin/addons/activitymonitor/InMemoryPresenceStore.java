@@ -0,0 +1,59 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link PresenceStore} that keeps the records in memory, for tests and
+ * single-node deployments. Counts the write calls and records it receives,
+ * to make the effect of write batching visible.
+ */
+public class InMemoryPresenceStore implements PresenceStore {
+
+    private final Map<String, Record> records = new ConcurrentHashMap<>();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder recordsWritten = new LongAdder();
+
+    @Override
+    public void write(Collection<Record> batch) {
+        writes.increment();
+        recordsWritten.add(batch.size());
+        for (Record record : batch) {
+            records.put(record.getPrincipal(), record);
+        }
+    }
+
+    @Override
+    public Record read(String principal) {
+        return records.get(principal);
+    }
+
+    /**
+     * Get the number of principals with a stored record.
+     *
+     * @return number of principals
+     */
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * Get the number of {@link #write(Collection)} calls so far.
+     *
+     * @return number of batches
+     */
+    public long getWriteCount() {
+        return writes.sum();
+    }
+
+    /**
+     * Get the number of records written so far, over all batches.
+     *
+     * @return number of records
+     */
+    public long getRecordCount() {
+        return recordsWritten.sum();
+    }
+}
@@ -0,0 +1,182 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+import org.vaadin.addons.activitymonitor.client.shared.OverflowPolicy;
+
+/**
+ * Delivers listener events of a single monitor on an executor, one at a time
+ * and in the order they were reported, through a bounded queue.
+ */
+final class ListenerDispatcher {
+
+    private static final Logger logger = Logger
+            .getLogger(ListenerDispatcher.class.getName());
+
+    /**
+     * A status change (timerName is null) or a custom timer event.
+     */
+    static final class Event {
+        final ClientStatus status;
+        final String timerName;
+        final long timestamp;
+
+        Event(ClientStatus status, String timerName, long timestamp) {
+            this.status = status;
+            this.timerName = timerName;
+            this.timestamp = timestamp;
+        }
+
+        boolean sameKind(Event other) {
+            return timerName == null ? other.timerName == null
+                    : timerName.equals(other.timerName);
+        }
+    }
+
+    private static class DefaultExecutorHolder {
+        private static final ExecutorService INSTANCE = createDefaultExecutor();
+    }
+
+    private final Executor executor;
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Consumer<Event> delivery;
+
+    private final LinkedList<Event> queue = new LinkedList<>();
+    private final LongAdder dropped = new LongAdder();
+    private boolean draining = false;
+
+    ListenerDispatcher(Executor executor, int capacity, OverflowPolicy policy,
+            Consumer<Event> delivery) {
+        this.executor = executor;
+        this.capacity = Math.max(capacity, 1);
+        this.policy = policy;
+        this.delivery = delivery;
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    void dispatch(Event event) {
+        synchronized (queue) {
+            if (queue.size() >= capacity) {
+                // Either this event or a queued one is dropped
+                dropped.increment();
+                if (policy == OverflowPolicy.DROP_NEWEST
+                        || policy == OverflowPolicy.COALESCE
+                                && replace(event)) {
+                    return;
+                }
+                queue.poll();
+            }
+            queue.add(event);
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        startDrain();
+    }
+
+    private void startDrain() {
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException e) {
+            synchronized (queue) {
+                dropped.add(queue.size());
+                queue.clear();
+                draining = false;
+            }
+            logger.log(Level.WARNING, "Listener executor rejected events", e);
+        }
+    }
+
+    // Replaces a queued event of the same kind in place, keeping its
+    // position relative to the other events
+    private boolean replace(Event event) {
+        for (ListIterator<Event> i = queue.listIterator(); i.hasNext();) {
+            if (i.next().sameKind(event)) {
+                i.set(event);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drain() {
+        boolean drained = false;
+        try {
+            while (true) {
+                Event event;
+                synchronized (queue) {
+                    event = queue.poll();
+                    if (event == null) {
+                        draining = false;
+                        drained = true;
+                        return;
+                    }
+                }
+                try {
+                    delivery.accept(event);
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING,
+                            "ActivityMonitor listener failed", e);
+                }
+            }
+        } finally {
+            if (!drained) {
+                // An error from a listener; the rest of the queue is
+                // delivered by a new task, which would otherwise never start
+                boolean remaining;
+                synchronized (queue) {
+                    remaining = !queue.isEmpty();
+                    draining = remaining;
+                }
+                if (remaining) {
+                    startDrain();
+                }
+            }
+        }
+    }
+
+    static Executor defaultExecutor() {
+        return DefaultExecutorHolder.INSTANCE;
+    }
+
+    private static ExecutorService createDefaultExecutor() {
+        try {
+            // Java 21+
+            return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, "activitymonitor-listener");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+}
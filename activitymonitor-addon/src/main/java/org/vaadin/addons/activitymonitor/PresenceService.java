@@ -0,0 +1,319 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.vaadin.shared.Registration;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
+
+import org.vaadin.addons.activitymonitor.ActivityMonitor.ClientStatusChangeListener;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * Tracks the presence of users, e.g. for present/away indicators in a chat,
+ * and delivers presence changes to the UIs that watch them.
+ *
+ * Monitors are published under a principal ID, typically a user name. The
+ * presence of a principal is the status of its most active monitor, or
+ * {@link ClientStatus#INACTIVE} if it has none. UIs subscribe to any number
+ * of principals with a single listener.
+ *
+ * Presence changes are not pushed one by one. Changes are collected per
+ * subscribing UI over the coalescing window, and delivered as one batch
+ * through {@link UI#access(Runnable)}. A principal that changes status and
+ * changes back within the window, e.g. by flapping between ACTIVE and IDLE,
+ * is not included at all. Each UI thus gets at most one push per window, no
+ * matter how many of its principals change.
+ *
+ * To share presence with other nodes, changes can additionally be written to
+ * a {@link PresenceStore} through a {@link PresenceWriteBehind}.
+ *
+ * Publications and subscriptions are not serialized along with the UI. After
+ * the session has been deserialized, publish and subscribe again if needed.
+ *
+ * Default coalescing window: 500 milliseconds.
+ */
+public class PresenceService {
+
+    /**
+     * Receives batched presence changes
+     */
+    public static interface PresenceListener {
+        /**
+         * Invoked with the UI locked.
+         *
+         * @param changes
+         *            the new presence of every changed principal
+         */
+        void presenceChanged(Map<String, ClientStatus> changes);
+    }
+
+    private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+
+    private final class Topic {
+        private final String principal;
+        private final Set<ActivityMonitor> monitors = new CopyOnWriteArraySet<>();
+        private volatile Subscription[] subscriptions = NO_SUBSCRIPTIONS;
+        private ClientStatus presence = ClientStatus.INACTIVE;
+
+        private Topic(String principal) {
+            this.principal = principal;
+        }
+
+        private boolean isUnused() {
+            return monitors.isEmpty() && subscriptions.length == 0;
+        }
+
+        private void update() {
+            synchronized (this) {
+                List<ClientStatus> statuses = new ArrayList<>();
+                for (ActivityMonitor monitor : monitors) {
+                    statuses.add(monitor.getCurrentStatus());
+                }
+                ClientStatus newPresence = SessionActivityAggregator.MOST_ACTIVE
+                        .aggregate(statuses);
+                if (newPresence == presence) {
+                    return;
+                }
+                presence = newPresence;
+                PresenceWriteBehind writeBehind = PresenceService.this
+                        .writeBehind;
+                // Under the topic lock, so the latest change wins; both
+                // only enqueue the change
+                if (writeBehind != null) {
+                    writeBehind.record(principal, newPresence,
+                            System.currentTimeMillis());
+                }
+                for (Subscription subscription : subscriptions) {
+                    subscription.changed(principal, newPresence);
+                }
+            }
+        }
+    }
+
+    private final class Subscription {
+        private final UI ui;
+        private final PresenceListener listener;
+        private final Map<String, ClientStatus> pending = new HashMap<>();
+        private final Map<String, ClientStatus> delivered = new HashMap<>();
+        private boolean scheduled = false;
+        private boolean closed = false;
+
+        private Subscription(UI ui, PresenceListener listener) {
+            this.ui = ui;
+            this.listener = listener;
+        }
+
+        private void changed(String principal, ClientStatus presence) {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                pending.put(principal, presence);
+                if (scheduled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            scheduler.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+        }
+
+        private void flush() {
+            Map<String, ClientStatus> changes = new LinkedHashMap<>();
+            synchronized (this) {
+                scheduled = false;
+                for (Map.Entry<String, ClientStatus> e : pending.entrySet()) {
+                    if (delivered.put(e.getKey(), e.getValue()) != e
+                            .getValue()) {
+                        changes.put(e.getKey(), e.getValue());
+                    }
+                }
+                pending.clear();
+                if (closed || changes.isEmpty()) {
+                    return;
+                }
+            }
+            try {
+                ui.access(() -> listener.presenceChanged(changes));
+            } catch (UIDetachedException e) {
+                close();
+            }
+        }
+
+        private synchronized void close() {
+            closed = true;
+            pending.clear();
+        }
+    }
+
+    private final Map<String, Topic> topics = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler;
+    private final int window;
+    private volatile PresenceWriteBehind writeBehind;
+
+    /**
+     * Create a presence service with a coalescing window of 500 milliseconds,
+     * running its timers on a shared background thread.
+     */
+    public PresenceService() {
+        this(500, SharedScheduler.get());
+    }
+
+    /**
+     * Create a presence service.
+     *
+     * @param window
+     *            coalescing window in milliseconds
+     * @param scheduler
+     *            scheduler for delayed deliveries
+     */
+    public PresenceService(int window, ScheduledExecutorService scheduler) {
+        this.window = Math.max(window, 0);
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Write presence changes to a shared store from now on. Only principals
+     * whose presence changes after this call are written.
+     *
+     * @param writeBehind
+     *            the write-behind buffer of the store, or null to stop
+     *            writing
+     */
+    public void setWriteBehind(PresenceWriteBehind writeBehind) {
+        this.writeBehind = writeBehind;
+    }
+
+    /**
+     * Get the write-behind buffer that presence changes are written to.
+     *
+     * @return the buffer, or null if changes are not written
+     */
+    public PresenceWriteBehind getWriteBehind() {
+        return writeBehind;
+    }
+
+    /**
+     * Publish the status of a monitor as (part of) the presence of a
+     * principal. A principal can have several monitors, e.g. one per browser
+     * tab or device. The monitor is unpublished automatically when its UI is
+     * detached.
+     *
+     * @param monitor
+     *            the monitor
+     * @param principal
+     *            ID of the user or other principal
+     * @return a registration for unpublishing the monitor
+     */
+    public Registration publish(ActivityMonitor monitor, String principal) {
+        Topic topic = topics.compute(principal, (key, existing) -> {
+            Topic t = existing != null ? existing : new Topic(key);
+            t.monitors.add(monitor);
+            return t;
+        });
+        ClientStatusChangeListener listener = status -> topic.update();
+        monitor.addClientStatusChangeListener(listener);
+        topic.update();
+
+        Registration[] detachRegistration = new Registration[1];
+        Registration registration = () -> {
+            monitor.removeClientStatusChangeListener(listener);
+            if (detachRegistration[0] != null) {
+                detachRegistration[0].remove();
+            }
+            topics.computeIfPresent(principal, (key, t) -> {
+                t.monitors.remove(monitor);
+                return t.isUnused() ? null : t;
+            });
+            topic.update();
+        };
+        UI ui = monitor.getUI();
+        if (ui != null) {
+            detachRegistration[0] = DetachHook.add(ui, registration::remove);
+        }
+        return registration;
+    }
+
+    /**
+     * Subscribe a UI to the presence of the given principals. The current
+     * presence of each principal is delivered as the first batch. The
+     * subscription ends automatically when the UI is detached.
+     *
+     * @param ui
+     *            the UI that receives the changes
+     * @param principals
+     *            IDs of the principals to watch
+     * @param listener
+     *            invoked with the UI locked for every batch of changes
+     * @return a registration for ending the subscription
+     */
+    public Registration subscribe(UI ui, Collection<String> principals,
+            PresenceListener listener) {
+        Subscription subscription = new Subscription(ui, listener);
+        List<Topic> subscribed = new ArrayList<>(principals.size());
+        for (String principal : principals) {
+            Topic topic = topics.compute(principal, (key, existing) -> {
+                Topic t = existing != null ? existing : new Topic(key);
+                Subscription[] old = t.subscriptions;
+                Subscription[] updated = Arrays.copyOf(old, old.length + 1);
+                updated[old.length] = subscription;
+                t.subscriptions = updated;
+                return t;
+            });
+            subscribed.add(topic);
+            // Under the topic lock, so a concurrent update is not overtaken
+            synchronized (topic) {
+                subscription.changed(principal, topic.presence);
+            }
+        }
+
+        Registration[] detachRegistration = new Registration[1];
+        Registration registration = () -> {
+            subscription.close();
+            if (detachRegistration[0] != null) {
+                detachRegistration[0].remove();
+            }
+            for (Topic topic : subscribed) {
+                topics.computeIfPresent(topic.principal, (key, t) -> {
+                    List<Subscription> remaining = new ArrayList<>(
+                            Arrays.asList(t.subscriptions));
+                    remaining.remove(subscription);
+                    t.subscriptions = remaining
+                            .toArray(NO_SUBSCRIPTIONS);
+                    return t.isUnused() ? null : t;
+                });
+            }
+        };
+        detachRegistration[0] = DetachHook.add(ui, registration::remove);
+        return registration;
+    }
+
+    /**
+     * Get the current presence of a principal. Safe to call from any thread.
+     *
+     * @param principal
+     *            ID of the principal
+     * @return the status of its most active monitor, or
+     *         {@link ClientStatus#INACTIVE} if it has none
+     */
+    public ClientStatus getPresence(String principal) {
+        Topic topic = topics.get(principal);
+        if (topic == null) {
+            return ClientStatus.INACTIVE;
+        }
+        synchronized (topic) {
+            return topic.presence;
+        }
+    }
+}
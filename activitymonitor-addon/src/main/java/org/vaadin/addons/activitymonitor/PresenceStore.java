@@ -0,0 +1,86 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.util.Collection;
+
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * Shared storage for presence, e.g. a database table or a distributed cache,
+ * through which other nodes of a cluster see who is present. Writes are
+ * normally issued in batches by a {@link PresenceWriteBehind}.
+ *
+ * @see InMemoryPresenceStore
+ */
+public interface PresenceStore {
+
+    /**
+     * The presence of one principal at a point in time
+     */
+    public static final class Record {
+        private final String principal;
+        private final ClientStatus status;
+        private final long timestamp;
+
+        public Record(String principal, ClientStatus status, long timestamp) {
+            this.principal = principal;
+            this.status = status;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Get the ID of the principal.
+         *
+         * @return the principal
+         */
+        public String getPrincipal() {
+            return principal;
+        }
+
+        /**
+         * Get the presence of the principal.
+         *
+         * @return a {@link ClientStatus} value
+         */
+        public ClientStatus getStatus() {
+            return status;
+        }
+
+        /**
+         * Get the time the presence was last changed.
+         *
+         * @return time in server milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        @Override
+        public String toString() {
+            return principal + "=" + status + "@" + timestamp;
+        }
+    }
+
+    /**
+     * Store a batch of records, replacing any earlier record of the same
+     * principals. A batch contains at most one record per principal. If this
+     * method throws, the whole batch is retried later, merged with any newer
+     * records, so writes must be idempotent.
+     *
+     * @param records
+     *            the records to store
+     * @throws Exception
+     *             if the records could not be stored
+     */
+    void write(Collection<Record> records) throws Exception;
+
+    /**
+     * Get the stored presence of a principal.
+     *
+     * @param principal
+     *            ID of the principal
+     * @return the stored record, or null if there is none
+     * @throws Exception
+     *             if the store could not be read
+     */
+    Record read(String principal) throws Exception;
+}
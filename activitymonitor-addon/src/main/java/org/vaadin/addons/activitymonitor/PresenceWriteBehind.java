@@ -0,0 +1,340 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.vaadin.addons.activitymonitor.PresenceStore.Record;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * Buffers presence changes and writes them to a {@link PresenceStore} in
+ * batches, so the store sees at most one write per principal per flush
+ * instead of one per status transition.
+ *
+ * Changes are coalesced per principal; only the latest one is written. A
+ * batch is written when the flush interval has passed since the first
+ * buffered change, or as soon as {@code maxBatchSize} principals are waiting.
+ * Only one batch is written at a time; changes made while a write is in
+ * progress are buffered for the next one, so a slow store leads to larger
+ * batches rather than more concurrent writes.
+ *
+ * When a write fails, its records are put back into the buffer, unless newer
+ * changes to the same principals have been buffered meanwhile, and retried
+ * after an exponentially growing delay. While the store keeps failing, the
+ * buffer holds at most {@code capacity} principals; changes of further
+ * principals are dropped and counted, see {@link #getDroppedCount()}.
+ *
+ * Defaults: flush interval 1 second, batches of at most 500 records, capacity
+ * of 100000 principals, retry delay from 1 second up to 1 minute.
+ *
+ * @see PresenceService#setWriteBehind(PresenceWriteBehind)
+ */
+public class PresenceWriteBehind {
+
+    private static final Logger logger = Logger
+            .getLogger(PresenceWriteBehind.class.getName());
+
+    private static final int MAX_RETRY_DELAY = 60000;
+
+    private final PresenceStore store;
+    private final Executor writer;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile int flushInterval = 1000;
+    private volatile int maxBatchSize = 500;
+    private volatile int capacity = 100000;
+    private volatile int retryDelay = 1000;
+
+    // Guarded by this
+    private final Map<String, Record> pending = new LinkedHashMap<>();
+    private ScheduledFuture<?> flushTask;
+    // Identifies the current flush task, in case a cancelled one still runs
+    private int flushGeneration = 0;
+    private boolean writing = false;
+    private int failures = 0;
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failedWrites = new LongAdder();
+
+    /**
+     * Create a write-behind buffer that writes on a shared background
+     * executor.
+     *
+     * @param store
+     *            the store to write to
+     */
+    public PresenceWriteBehind(PresenceStore store) {
+        this(store, ListenerDispatcher.defaultExecutor(),
+                SharedScheduler.get());
+    }
+
+    /**
+     * Create a write-behind buffer.
+     *
+     * @param store
+     *            the store to write to
+     * @param writer
+     *            executor for the (blocking) store writes
+     * @param scheduler
+     *            scheduler for the flush and retry timers
+     */
+    public PresenceWriteBehind(PresenceStore store, Executor writer,
+            ScheduledExecutorService scheduler) {
+        this.store = store;
+        this.writer = writer;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Set the longest time a change waits in the buffer before a flush is
+     * started, unless the store is failing.
+     *
+     * @param msec
+     *            time in milliseconds
+     */
+    public void setFlushInterval(int msec) {
+        flushInterval = Math.max(msec, 0);
+    }
+
+    /**
+     * Get the flush interval.
+     *
+     * @return time in milliseconds
+     */
+    public int getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * Set the largest number of records written in one batch. Reaching this
+     * number of buffered principals also starts a flush right away.
+     *
+     * @param size
+     *            number of records
+     */
+    public void setMaxBatchSize(int size) {
+        maxBatchSize = Math.max(size, 1);
+    }
+
+    /**
+     * Get the largest number of records written in one batch.
+     *
+     * @return number of records
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Set the largest number of principals buffered while the store is slow
+     * or failing.
+     *
+     * @param capacity
+     *            number of principals
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = Math.max(capacity, 1);
+    }
+
+    /**
+     * Get the largest number of principals buffered.
+     *
+     * @return number of principals
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Set the delay before the first retry of a failed write. The delay
+     * doubles with every consecutive failure, up to one minute.
+     *
+     * @param msec
+     *            time in milliseconds
+     */
+    public void setRetryDelay(int msec) {
+        retryDelay = Math.max(msec, 0);
+    }
+
+    /**
+     * Buffer the presence of a principal, replacing any buffered presence of
+     * the same principal. Never blocks on the store.
+     *
+     * @param principal
+     *            ID of the principal
+     * @param status
+     *            the new presence
+     * @param timestamp
+     *            time of the change, in server milliseconds since the epoch
+     */
+    public void record(String principal, ClientStatus status, long timestamp) {
+        received.increment();
+        Record record = new Record(principal, status, timestamp);
+        synchronized (this) {
+            if (pending.size() >= capacity
+                    && !pending.containsKey(principal)) {
+                dropped.increment();
+                return;
+            }
+            pending.put(principal, record);
+            if (writing || failures > 0) {
+                // Picked up after the current write or the next retry
+                return;
+            }
+            if (pending.size() >= maxBatchSize) {
+                startWrite();
+            } else if (flushTask == null) {
+                schedule(flushInterval);
+            }
+        }
+    }
+
+    /**
+     * Start writing all buffered changes now, without waiting for the flush
+     * interval, e.g. before shutting down. Does nothing if a write is already
+     * in progress.
+     */
+    public synchronized void flush() {
+        if (!writing && !pending.isEmpty()) {
+            startWrite();
+        }
+    }
+
+    private void schedule(long delay) {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+        }
+        int generation = ++flushGeneration;
+        flushTask = scheduler.schedule(() -> flushTimerExpired(generation),
+                delay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void flushTimerExpired(int generation) {
+        if (generation != flushGeneration) {
+            return;
+        }
+        flushTask = null;
+        if (!writing && !pending.isEmpty()) {
+            startWrite();
+        }
+    }
+
+    // Called with the lock held
+    private void startWrite() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+            flushGeneration++;
+        }
+        List<Record> batch = new ArrayList<>(
+                Math.min(pending.size(), maxBatchSize));
+        for (Iterator<Record> i = pending.values().iterator(); i.hasNext()
+                && batch.size() < maxBatchSize;) {
+            batch.add(i.next());
+            i.remove();
+        }
+        writing = true;
+        try {
+            writer.execute(() -> write(batch));
+        } catch (RejectedExecutionException e) {
+            writeDone(batch, false);
+        }
+    }
+
+    private void write(List<Record> batch) {
+        boolean success = false;
+        try {
+            store.write(batch);
+            success = true;
+        } catch (Exception e) {
+            logger.log(Level.WARNING, "Writing " + batch.size()
+                    + " presence records failed, will retry", e);
+        } finally {
+            // Also for errors, which would otherwise leave writes stuck
+            writeDone(batch, success);
+        }
+    }
+
+    private synchronized void writeDone(List<Record> batch, boolean success) {
+        writing = false;
+        if (success) {
+            written.add(batch.size());
+            failures = 0;
+        } else {
+            failedWrites.increment();
+            failures++;
+            // Newer changes buffered meanwhile take precedence
+            for (Record record : batch) {
+                pending.putIfAbsent(record.getPrincipal(), record);
+            }
+            long delay = Math.min((long) retryDelay << Math.min(failures - 1,
+                    16), MAX_RETRY_DELAY);
+            schedule(delay);
+            return;
+        }
+        if (pending.size() >= maxBatchSize) {
+            startWrite();
+        } else if (!pending.isEmpty() && flushTask == null) {
+            schedule(flushInterval);
+        }
+    }
+
+    /**
+     * Get the number of principals waiting to be written.
+     *
+     * @return number of principals
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Get the number of changes passed to
+     * {@link #record(String, ClientStatus, long)} so far.
+     *
+     * @return number of changes
+     */
+    public long getReceivedCount() {
+        return received.sum();
+    }
+
+    /**
+     * Get the number of records successfully written to the store so far.
+     *
+     * @return number of records
+     */
+    public long getWrittenCount() {
+        return written.sum();
+    }
+
+    /**
+     * Get the number of changes dropped because the buffer was full.
+     *
+     * @return number of changes
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * Get the number of failed store writes so far.
+     *
+     * @return number of failed writes
+     */
+    public long getFailedWriteCount() {
+        return failedWrites.sum();
+    }
+}
@@ -0,0 +1,269 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
+
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * Runs background UI updates with a limited number of threads, giving
+ * priority to the UIs of active clients.
+ *
+ * Every task gets a deadline of its submission time plus the maximum delay
+ * for the current status of its monitor, and tasks run in deadline order. By
+ * default, tasks for ACTIVE clients have no delay and run first, while tasks
+ * for IDLE, INACTIVE and HIDDEN clients give way to them for up to their
+ * maximum delay. Once that has passed, they are ahead of any newer task, so
+ * no UI is starved. The executor is work-conserving: when there is no
+ * contention, every task runs right away.
+ *
+ * Tasks for the same UI that are waiting at the same time are run as one
+ * batch, with a single session lock.
+ *
+ * Default maximum delays: ACTIVE 0, IDLE 1 second, INACTIVE and HIDDEN 10
+ * seconds.
+ */
+public class PriorityAccessExecutor {
+
+    private static final Logger logger = Logger
+            .getLogger(PriorityAccessExecutor.class.getName());
+
+    /**
+     * Computes how long a task may be held back in favor of other tasks
+     */
+    public static interface DelayPolicy {
+        /**
+         * Get the maximum delay for a task submitted for the given monitor.
+         * Can take e.g. the time since the last status change into account.
+         *
+         * @param monitor
+         *            the monitor of the UI the task is for
+         * @return time in milliseconds
+         */
+        long getMaxDelay(ActivityMonitor monitor);
+    }
+
+    private static final class Task {
+        private final Runnable command;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        private Task(Runnable command) {
+            this.command = command;
+        }
+    }
+
+    private static final class Batch implements Comparable<Batch> {
+        private final UI ui;
+        private final long sequence;
+        private final List<Task> tasks = new ArrayList<>();
+        private long deadline;
+
+        private Batch(UI ui, long deadline, long sequence) {
+            this.ui = ui;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Batch other) {
+            int result = Long.compare(deadline, other.deadline);
+            return result != 0 ? result
+                    : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final Executor executor;
+    private final int parallelism;
+    private final long[] maxDelays = new long[ClientStatus.values().length];
+    private volatile DelayPolicy delayPolicy = monitor -> getMaxDelay(
+            monitor.getCurrentStatus());
+
+    // Guarded by this
+    private final TreeSet<Batch> queue = new TreeSet<>();
+    private final Map<UI, Batch> batches = new HashMap<>();
+    private long sequence = 0;
+    private int running = 0;
+
+    /**
+     * Create an executor that runs at most one task per available processor
+     * at a time, on the shared listener executor.
+     */
+    public PriorityAccessExecutor() {
+        this(ActivityMonitor.getDefaultListenerExecutor(),
+                Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Create an executor that runs at most the given number of tasks at a
+     * time on the given executor.
+     *
+     * @param executor
+     *            executor for running tasks
+     * @param parallelism
+     *            maximum number of tasks running at the same time
+     */
+    public PriorityAccessExecutor(Executor executor, int parallelism) {
+        this.executor = executor;
+        this.parallelism = Math.max(parallelism, 1);
+        setMaxDelay(ClientStatus.ACTIVE, 0);
+        setMaxDelay(ClientStatus.IDLE, 1000);
+        setMaxDelay(ClientStatus.INACTIVE, 10000);
+        setMaxDelay(ClientStatus.HIDDEN, 10000);
+    }
+
+    /**
+     * Set how long tasks for clients with the given status may be held back
+     * in favor of other tasks.
+     *
+     * @param status
+     *            a {@link ClientStatus} value
+     * @param msec
+     *            time in milliseconds
+     */
+    public synchronized void setMaxDelay(ClientStatus status, int msec) {
+        maxDelays[status.ordinal()] = Math.max(msec, 0);
+    }
+
+    /**
+     * Get how long tasks for clients with the given status may be held back.
+     *
+     * @param status
+     *            a {@link ClientStatus} value
+     * @return time in milliseconds
+     */
+    public synchronized int getMaxDelay(ClientStatus status) {
+        return (int) maxDelays[status.ordinal()];
+    }
+
+    /**
+     * Replace the per-status maximum delays with a custom policy.
+     *
+     * @param delayPolicy
+     *            a delay policy
+     */
+    public void setDelayPolicy(DelayPolicy delayPolicy) {
+        this.delayPolicy = delayPolicy;
+    }
+
+    /**
+     * Get the number of tasks waiting to run.
+     *
+     * @return number of tasks
+     */
+    public synchronized int getQueuedCount() {
+        int count = 0;
+        for (Batch batch : queue) {
+            count += batch.tasks.size();
+        }
+        return count;
+    }
+
+    /**
+     * Run a task with the UI of the monitor locked. The priority of the task
+     * is determined by the status of the monitor at the time of this call. Can
+     * be called from any thread.
+     *
+     * @param monitor
+     *            the monitor of the UI to update
+     * @param command
+     *            the task to run
+     * @return a future that can be used to check for task completion
+     * @throws UIDetachedException
+     *             if the monitor is no longer attached to a UI
+     */
+    public Future<Void> access(ActivityMonitor monitor, Runnable command) {
+        UI ui = monitor.getUI();
+        if (ui == null) {
+            throw new UIDetachedException();
+        }
+        long deadline = System.currentTimeMillis()
+                + delayPolicy.getMaxDelay(monitor);
+        Task task = new Task(command);
+        synchronized (this) {
+            Batch batch = batches.get(ui);
+            if (batch == null) {
+                batch = new Batch(ui, deadline, sequence++);
+                batches.put(ui, batch);
+                queue.add(batch);
+            } else if (deadline < batch.deadline) {
+                // Move the whole batch forward
+                queue.remove(batch);
+                batch.deadline = deadline;
+                queue.add(batch);
+            }
+            batch.tasks.add(task);
+        }
+        dispatch();
+        return task.future;
+    }
+
+    private void dispatch() {
+        while (true) {
+            Batch batch;
+            synchronized (this) {
+                if (running >= parallelism || queue.isEmpty()) {
+                    return;
+                }
+                batch = queue.pollFirst();
+                batches.remove(batch.ui);
+                running++;
+            }
+            try {
+                executor.execute(() -> run(batch));
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    running--;
+                }
+                fail(batch, e);
+                logger.log(Level.WARNING, "Executor rejected UI access", e);
+            }
+        }
+    }
+
+    private void run(Batch batch) {
+        try {
+            batch.ui.accessSynchronously(() -> {
+                for (Task task : batch.tasks) {
+                    try {
+                        task.command.run();
+                        task.future.complete(null);
+                    } catch (Throwable e) {
+                        // Also errors, which would otherwise leave the
+                        // future and anyone waiting on it hanging
+                        task.future.completeExceptionally(e);
+                        logger.log(Level.WARNING, "UI access task failed", e);
+                    }
+                }
+            });
+        } catch (UIDetachedException e) {
+            fail(batch, e);
+        } catch (RuntimeException | Error e) {
+            fail(batch, e);
+            throw e;
+        } finally {
+            synchronized (this) {
+                running--;
+            }
+            dispatch();
+        }
+    }
+
+    // Only completes the futures of tasks that have not run yet
+    private static void fail(Batch batch, Throwable e) {
+        for (Task task : batch.tasks) {
+            task.future.completeExceptionally(e);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
+
+import org.vaadin.addons.activitymonitor.client.shared.ActivityScheduler;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * Enforces the thresholds of a monitor on the server in
+ * {@link org.vaadin.addons.activitymonitor.client.shared.TimingMode#SERVER}
+ * mode. The client only reports the time of its last activity; the next due
+ * threshold is tracked with a single timeout on the shared
+ * {@link TimingWheel}.
+ *
+ * All methods must be called with the session locked.
+ */
+final class ServerTiming {
+
+    private final ActivityMonitor monitor;
+    private final ActivityScheduler scheduler;
+    private final TimingWheel wheel;
+    private final LongSupplier clock;
+    private final Executor executor;
+    private TimingWheel.Timeout timeout;
+
+    ServerTiming(ActivityMonitor monitor,
+            ActivityScheduler.Callback callback) {
+        this(monitor, callback, TimingWheel.shared(),
+                System::currentTimeMillis,
+                ListenerDispatcher.defaultExecutor());
+    }
+
+    /**
+     * Create a timing that schedules its timeouts on the given wheel, reads
+     * the server time in milliseconds from the given clock and locks the
+     * session for expired timeouts on the given executor.
+     */
+    ServerTiming(ActivityMonitor monitor, ActivityScheduler.Callback callback,
+            TimingWheel wheel, LongSupplier clock, Executor executor) {
+        this.monitor = monitor;
+        this.scheduler = new ActivityScheduler(callback);
+        this.wheel = wheel;
+        this.clock = clock;
+        this.executor = executor;
+    }
+
+    /**
+     * Start counting from now. The given status is taken over without
+     * reporting it, so that switching modes causes no spurious transitions.
+     */
+    void start(ClientStatus status) {
+        scheduler.reset(clock.getAsLong(), status);
+        reschedule();
+    }
+
+    void configure(int idleThreshold, int inactiveThreshold,
+            Map<String, Integer> customTimers) {
+        scheduler.configure(idleThreshold, inactiveThreshold, customTimers);
+    }
+
+    ActivityScheduler getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Record activity that happened the given number of milliseconds ago.
+     */
+    void activity(long age) {
+        long time = clock.getAsLong() - Math.max(age, 0);
+        if (time > scheduler.getLastActivity()) {
+            scheduler.onActivity(time);
+        }
+        reschedule();
+    }
+
+    /**
+     * Re-evaluate the thresholds and wait for the next one.
+     */
+    void reschedule() {
+        cancel();
+        long now = clock.getAsLong();
+        double deadline = scheduler.advance(now);
+        if (deadline == ActivityScheduler.NO_DEADLINE) {
+            return;
+        }
+        long delay = (long) Math.ceil(deadline - now);
+        timeout = wheel.schedule(this::expired, delay,
+                TimeUnit.MILLISECONDS);
+    }
+
+    void cancel() {
+        if (timeout != null) {
+            timeout.cancel();
+            timeout = null;
+        }
+    }
+
+    private void expired() {
+        // Runs on the ticker thread; locking the session may block, so hand
+        // it off
+        executor.execute(() -> {
+            UI ui = monitor.getUI();
+            if (ui == null) {
+                return;
+            }
+            try {
+                ui.access(() -> {
+                    if (monitor.getServerTiming() == this) {
+                        reschedule();
+                    }
+                });
+            } catch (UIDetachedException e) {
+                // Nothing to do
+            }
+        });
+    }
+}
@@ -0,0 +1,307 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.vaadin.server.Extension;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.UI;
+
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * Combines the status of all {@link ActivityMonitor} instances in a
+ * {@link VaadinSession}, e.g. one per browser tab, into a single session
+ * status.
+ *
+ * The aggregate is computed by an {@link AggregationPolicy}; by default the
+ * session is as active as its most active UI. Session status listeners are
+ * only invoked when the aggregate actually changes. With a settle time, a
+ * change is only reported if it still holds after that time, so per-UI
+ * transitions that cancel each other out - such as one tab going idle while
+ * another becomes active - are not reported at all.
+ *
+ * There is at most one aggregator per session; use
+ * {@link #get(VaadinSession)} to obtain it. Monitors attached to the session
+ * before or after the aggregator is created are included automatically.
+ */
+@SuppressWarnings("serial")
+public class SessionActivityAggregator implements Serializable {
+
+    /**
+     * Invoked whenever the aggregate status of a session changes
+     */
+    public static interface SessionStatusChangeListener extends Serializable {
+        void sessionStatusChanged(VaadinSession session, ClientStatus newStatus);
+    }
+
+    /**
+     * Computes the status of a session from the status of its UIs
+     */
+    public static interface AggregationPolicy extends Serializable {
+        ClientStatus aggregate(Collection<ClientStatus> statuses);
+    }
+
+    /**
+     * The session is as active as its most active UI. A session without UIs
+     * is inactive. {@link ClientStatus#HIDDEN} ranks between IDLE and
+     * INACTIVE.
+     */
+    public static final AggregationPolicy MOST_ACTIVE = statuses -> {
+        ClientStatus result = ClientStatus.INACTIVE;
+        for (ClientStatus status : statuses) {
+            if (rank(status) < rank(result)) {
+                result = status;
+            }
+        }
+        return result;
+    };
+
+    /**
+     * The session is as active as its least active UI. A session without UIs
+     * is inactive. {@link ClientStatus#HIDDEN} ranks between IDLE and
+     * INACTIVE.
+     */
+    public static final AggregationPolicy LEAST_ACTIVE = statuses -> {
+        if (statuses.isEmpty()) {
+            return ClientStatus.INACTIVE;
+        }
+        ClientStatus result = ClientStatus.ACTIVE;
+        for (ClientStatus status : statuses) {
+            if (rank(status) > rank(result)) {
+                result = status;
+            }
+        }
+        return result;
+    };
+
+    // Explicit ranking, so that the order of the enum constants does not
+    // matter
+    private static int rank(ClientStatus status) {
+        switch (status) {
+        case ACTIVE:
+            return 0;
+        case IDLE:
+            return 1;
+        case HIDDEN:
+            return 2;
+        case INACTIVE:
+        default:
+            return 3;
+        }
+    }
+
+    private final VaadinSession session;
+    private final Set<ActivityMonitor> monitors = new CopyOnWriteArraySet<>();
+    private final Set<SessionStatusChangeListener> listeners = new CopyOnWriteArraySet<>();
+
+    private volatile AggregationPolicy policy = MOST_ACTIVE;
+    private volatile int settleTime = 0;
+    private ClientStatus reportedStatus;
+    private transient ScheduledFuture<?> settleTask;
+
+    private SessionActivityAggregator(VaadinSession session) {
+        this.session = session;
+        for (UI ui : session.getUIs()) {
+            for (Extension extension : ui.getExtensions()) {
+                if (extension instanceof ActivityMonitor) {
+                    ActivityMonitor monitor = (ActivityMonitor) extension;
+                    monitors.add(monitor);
+                    monitor.setAggregator(this);
+                }
+            }
+        }
+        reportedStatus = computeStatus();
+    }
+
+    /**
+     * Get the aggregator of a session, creating it if needed. The session must
+     * be locked.
+     *
+     * @param session
+     *            a locked session
+     * @return the aggregator of the session
+     */
+    public static SessionActivityAggregator get(VaadinSession session) {
+        assert session.hasLock();
+        SessionActivityAggregator aggregator = session
+                .getAttribute(SessionActivityAggregator.class);
+        if (aggregator == null) {
+            aggregator = new SessionActivityAggregator(session);
+            session.setAttribute(SessionActivityAggregator.class, aggregator);
+        }
+        return aggregator;
+    }
+
+    static SessionActivityAggregator find(VaadinSession session) {
+        return session == null ? null
+                : session.getAttribute(SessionActivityAggregator.class);
+    }
+
+    void add(ActivityMonitor monitor) {
+        if (monitors.add(monitor)) {
+            monitor.setAggregator(this);
+            update();
+        }
+    }
+
+    void remove(ActivityMonitor monitor) {
+        if (monitors.remove(monitor)) {
+            monitor.setAggregator(null);
+            update();
+        }
+    }
+
+    void monitorStatusChanged() {
+        update();
+    }
+
+    /**
+     * Get the session this aggregator belongs to.
+     *
+     * @return a session
+     */
+    public VaadinSession getSession() {
+        return session;
+    }
+
+    /**
+     * Get the monitors currently included in the aggregate.
+     *
+     * @return a new list of monitors
+     */
+    public List<ActivityMonitor> getMonitors() {
+        return new ArrayList<>(monitors);
+    }
+
+    /**
+     * Get the last reported aggregate status of the session. Safe to call from
+     * any thread.
+     *
+     * @return a {@link ClientStatus} value
+     */
+    public synchronized ClientStatus getStatus() {
+        return reportedStatus;
+    }
+
+    /**
+     * Set the policy used for combining the status of the UIs.
+     *
+     * Default: {@link #MOST_ACTIVE}.
+     *
+     * @param policy
+     *            an aggregation policy
+     */
+    public void setAggregationPolicy(AggregationPolicy policy) {
+        this.policy = policy;
+        update();
+    }
+
+    /**
+     * Get the policy used for combining the status of the UIs.
+     *
+     * @return an aggregation policy
+     */
+    public AggregationPolicy getAggregationPolicy() {
+        return policy;
+    }
+
+    /**
+     * Set how long to wait after a UI changes status before the aggregate
+     * status is re-evaluated and reported. Changes that are reverted within
+     * this time are not reported. With a settle time, listeners are invoked
+     * from a background thread without the session lock.
+     *
+     * Set this to 0 to report every change immediately, from within the
+     * request that caused it.
+     *
+     * Default: 0.
+     *
+     * @param msec
+     *            time in milliseconds
+     */
+    public void setSettleTime(int msec) {
+        settleTime = Math.max(msec, 0);
+    }
+
+    /**
+     * Get the time to wait before the aggregate status is re-evaluated.
+     *
+     * @return time in milliseconds (default: 0).
+     */
+    public int getSettleTime() {
+        return settleTime;
+    }
+
+    /**
+     * Add a listener that gets triggered whenever the aggregate status of the
+     * session changes. Listeners can be added and removed from any thread.
+     *
+     * @param listener
+     *            a SessionStatusChangeListener instance (usually a lambda)
+     */
+    public void addSessionStatusChangeListener(
+            SessionStatusChangeListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Remove a previously added session status change listener.
+     *
+     * @param listener
+     *            a previously added SessionStatusChangeListener instance
+     */
+    public void removeSessionStatusChangeListener(
+            SessionStatusChangeListener listener) {
+        listeners.remove(listener);
+    }
+
+    private ClientStatus computeStatus() {
+        List<ClientStatus> statuses = new ArrayList<>(monitors.size());
+        for (ActivityMonitor monitor : monitors) {
+            statuses.add(monitor.getCurrentStatus());
+        }
+        return policy.aggregate(statuses);
+    }
+
+    private void update() {
+        int delay = settleTime;
+        synchronized (this) {
+            if (delay > 0) {
+                if (settleTask == null) {
+                    settleTask = SharedScheduler.get().schedule(this::settle,
+                            delay, TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+        }
+        report();
+    }
+
+    private void settle() {
+        synchronized (this) {
+            settleTask = null;
+        }
+        report();
+    }
+
+    private void report() {
+        ClientStatus status;
+        synchronized (this) {
+            status = computeStatus();
+            if (status == reportedStatus) {
+                return;
+            }
+            reportedStatus = status;
+        }
+        for (SessionStatusChangeListener l : listeners) {
+            l.sessionStatusChanged(session, status);
+        }
+    }
+}
@@ -0,0 +1,328 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.vaadin.server.Extension;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.server.WrappedSession;
+import com.vaadin.ui.UI;
+
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * A JVM-wide scheduler that closes sessions in which every
+ * {@link ActivityMonitor} has been {@link ClientStatus#INACTIVE} for longer
+ * than a grace period.
+ *
+ * The scheduler is opt-in. Once enabled with {@link #setEnabled(boolean)}, it
+ * is fed by the status transitions of the monitors rather than by polling:
+ * when the last monitor of a session becomes inactive, the session is added
+ * to an index ordered by eviction deadline, and any other transition removes
+ * it again. Both operations take O(log n) time. A single timer waits for the
+ * nearest deadline, so only sessions that are actually due are locked and
+ * closed.
+ *
+ * Before a session is closed, the {@link EvictionVeto} is consulted; a vetoed
+ * session gets another grace period.
+ */
+public final class SessionEvictionScheduler {
+
+    private static final Logger logger = Logger
+            .getLogger(SessionEvictionScheduler.class.getName());
+
+    private static final SessionEvictionScheduler INSTANCE = new SessionEvictionScheduler();
+
+    private static volatile boolean enabled = false;
+
+    /**
+     * Decides whether a due session may be closed
+     */
+    public static interface EvictionVeto {
+        /**
+         * Invoked with the session locked, right before it is closed.
+         *
+         * @param session
+         *            the session about to be closed
+         * @return true to keep the session open for another grace period
+         */
+        boolean vetoEviction(VaadinSession session);
+    }
+
+    private static final class Entry implements Comparable<Entry> {
+        private final VaadinSession session;
+        private final long deadline;
+        private final long sequence;
+
+        private Entry(VaadinSession session, long deadline, long sequence) {
+            this.session = session;
+            this.deadline = deadline;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Entry other) {
+            int result = Long.compare(deadline, other.deadline);
+            return result != 0 ? result
+                    : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final NavigableSet<Entry> deadlines = new ConcurrentSkipListSet<>();
+    private final Map<VaadinSession, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder vetoes = new LongAdder();
+
+    private volatile ToIntFunction<VaadinSession> gracePeriod = session -> 1800000;
+    private volatile EvictionVeto veto;
+    private ScheduledFuture<?> wakeUpTask;
+    private long wakeUpTime = Long.MAX_VALUE;
+
+    private SessionEvictionScheduler() {
+    }
+
+    /**
+     * Get the scheduler instance.
+     *
+     * @return the JVM-wide scheduler
+     */
+    public static SessionEvictionScheduler get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Enable or disable eviction of inactive sessions. Sessions that are
+     * already scheduled for eviction stay scheduled until one of their
+     * monitors changes status.
+     *
+     * Default: false.
+     *
+     * @param enabled
+     *            true to track monitor status transitions
+     */
+    public static void setEnabled(boolean enabled) {
+        SessionEvictionScheduler.enabled = enabled;
+    }
+
+    /**
+     * Return true if monitor status transitions are tracked.
+     *
+     * @return a boolean value.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Set how long all monitors of a session must be inactive before the
+     * session is closed. The grace period counts from the time the last
+     * monitor became inactive.
+     *
+     * Default: 30 minutes (1800000 msec).
+     *
+     * @param msec
+     *            time in milliseconds
+     */
+    public void setGracePeriod(int msec) {
+        int period = Math.max(msec, 0);
+        gracePeriod = session -> period;
+    }
+
+    /**
+     * Set a function that computes the grace period of each session, e.g. to
+     * keep sessions of logged-in users around for longer. The function is
+     * invoked with the session locked whenever the session becomes inactive.
+     *
+     * @param gracePeriod
+     *            returns the grace period of a session in milliseconds
+     */
+    public void setGracePeriod(ToIntFunction<VaadinSession> gracePeriod) {
+        this.gracePeriod = gracePeriod;
+    }
+
+    /**
+     * Set the callback that can keep a due session open.
+     *
+     * @param veto
+     *            an eviction veto, or null to close every due session
+     */
+    public void setEvictionVeto(EvictionVeto veto) {
+        this.veto = veto;
+    }
+
+    /**
+     * Get the number of sessions closed by this scheduler.
+     *
+     * @return number of evictions
+     */
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * Get the number of evictions prevented by the {@link EvictionVeto}.
+     *
+     * @return number of vetoes
+     */
+    public long getVetoCount() {
+        return vetoes.sum();
+    }
+
+    /**
+     * Get the number of sessions currently waiting for eviction.
+     *
+     * @return number of sessions
+     */
+    public int getPendingCount() {
+        return entries.size();
+    }
+
+    /**
+     * Re-evaluate a session after one of its monitors was attached, detached
+     * or changed status. Must be called with the session locked.
+     *
+     * @param session
+     *            the session
+     * @param excluded
+     *            a monitor that is being detached, or null
+     */
+    void update(VaadinSession session, ActivityMonitor excluded) {
+        if (session == null) {
+            return;
+        }
+        long inactiveSince = getInactiveSince(session, excluded);
+        if (inactiveSince == Long.MIN_VALUE) {
+            cancel(session);
+            return;
+        }
+        long deadline = inactiveSince + gracePeriod.applyAsInt(session);
+        Entry entry = entries.get(session);
+        if (entry == null || entry.deadline != deadline) {
+            schedule(session, deadline);
+        }
+    }
+
+    /**
+     * Get the time the last monitor of the session became inactive, or
+     * Long.MIN_VALUE if there are no monitors or any of them is not inactive.
+     */
+    private static long getInactiveSince(VaadinSession session,
+            ActivityMonitor excluded) {
+        long inactiveSince = Long.MIN_VALUE;
+        for (UI ui : session.getUIs()) {
+            for (Extension extension : ui.getExtensions()) {
+                if (extension instanceof ActivityMonitor
+                        && extension != excluded) {
+                    ActivityMonitor monitor = (ActivityMonitor) extension;
+                    if (monitor.getCurrentStatus() != ClientStatus.INACTIVE) {
+                        return Long.MIN_VALUE;
+                    }
+                    inactiveSince = Math.max(inactiveSince,
+                            monitor.getStatusChangeTime());
+                }
+            }
+        }
+        return inactiveSince;
+    }
+
+    private void schedule(VaadinSession session, long deadline) {
+        Entry entry = new Entry(session, deadline,
+                sequence.incrementAndGet());
+        Entry previous = entries.put(session, entry);
+        if (previous != null) {
+            deadlines.remove(previous);
+        }
+        deadlines.add(entry);
+        wakeUpAt(deadline);
+    }
+
+    private void cancel(VaadinSession session) {
+        Entry entry = entries.remove(session);
+        if (entry != null) {
+            // An early wake-up finds nothing to do and goes back to sleep
+            deadlines.remove(entry);
+        }
+    }
+
+    private synchronized void wakeUpAt(long time) {
+        if (wakeUpTask != null && wakeUpTime <= time) {
+            return;
+        }
+        if (wakeUpTask != null) {
+            wakeUpTask.cancel(false);
+        }
+        wakeUpTime = time;
+        wakeUpTask = SharedScheduler.get().schedule(this::wakeUp,
+                Math.max(0, time - System.currentTimeMillis()),
+                TimeUnit.MILLISECONDS);
+    }
+
+    private void wakeUp() {
+        synchronized (this) {
+            wakeUpTask = null;
+            wakeUpTime = Long.MAX_VALUE;
+        }
+        long now = System.currentTimeMillis();
+        Entry entry;
+        while ((entry = deadlines.pollFirst()) != null) {
+            if (entry.deadline > now) {
+                deadlines.add(entry);
+                wakeUpAt(entry.deadline);
+                return;
+            }
+            if (entries.remove(entry.session, entry)) {
+                evictLater(entry.session);
+            }
+        }
+    }
+
+    private void evictLater(VaadinSession session) {
+        // Runs on the shared scheduler thread; closing a session may take a
+        // while, so hand it off
+        ListenerDispatcher.defaultExecutor().execute(() -> {
+            try {
+                session.access(() -> evict(session));
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Failed to evict session", e);
+            }
+        });
+    }
+
+    private void evict(VaadinSession session) {
+        if (session.getState() != VaadinSession.State.OPEN) {
+            return;
+        }
+        long inactiveSince = getInactiveSince(session, null);
+        if (inactiveSince == Long.MIN_VALUE || entries.containsKey(session)) {
+            // Became active or was rescheduled in the meantime
+            return;
+        }
+        EvictionVeto veto = this.veto;
+        if (veto != null && veto.vetoEviction(session)) {
+            vetoes.increment();
+            schedule(session, System.currentTimeMillis()
+                    + gracePeriod.applyAsInt(session));
+            return;
+        }
+        evictions.increment();
+        session.close();
+        WrappedSession wrappedSession = session.getSession();
+        if (wrappedSession != null) {
+            try {
+                wrappedSession.invalidate();
+            } catch (IllegalStateException e) {
+                // Already invalidated
+            }
+        }
+    }
+}
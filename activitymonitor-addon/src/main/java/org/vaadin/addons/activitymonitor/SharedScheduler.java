@@ -0,0 +1,34 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * Lazily created, JVM-wide scheduler used by the add-on's background helpers
+ * when no executor is given explicitly. Runs on a single daemon thread, so
+ * tasks scheduled on it must be short.
+ */
+final class SharedScheduler {
+
+    private static class Holder {
+        private static final ScheduledExecutorService INSTANCE = create();
+    }
+
+    private SharedScheduler() {
+    }
+
+    static ScheduledExecutorService get() {
+        return Holder.INSTANCE;
+    }
+
+    private static ScheduledExecutorService create() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(
+                1, r -> {
+                    Thread t = new Thread(r, "activitymonitor-scheduler");
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+}
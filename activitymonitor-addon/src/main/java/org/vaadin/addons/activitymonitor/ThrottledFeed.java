@@ -0,0 +1,240 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
+
+import org.vaadin.addons.activitymonitor.ActivityMonitor.ClientStatusChangeListener;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * Delivers a stream of values to a UI at a rate that depends on the client's
+ * activity status.
+ *
+ * Values can be pushed from any thread. Each status has a minimum interval
+ * between deliveries; values pushed faster than that are coalesced so that
+ * only the latest one is delivered. Deliveries run through
+ * {@link UI#access(Runnable)}, so the consumer may update components
+ * directly. When the client becomes active again, a pending value is
+ * delivered immediately. Values pushed while an earlier one is still waiting
+ * for the UI lock are coalesced too, even with an interval of 0.
+ *
+ * Default intervals: ACTIVE 0 (every value), IDLE 1 second, INACTIVE and
+ * HIDDEN 30 seconds.
+ *
+ * @param <T>
+ *            type of the pushed values
+ */
+public class ThrottledFeed<T> {
+
+    private static final Object NONE = new Object();
+
+    private final ActivityMonitor monitor;
+    private final Consumer<T> consumer;
+    private final ScheduledExecutorService scheduler;
+    private final LongSupplier clock;
+    private final ClientStatusChangeListener statusListener = this::statusChanged;
+
+    private final AtomicReference<Object> pending = new AtomicReference<>(
+            NONE);
+    // Latest taken value that the consumer has not received yet
+    private final AtomicReference<Object> ready = new AtomicReference<>(NONE);
+    private final long[] intervals = new long[ClientStatus.values().length];
+    private long lastDelivery = Long.MIN_VALUE;
+    private ScheduledFuture<?> flushTask;
+    private boolean closed = false;
+
+    /**
+     * Create a feed that runs its timers on a shared background thread.
+     *
+     * @param monitor
+     *            the monitor of the UI that receives the values
+     * @param consumer
+     *            invoked with the UI locked for every delivered value
+     */
+    public ThrottledFeed(ActivityMonitor monitor, Consumer<T> consumer) {
+        this(monitor, consumer, SharedScheduler.get());
+    }
+
+    /**
+     * Create a feed that runs its timers on the given scheduler.
+     *
+     * @param monitor
+     *            the monitor of the UI that receives the values
+     * @param consumer
+     *            invoked with the UI locked for every delivered value
+     * @param scheduler
+     *            scheduler for delayed deliveries
+     */
+    public ThrottledFeed(ActivityMonitor monitor, Consumer<T> consumer,
+            ScheduledExecutorService scheduler) {
+        this(monitor, consumer, scheduler, System::nanoTime);
+    }
+
+    ThrottledFeed(ActivityMonitor monitor, Consumer<T> consumer,
+            ScheduledExecutorService scheduler, LongSupplier clock) {
+        this.monitor = monitor;
+        this.consumer = consumer;
+        this.scheduler = scheduler;
+        this.clock = clock;
+        setMinUpdateInterval(ClientStatus.ACTIVE, 0);
+        setMinUpdateInterval(ClientStatus.IDLE, 1000);
+        setMinUpdateInterval(ClientStatus.INACTIVE, 30000);
+        setMinUpdateInterval(ClientStatus.HIDDEN, 30000);
+        monitor.addClientStatusChangeListener(statusListener);
+    }
+
+    /**
+     * Set the minimum time between two deliveries while the client has the
+     * given status. Set this to 0 to deliver every value.
+     *
+     * @param status
+     *            a {@link ClientStatus} value
+     * @param msec
+     *            time in milliseconds
+     */
+    public synchronized void setMinUpdateInterval(ClientStatus status,
+            int msec) {
+        intervals[status.ordinal()] = TimeUnit.MILLISECONDS
+                .toNanos(Math.max(msec, 0));
+    }
+
+    /**
+     * Get the minimum time between two deliveries for the given status.
+     *
+     * @param status
+     *            a {@link ClientStatus} value
+     * @return time in milliseconds
+     */
+    public synchronized int getMinUpdateInterval(ClientStatus status) {
+        return (int) TimeUnit.NANOSECONDS
+                .toMillis(intervals[status.ordinal()]);
+    }
+
+    /**
+     * Push a new value. The value replaces any value that has not been
+     * delivered yet. Can be called from any thread.
+     *
+     * @param value
+     *            the new value
+     */
+    public void push(T value) {
+        pending.set(value);
+        schedule();
+    }
+
+    /**
+     * Deliver the pending value, if any, right away regardless of the current
+     * interval.
+     */
+    public void flush() {
+        boolean taken;
+        synchronized (this) {
+            cancelFlushTask();
+            taken = take();
+        }
+        if (taken) {
+            deliver();
+        }
+    }
+
+    /**
+     * Stop the feed. Pending values are discarded and the status listener is
+     * removed from the monitor.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            cancelFlushTask();
+        }
+        pending.set(NONE);
+        ready.set(NONE);
+        monitor.removeClientStatusChangeListener(statusListener);
+    }
+
+    private void schedule() {
+        boolean taken;
+        synchronized (this) {
+            if (closed || flushTask != null) {
+                return;
+            }
+            long interval = intervals[monitor.getCurrentStatus().ordinal()];
+            long delay = lastDelivery == Long.MIN_VALUE ? 0
+                    : lastDelivery + interval - clock.getAsLong();
+            if (delay > 0) {
+                flushTask = scheduler.schedule(this::flushTaskFired, delay,
+                        TimeUnit.NANOSECONDS);
+                return;
+            }
+            // Taken under the lock, so a concurrent push sees the new
+            // delivery time and waits for the next interval
+            taken = take();
+        }
+        if (taken) {
+            deliver();
+        }
+    }
+
+    private void flushTaskFired() {
+        synchronized (this) {
+            flushTask = null;
+        }
+        // The status may have changed since the task was scheduled
+        schedule();
+    }
+
+    private void cancelFlushTask() {
+        if (flushTask != null) {
+            flushTask.cancel(false);
+            flushTask = null;
+        }
+    }
+
+    // Guarded by this; returns true if a delivery has to be started
+    private boolean take() {
+        if (closed) {
+            return false;
+        }
+        Object value = pending.getAndSet(NONE);
+        if (value == NONE) {
+            return false;
+        }
+        lastDelivery = clock.getAsLong();
+        // Replaced under the lock, so a value taken later always wins even
+        // if its delivery is started first
+        return ready.getAndSet(value) == NONE;
+    }
+
+    private void deliver() {
+        UI ui = monitor.getUI();
+        if (ui == null) {
+            close();
+            return;
+        }
+        try {
+            ui.access(this::consume);
+        } catch (UIDetachedException e) {
+            close();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void consume() {
+        Object value = ready.getAndSet(NONE);
+        if (value != NONE) {
+            consumer.accept((T) value);
+        }
+    }
+
+    private void statusChanged(ClientStatus status) {
+        if (status == ClientStatus.ACTIVE) {
+            flush();
+        }
+    }
+}
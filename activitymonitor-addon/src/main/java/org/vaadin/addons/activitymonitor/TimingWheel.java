@@ -0,0 +1,297 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hashed timing wheel with O(1) schedule and cancel, driven by a single
+ * ticker thread.
+ *
+ * Timeouts are hashed into a fixed number of buckets by their deadline tick;
+ * timeouts that are more than one revolution away keep a count of remaining
+ * rounds. Scheduling and cancelling only add the timeout to a lock-free queue;
+ * the ticker thread moves them into and out of the buckets. Precision is
+ * limited to the tick duration.
+ *
+ * Tasks run on the ticker thread and must be short; anything that may block,
+ * such as locking a session, should be handed off to another executor.
+ */
+final class TimingWheel {
+
+    private static final Logger logger = Logger
+            .getLogger(TimingWheel.class.getName());
+
+    private static final int INIT = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    /**
+     * A scheduled task
+     */
+    static final class Timeout {
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(INIT);
+
+        // Owned by the ticker thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the timeout.
+         *
+         * @return true if the timeout was cancelled, false if it has already
+         *         expired or been cancelled
+         */
+        boolean cancel() {
+            if (!state.compareAndSet(INIT, CANCELLED)) {
+                return false;
+            }
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    /**
+     * Doubly-linked list of timeouts, owned by the ticker thread
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = timeout.next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        void expire(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0
+                        && timeout.deadline <= deadline) {
+                    remove(timeout);
+                    if (timeout.state.compareAndSet(INIT, EXPIRED)) {
+                        try {
+                            timeout.task.run();
+                        } catch (RuntimeException e) {
+                            logger.log(Level.WARNING, "Timeout task failed",
+                                    e);
+                        }
+                    }
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+    }
+
+    private static class SharedHolder {
+        private static final TimingWheel INSTANCE = new TimingWheel(100,
+                TimeUnit.MILLISECONDS, 512);
+    }
+
+    private final long tickNanos;
+    private final Bucket[] buckets;
+    private final int mask;
+    private final LongSupplier clock;
+    private final long startTime;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private Thread ticker;
+    private long tick = 0;
+
+    /**
+     * Create a new wheel and start its ticker thread.
+     *
+     * @param tickDuration
+     *            duration of a tick
+     * @param unit
+     *            unit of the tick duration
+     * @param wheelSize
+     *            number of buckets, rounded up to a power of two
+     */
+    TimingWheel(long tickDuration, TimeUnit unit, int wheelSize) {
+        this(tickDuration, unit, wheelSize, System::nanoTime);
+        ticker = new Thread(this::run, "activitymonitor-timingwheel");
+        ticker.setDaemon(true);
+        ticker.start();
+    }
+
+    /**
+     * Create a new wheel without a ticker thread. Due ticks only run when
+     * {@link #advance()} is called.
+     *
+     * @param tickDuration
+     *            duration of a tick
+     * @param unit
+     *            unit of the tick duration
+     * @param wheelSize
+     *            number of buckets, rounded up to a power of two
+     * @param clock
+     *            source of the current time in nanoseconds
+     */
+    TimingWheel(long tickDuration, TimeUnit unit, int wheelSize,
+            LongSupplier clock) {
+        this.clock = clock;
+        startTime = clock.getAsLong();
+        tickNanos = unit.toNanos(tickDuration);
+        int size = Integer.highestOneBit(Math.max(wheelSize, 1) - 1) << 1;
+        buckets = new Bucket[Math.max(size, 1)];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Bucket();
+        }
+        mask = buckets.length - 1;
+    }
+
+    /**
+     * Get the JVM-wide wheel, with a tick of 100 milliseconds.
+     *
+     * @return the shared wheel
+     */
+    static TimingWheel shared() {
+        return SharedHolder.INSTANCE;
+    }
+
+    /**
+     * Schedule a task to run once after the given delay.
+     *
+     * @param task
+     *            the task to run on the ticker thread
+     * @param delay
+     *            delay from now
+     * @param unit
+     *            unit of the delay
+     * @return a handle for cancelling the task
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = clock.getAsLong() - startTime
+                + unit.toNanos(Math.max(delay, 0));
+        Timeout timeout = new Timeout(this, task, deadline);
+        added.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Stop the ticker thread. Pending timeouts never run.
+     */
+    void stop() {
+        if (ticker != null) {
+            ticker.interrupt();
+        }
+    }
+
+    /**
+     * Run all ticks that are due according to the clock, on the calling
+     * thread. Only for wheels without a ticker thread.
+     */
+    void advance() {
+        long now = clock.getAsLong() - startTime;
+        while (tickNanos * (tick + 1) <= now) {
+            expireTick(now);
+        }
+    }
+
+    private void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            long now = waitForNextTick();
+            if (now < 0) {
+                return;
+            }
+            expireTick(now);
+        }
+    }
+
+    private void expireTick(long now) {
+        removeCancelled();
+        transferAdded();
+        buckets[(int) (tick & mask)].expire(now);
+        tick++;
+    }
+
+    private long waitForNextTick() {
+        long deadline = tickNanos * (tick + 1);
+        while (true) {
+            long now = clock.getAsLong() - startTime;
+            long sleep = deadline - now;
+            if (sleep <= 0) {
+                return now;
+            }
+            try {
+                TimeUnit.NANOSECONDS.sleep(sleep);
+            } catch (InterruptedException e) {
+                return -1;
+            }
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            if (timeout.isCancelled()) {
+                continue;
+            }
+            long ticks = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (ticks - tick) / buckets.length;
+            // Deadlines in the past go to the current bucket
+            long target = Math.max(ticks, tick);
+            buckets[(int) (target & mask)].add(timeout);
+        }
+    }
+}
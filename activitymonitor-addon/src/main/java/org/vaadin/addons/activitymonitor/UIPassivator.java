@@ -0,0 +1,430 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.vaadin.shared.Registration;
+import com.vaadin.ui.Component;
+import com.vaadin.ui.CssLayout;
+import com.vaadin.ui.UI;
+import com.vaadin.ui.UIDetachedException;
+
+import org.vaadin.addons.activitymonitor.ActivityMonitor.ClientStatusChangeListener;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * Releases the content of a UI while its client is inactive, and rebuilds it
+ * when the client becomes active again.
+ *
+ * Once the client has been {@link ClientStatus#INACTIVE} for the passivation
+ * delay, the {@link PassivationHandler} is asked for a small snapshot of the
+ * UI, e.g. the current view and selection, and the content of the UI is
+ * replaced with a lightweight placeholder. The original component tree, along
+ * with its data providers and cached data, can then be garbage collected.
+ * When the client reports {@link ClientStatus#ACTIVE} again, the handler
+ * rebuilds the content from the snapshot.
+ *
+ * Both passivation and restoration run through {@link UI#access(Runnable)}.
+ *
+ * The snapshot is kept in the placeholder, so a passivated UI can be
+ * serialized along with it. The passivator itself is not serialized. After
+ * the session has been deserialized, e.g. from an
+ * {@link ActivityMonitor.ListenerRestorer}, create a new passivator with the
+ * same handler; it restores a passivated UI once the client is active again.
+ *
+ * @param <S>
+ *            type of the snapshot
+ */
+public class UIPassivator<S extends Serializable> {
+
+    /**
+     * Captures and restores the state of a passivated UI. Both methods are
+     * invoked with the UI locked.
+     *
+     * @param <S>
+     *            type of the snapshot
+     */
+    public static interface PassivationHandler<S extends Serializable> {
+
+        /**
+         * Capture everything needed to rebuild the content of the UI. Invoked
+         * before the content is replaced with the placeholder.
+         *
+         * @param ui
+         *            the UI being passivated
+         * @return a snapshot, which should not reference the content itself;
+         *         it is serialized along with the UI
+         */
+        S passivate(UI ui);
+
+        /**
+         * Rebuild the content of the UI from a snapshot.
+         *
+         * @param ui
+         *            the UI being restored
+         * @param snapshot
+         *            the snapshot returned by {@link #passivate(UI)}
+         * @return the new content of the UI
+         */
+        Component restore(UI ui, S snapshot);
+    }
+
+    /**
+     * Content of a passivated UI: the placeholder, along with the snapshot
+     * for rebuilding the original content.
+     */
+    @SuppressWarnings("serial")
+    private static final class Placeholder extends CssLayout {
+        private final Serializable snapshot;
+
+        private Placeholder(Component placeholder, Serializable snapshot) {
+            super(placeholder);
+            this.snapshot = snapshot;
+            setSizeFull();
+        }
+    }
+
+    private static final LongAdder totalPassivations = new LongAdder();
+    private static final LongAdder totalRestorations = new LongAdder();
+    private static final LongAdder totalReclaimedBytes = new LongAdder();
+    private static final LongAdder passivatedUIs = new LongAdder();
+
+    private final ActivityMonitor monitor;
+    private final PassivationHandler<S> handler;
+    private final ScheduledExecutorService scheduler;
+    private final ClientStatusChangeListener statusListener = this::statusChanged;
+
+    private volatile int passivationDelay = 300000;
+    private volatile Supplier<Component> placeholder = CssLayout::new;
+    private volatile boolean measureReclaimedBytes = false;
+    private ScheduledFuture<?> passivationTask;
+    private Registration detachRegistration;
+    private boolean closed = false;
+
+    // Only accessed with the UI locked; true if this passivator counts the
+    // UI as passivated
+    private boolean counted = false;
+
+    private final LongAdder passivations = new LongAdder();
+    private final LongAdder reclaimedBytes = new LongAdder();
+
+    /**
+     * Create a passivator that runs its timer on a shared background thread.
+     *
+     * @param monitor
+     *            the monitor of the UI to passivate
+     * @param handler
+     *            captures and restores the state of the UI
+     */
+    public UIPassivator(ActivityMonitor monitor,
+            PassivationHandler<S> handler) {
+        this(monitor, handler, SharedScheduler.get());
+    }
+
+    /**
+     * Create a passivator that runs its timer on the given scheduler.
+     *
+     * @param monitor
+     *            the monitor of the UI to passivate
+     * @param handler
+     *            captures and restores the state of the UI
+     * @param scheduler
+     *            scheduler for the passivation delay
+     */
+    public UIPassivator(ActivityMonitor monitor, PassivationHandler<S> handler,
+            ScheduledExecutorService scheduler) {
+        this.monitor = monitor;
+        this.handler = handler;
+        this.scheduler = scheduler;
+        monitor.addClientStatusChangeListener(statusListener);
+        UI ui = monitor.getUI();
+        if (ui != null) {
+            detachRegistration = DetachHook.add(ui, this::detached);
+        }
+        if (monitor.getCurrentStatus() == ClientStatus.INACTIVE) {
+            schedulePassivation();
+        }
+    }
+
+    /**
+     * Set how long the client must stay inactive before the UI is passivated.
+     * Takes effect the next time the client becomes inactive.
+     *
+     * Default: 5 minutes (300000 msec).
+     *
+     * @param msec
+     *            time in milliseconds
+     */
+    public void setPassivationDelay(int msec) {
+        passivationDelay = Math.max(msec, 0);
+    }
+
+    /**
+     * Get how long the client must stay inactive before the UI is passivated.
+     *
+     * @return time in milliseconds (default: 300000).
+     */
+    public int getPassivationDelay() {
+        return passivationDelay;
+    }
+
+    /**
+     * Set the factory for the component that replaces the content of a
+     * passivated UI. The placeholder is what the user sees until the content
+     * has been restored, so it should be cheap to create and keep.
+     *
+     * Default: an empty {@link CssLayout}.
+     *
+     * @param placeholder
+     *            a placeholder factory
+     */
+    public void setPlaceholder(Supplier<Component> placeholder) {
+        this.placeholder = placeholder;
+    }
+
+    /**
+     * Set whether to estimate the memory released by each passivation. The
+     * estimate is the serialized size of the released content minus the
+     * serialized size of the snapshot, which is only a rough approximation of
+     * the heap actually released. Content that is not serializable is counted
+     * as 0 bytes.
+     *
+     * The content is serialized with the UI locked, so this can hold the lock
+     * for a long time with a large component tree. Meant for sizing
+     * passivation in tests and staging rather than for production.
+     *
+     * Default: false.
+     *
+     * @param measure
+     *            true to estimate reclaimed memory
+     */
+    public void setMeasureReclaimedBytes(boolean measure) {
+        measureReclaimedBytes = measure;
+    }
+
+    /**
+     * Check whether the UI is currently passivated. Must be called with the
+     * UI locked.
+     *
+     * @return true if the content has been replaced with the placeholder
+     */
+    public boolean isPassivated() {
+        UI ui = monitor.getUI();
+        return ui != null && ui.getContent() instanceof Placeholder;
+    }
+
+    /**
+     * Get the number of times this UI has been passivated.
+     *
+     * @return number of passivations
+     */
+    public long getPassivationCount() {
+        return passivations.sum();
+    }
+
+    /**
+     * Get the approximate memory released by passivating this UI, summed over
+     * all passivations. Always 0 unless measuring is enabled with
+     * {@link #setMeasureReclaimedBytes(boolean)}.
+     *
+     * @return estimated number of bytes
+     */
+    public long getReclaimedBytes() {
+        return reclaimedBytes.sum();
+    }
+
+    /**
+     * Get the number of UI passivations in this JVM.
+     *
+     * @return number of passivations
+     */
+    public static long getTotalPassivations() {
+        return totalPassivations.sum();
+    }
+
+    /**
+     * Get the number of UI restorations in this JVM.
+     *
+     * @return number of restorations
+     */
+    public static long getTotalRestorations() {
+        return totalRestorations.sum();
+    }
+
+    /**
+     * Get the approximate memory released by all passivations in this JVM
+     * that were measured.
+     *
+     * @return estimated number of bytes
+     */
+    public static long getTotalReclaimedBytes() {
+        return totalReclaimedBytes.sum();
+    }
+
+    /**
+     * Get the number of UIs in this JVM that are currently passivated. UIs
+     * that were deserialized in passivated form are not counted.
+     *
+     * @return number of UIs
+     */
+    public static long getPassivatedUICount() {
+        return passivatedUIs.sum();
+    }
+
+    /**
+     * Passivate the UI right away, regardless of the client status. Must be
+     * called with the UI locked.
+     */
+    public void passivate() {
+        UI ui = monitor.getUI();
+        if (ui == null || isPassivated()) {
+            return;
+        }
+        Component content = ui.getContent();
+        S state = handler.passivate(ui);
+        ui.setContent(new Placeholder(placeholder.get(), state));
+        counted = true;
+        if (measureReclaimedBytes) {
+            // The content is detached now, so the UI is not included
+            long bytes = Math.max(0,
+                    serializedSize(content) - serializedSize(state));
+            reclaimedBytes.add(bytes);
+            totalReclaimedBytes.add(bytes);
+        }
+        passivations.increment();
+        totalPassivations.increment();
+        passivatedUIs.increment();
+    }
+
+    /**
+     * Restore a passivated UI right away, regardless of the client status.
+     * Must be called with the UI locked.
+     */
+    public void restore() {
+        UI ui = monitor.getUI();
+        if (ui == null || !isPassivated()) {
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        S state = (S) ((Placeholder) ui.getContent()).snapshot;
+        if (counted) {
+            counted = false;
+            passivatedUIs.decrement();
+        }
+        totalRestorations.increment();
+        ui.setContent(handler.restore(ui, state));
+    }
+
+    /**
+     * Stop passivating the UI. A passivated UI is not restored; call
+     * {@link #restore()} first if needed. The status listener is removed from
+     * the monitor.
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            cancelPassivation();
+        }
+        monitor.removeClientStatusChangeListener(statusListener);
+        if (detachRegistration != null) {
+            detachRegistration.remove();
+            detachRegistration = null;
+        }
+    }
+
+    private void detached() {
+        if (counted) {
+            counted = false;
+            passivatedUIs.decrement();
+        }
+        close();
+    }
+
+    private void statusChanged(ClientStatus status) {
+        synchronized (this) {
+            cancelPassivation();
+        }
+        if (status == ClientStatus.INACTIVE) {
+            schedulePassivation();
+        } else if (status == ClientStatus.ACTIVE) {
+            access(this::restore);
+        }
+    }
+
+    private synchronized void schedulePassivation() {
+        if (closed || passivationTask != null) {
+            return;
+        }
+        passivationTask = scheduler.schedule(this::passivationTaskFired,
+                passivationDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void cancelPassivation() {
+        if (passivationTask != null) {
+            passivationTask.cancel(false);
+            passivationTask = null;
+        }
+    }
+
+    private void passivationTaskFired() {
+        synchronized (this) {
+            passivationTask = null;
+            if (closed) {
+                return;
+            }
+        }
+        access(() -> {
+            // The client may have come back in the meantime
+            if (monitor.getCurrentStatus() == ClientStatus.INACTIVE) {
+                passivate();
+            }
+        });
+    }
+
+    private void access(Runnable command) {
+        UI ui = monitor.getUI();
+        if (ui == null) {
+            close();
+            return;
+        }
+        try {
+            ui.access(command);
+        } catch (UIDetachedException e) {
+            close();
+        }
+    }
+
+    private static long serializedSize(Object object) {
+        if (object == null) {
+            return 0;
+        }
+        CountingOutputStream counter = new CountingOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(counter)) {
+            out.writeObject(object);
+        } catch (IOException e) {
+            return 0;
+        }
+        return counter.count;
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
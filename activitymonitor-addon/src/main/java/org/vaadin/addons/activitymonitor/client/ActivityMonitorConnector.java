@@ -1,23 +1,35 @@
 package org.vaadin.addons.activitymonitor.client;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
+import org.vaadin.addons.activitymonitor.client.shared.ActivityEvent;
+import org.vaadin.addons.activitymonitor.client.shared.ActivityIntensity;
+import org.vaadin.addons.activitymonitor.client.shared.ActivityMonitorClientRPC;
 import org.vaadin.addons.activitymonitor.client.shared.ActivityMonitorRPC;
 import org.vaadin.addons.activitymonitor.client.shared.ActivityMonitorState;
+import org.vaadin.addons.activitymonitor.client.shared.ActivityScheduler;
 import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
-
-import com.google.gwt.event.dom.client.KeyDownEvent;
-import com.google.gwt.event.dom.client.MouseDownEvent;
-import com.google.gwt.event.dom.client.MouseMoveEvent;
-import com.google.gwt.event.dom.client.ScrollEvent;
-import com.google.gwt.event.dom.client.TouchEndEvent;
-import com.google.gwt.event.dom.client.TouchMoveEvent;
-import com.google.gwt.event.dom.client.TouchStartEvent;
+import org.vaadin.addons.activitymonitor.client.shared.DeliveryMode;
+import org.vaadin.addons.activitymonitor.client.shared.IntensityMeter;
+import org.vaadin.addons.activitymonitor.client.shared.OverflowPolicy;
+import org.vaadin.addons.activitymonitor.client.shared.TimingMode;
+import org.vaadin.addons.activitymonitor.client.shared.VisibilityMode;
+
+import com.google.gwt.core.client.Duration;
+import com.google.gwt.core.client.JavaScriptObject;
+import com.google.gwt.core.client.Scheduler;
+import com.google.gwt.event.shared.HandlerRegistration;
 import com.google.gwt.user.client.Timer;
-import com.google.gwt.user.client.Window;
-import com.google.gwt.user.client.ui.RootPanel;
+import com.vaadin.client.ApplicationConnection.CommunicationHandler;
+import com.vaadin.client.ApplicationConnection.RequestStartingEvent;
+import com.vaadin.client.ApplicationConnection.ResponseHandlingEndedEvent;
+import com.vaadin.client.ApplicationConnection.ResponseHandlingStartedEvent;
 import com.vaadin.client.ServerConnector;
 import com.vaadin.client.communication.StateChangeEvent;
 import com.vaadin.client.extensions.AbstractExtensionConnector;
@@ -29,41 +41,114 @@ public class ActivityMonitorConnector extends AbstractExtensionConnector {
     private static final Logger logger = Logger
             .getLogger(ActivityMonitorConnector.class.getName());
 
-    private Timer idleTimer;
-    private Timer inactiveTimer;
-    private Map<String, CustomTimer> customTimers;
-    private ClientStatus status = ClientStatus.ACTIVE;
-
-    private class CustomTimer extends Timer {
-        public String name;
-        public int timeout;
-
-        @Override
-        public void run() {
-            rpc().customTimerTriggered(name);
-        }
-    }
+    private final ActivityScheduler scheduler;
+    private final Timer watchdog;
+    private boolean watchdogArmed = false;
+    private boolean enabled = true;
+
+    // Written from the native activity listener
+    private JavaScriptObject activityListener;
+    private JavaScriptObject visibilityListener;
+    private JavaScriptObject blurListener;
+    private double lastEventTime;
+    private double lastSignalTime;
+    private int sampleInterval;
+
+    // Events waiting to be sent in the next batch
+    private final List<ActivityEvent> pendingEvents = new ArrayList<>();
+    private final Timer batchTimer;
+    private boolean batchScheduled = false;
+    private ClientStatus reportedStatus = ClientStatus.ACTIVE;
+
+    // Events waiting for the next request made for any other reason
+    private final List<ActivityEvent> deferredEvents = new ArrayList<>();
+    private final Set<String> deferredTimers = new HashSet<>();
+    private boolean deferredQueued = false;
+    private HandlerRegistration requestHandler;
+
+    // Last activity reporting in server timing mode
+    private final Timer reportTimer;
+    private boolean reportScheduled = false;
+    private double lastActivity;
+    private double lastReportTime;
+    private double reportedActivity;
+
+    private boolean heartbeatSuspended = false;
+
+    // Activity intensity, reported along with other requests
+    private final IntensityMeter intensityMeter = new IntensityMeter();
+    private ActivityIntensity reportedIntensity;
 
     ActivityMonitorConnector() {
-        idleTimer = new Timer() {
+        scheduler = new ActivityScheduler(new ActivityScheduler.Callback() {
             @Override
-            public void run() {
-                if (status != ClientStatus.IDLE) {
-                    status = ClientStatus.IDLE;
-                    rpc().clientStatusChanged(ClientStatus.IDLE);
+            public void statusChanged(ClientStatus status, double time) {
+                updateIntensity(time);
+                queueStatusChange(status, time);
+            }
+
+            @Override
+            public void customTimerTriggered(String name, double time) {
+                ActivityEvent event = new ActivityEvent(null, name, time);
+                if (deferredTimers.contains(name)) {
+                    deferEvent(event);
+                } else {
+                    queueEvent(event);
                 }
             }
+        });
+        registerRpc(ActivityMonitorClientRPC.class,
+                new ActivityMonitorClientRPC() {
+                    @Override
+                    public void customTimerSet(String name, int threshold,
+                            DeliveryMode delivery) {
+                        if (delivery == DeliveryMode.DEFERRED) {
+                            deferredTimers.add(name);
+                        } else {
+                            deferredTimers.remove(name);
+                        }
+                        scheduler.setCustomTimer(name, threshold);
+                        rearmWatchdog();
+                    }
+
+                    @Override
+                    public void customTimerRemoved(String name) {
+                        deferredTimers.remove(name);
+                        scheduler.removeCustomTimer(name);
+                        rearmWatchdog();
+                    }
+
+                    @Override
+                    public void customTimersCleared() {
+                        deferredTimers.clear();
+                        scheduler.clearCustomTimers();
+                        rearmWatchdog();
+                    }
+                });
+        reportTimer = new Timer() {
+            @Override
+            public void run() {
+                reportScheduled = false;
+                sendActivityReport();
+            }
+        };
+        batchTimer = new Timer() {
+            @Override
+            public void run() {
+                sendEvents();
+            }
         };
-        inactiveTimer = new Timer() {
+        watchdog = new Timer() {
             @Override
             public void run() {
-                if (status != ClientStatus.INACTIVE) {
-                    status = ClientStatus.INACTIVE;
-                    rpc().clientStatusChanged(ClientStatus.INACTIVE);
+                watchdogArmed = false;
+                if (enabled && lastEventTime > scheduler.getLastActivity()) {
+                    // Pick up events that were dropped by sampling
+                    scheduler.onActivity(lastEventTime);
                 }
+                armWatchdog(scheduler.advance(Duration.currentTimeMillis()));
             }
         };
-        customTimers = new HashMap<>();
     }
 
     private ActivityMonitorRPC rpc() {
@@ -75,54 +160,407 @@ public class ActivityMonitorConnector extends AbstractExtensionConnector {
         return (ActivityMonitorState) super.getState();
     }
 
+    private void queueStatusChange(ClientStatus status, double time) {
+        if (status == reportedStatus) {
+            // The status changed and changed back before the server was told;
+            // the queued status changes are out of date
+            removeStatusChanges(pendingEvents);
+            if (removeStatusChanges(deferredEvents)) {
+                queueDeferredEvents();
+            }
+            return;
+        }
+        ActivityEvent event = new ActivityEvent(status, null, time);
+        if (getState().statusDelivery == DeliveryMode.DEFERRED) {
+            deferEvent(event);
+        } else {
+            queueEvent(event);
+        }
+    }
+
+    private static boolean removeStatusChanges(List<ActivityEvent> events) {
+        boolean removed = false;
+        for (Iterator<ActivityEvent> i = events.iterator(); i.hasNext();) {
+            if (i.next().status != null) {
+                i.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    private void deferEvent(ActivityEvent event) {
+        if (deferredEvents.size() >= getState().deferredQueueCapacity) {
+            OverflowPolicy policy = getState().deferredOverflowPolicy;
+            if (policy == OverflowPolicy.DROP_NEWEST) {
+                return;
+            }
+            if (policy != OverflowPolicy.COALESCE || !replace(event)) {
+                deferredEvents.remove(0);
+                deferredEvents.add(event);
+            }
+        } else {
+            deferredEvents.add(event);
+        }
+        queueDeferredEvents();
+    }
+
+    // Replaces a queued event of the same kind in place, keeping its
+    // position relative to the other events
+    private boolean replace(ActivityEvent event) {
+        for (int i = 0; i < deferredEvents.size(); i++) {
+            ActivityEvent queued = deferredEvents.get(i);
+            if (event.timerName == null ? queued.timerName == null
+                    : event.timerName.equals(queued.timerName)) {
+                deferredEvents.set(i, event);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void queueDeferredEvents() {
+        // Replaces the previously queued invocation, if it has not been sent
+        // yet. Goes out with the next request, whatever causes it.
+        rpc().deferredActivityReported(new ArrayList<>(deferredEvents));
+        deferredQueued = true;
+    }
+
+    private void onRequestStarting() {
+        // Goes out with the request after this one
+        updateIntensity(Duration.currentTimeMillis());
+        if (!deferredQueued) {
+            return;
+        }
+        // The queued invocation is part of this request
+        deferredQueued = false;
+        for (ActivityEvent event : deferredEvents) {
+            if (event.status != null) {
+                reportedStatus = event.status;
+            }
+        }
+        deferredEvents.clear();
+    }
+
+    private void queueEvent(ActivityEvent event) {
+        pendingEvents.add(event);
+        if (batchScheduled) {
+            return;
+        }
+        batchScheduled = true;
+        int delay = getState().eventBatchDelay;
+        if (delay > 0) {
+            batchTimer.schedule(delay);
+        } else {
+            // Collect everything reported in the current event loop turn
+            Scheduler.get().scheduleDeferred(this::sendEvents);
+        }
+    }
+
+    private void sendEvents() {
+        batchScheduled = false;
+        if (pendingEvents.isEmpty()) {
+            return;
+        }
+        for (ActivityEvent event : pendingEvents) {
+            if (event.status != null) {
+                reportedStatus = event.status;
+            }
+        }
+        List<ActivityEvent> events = new ArrayList<>(pendingEvents);
+        pendingEvents.clear();
+        rpc().activityReported(events, Duration.currentTimeMillis());
+    }
+
+    private void armWatchdog(double deadline) {
+        if (deadline == ActivityScheduler.NO_DEADLINE) {
+            return;
+        }
+        int delay = (int) Math.ceil(deadline - Duration.currentTimeMillis());
+        watchdog.schedule(Math.max(delay, 0));
+        watchdogArmed = true;
+    }
+
+    private boolean isServerTiming() {
+        return getState().timingMode == TimingMode.SERVER;
+    }
+
+    private void rearmWatchdog() {
+        if (enabled && !isServerTiming()) {
+            stopTimers();
+            armWatchdog(scheduler.getNextDeadline());
+        }
+    }
+
+    private void updateCustomTimers(Map<String, Integer> timers) {
+        for (String name : scheduler.getCustomTimerNames()) {
+            if (!timers.containsKey(name)) {
+                scheduler.removeCustomTimer(name);
+            }
+        }
+        for (Map.Entry<String, Integer> e : timers.entrySet()) {
+            if (e.getValue() != null
+                    && !scheduler.hasCustomTimer(e.getKey(), e.getValue())) {
+                scheduler.setCustomTimer(e.getKey(), e.getValue());
+            }
+        }
+    }
+
     private void stopTimers() {
-        idleTimer.cancel();
-        inactiveTimer.cancel();
-        for (CustomTimer ct : customTimers.values()) {
-            ct.cancel();
+        watchdog.cancel();
+        watchdogArmed = false;
+    }
+
+    private void onActivity() {
+        if (!enabled) {
+            return;
+        }
+        if (getState().intensityWindow > 0) {
+            double now = Duration.currentTimeMillis();
+            intensityMeter.onActivity(now);
+            updateIntensity(now);
+        }
+        if (isServerTiming()) {
+            onServerTimingActivity(Duration.currentTimeMillis());
+            return;
+        }
+        if (scheduler.isSuspended()) {
+            if (isDocumentHidden()) {
+                return;
+            }
+            // Input in a visible but unfocused window, e.g. scrolling it
+            // while another window has focus, means the user is back
+            onVisibilityChange(false);
+        }
+
+        // Only the timestamp is updated here; an armed watchdog will notice
+        // the new activity when it wakes up and re-arm itself accordingly.
+        scheduler.onActivity(Duration.currentTimeMillis());
+        if (!watchdogArmed) {
+            armWatchdog(scheduler.getNextDeadline());
         }
     }
 
-    private void resetTimers() {
-        ActivityMonitorState state = getState();
+    private void updateIntensity(double now) {
+        if (getState().intensityWindow <= 0) {
+            return;
+        }
+        ActivityIntensity intensity = intensityMeter.getIntensity(now);
+        if (intensity != reportedIntensity) {
+            reportedIntensity = intensity;
+            rpc().intensityChanged(intensity);
+        }
+    }
+
+    private void onServerTimingActivity(double now) {
+        double previous = lastActivity;
+        lastActivity = now;
+        int interval = getReportInterval();
+        if (now - previous >= getShortestThreshold()
+                || now - lastReportTime >= interval) {
+            // Either the server has probably moved on from ACTIVE, or its
+            // view of the last activity is getting stale
+            sendActivityReport();
+        } else if (!reportScheduled) {
+            // Trailing report, so the server learns about the final activity
+            // before any of its thresholds are crossed
+            reportScheduled = true;
+            reportTimer.schedule(
+                    (int) Math.ceil(lastReportTime + interval - now));
+        }
+    }
 
-        idleTimer.cancel();
-        if (state.idleThreshold != 0) {
-            idleTimer.schedule(state.idleThreshold);
+    private void sendActivityReport() {
+        if (reportScheduled) {
+            reportTimer.cancel();
+            reportScheduled = false;
         }
+        if (lastActivity <= reportedActivity) {
+            return;
+        }
+        double now = Duration.currentTimeMillis();
+        reportedActivity = lastActivity;
+        lastReportTime = now;
+        rpc().lastActivityReported(lastActivity, now);
+    }
 
-        inactiveTimer.cancel();
-        if (state.inactiveTimeThreshold != 0) {
-            inactiveTimer.schedule(state.inactiveTimeThreshold);
+    private int getShortestThreshold() {
+        ActivityMonitorState state = getState();
+        int shortest = Integer.MAX_VALUE;
+        if (state.idleThreshold > 0) {
+            shortest = state.idleThreshold;
         }
+        if (state.inactiveTimeThreshold > 0) {
+            shortest = Math.min(shortest, state.inactiveTimeThreshold);
+        }
+        for (Integer threshold : state.customTimers.values()) {
+            if (threshold != null && threshold > 0) {
+                shortest = Math.min(shortest, threshold);
+            }
+        }
+        return shortest;
+    }
 
-        for (CustomTimer ct : customTimers.values()) {
-            ct.cancel();
-            ct.schedule(ct.timeout);
+    private int getReportInterval() {
+        // Report well within the shortest threshold, so the server never
+        // crosses it while the client is still active
+        return Math.max(0, Math.min(getState().activityReportInterval,
+                getShortestThreshold() / 2));
+    }
+
+    private void onVisibilityChange(boolean hidden) {
+        VisibilityMode mode = getState().visibilityMode;
+        if (!enabled || mode == VisibilityMode.IGNORE || isServerTiming()) {
+            return;
+        }
+        double now = Duration.currentTimeMillis();
+        if (hidden && !scheduler.isSuspended()) {
+            // Park the watchdog instead of letting the browser fire it late,
+            // but keep counting towards INACTIVE
+            stopTimers();
+            scheduler.suspend(getHiddenStatus(mode), now);
+            armWatchdog(scheduler.getNextDeadline());
+        } else if (!hidden && scheduler.isSuspended()) {
+            armWatchdog(scheduler.resume(now));
         }
+    }
 
-        if (status != ClientStatus.ACTIVE) {
-            status = ClientStatus.ACTIVE;
-            rpc().clientStatusChanged(ClientStatus.ACTIVE);
+    private static ClientStatus getHiddenStatus(VisibilityMode mode) {
+        switch (mode) {
+        case IDLE:
+            return ClientStatus.IDLE;
+        case INACTIVE:
+            return ClientStatus.INACTIVE;
+        case HIDDEN:
+            return ClientStatus.HIDDEN;
+        default:
+            return null;
         }
     }
 
     @Override
     protected void extend(ServerConnector target) {
+        addActivityListeners();
+        requestHandler = getConnection().addHandler(RequestStartingEvent.TYPE,
+                new CommunicationHandler() {
+                    @Override
+                    public void onRequestStarting(RequestStartingEvent e) {
+                        ActivityMonitorConnector.this.onRequestStarting();
+                    }
+
+                    @Override
+                    public void onResponseHandlingStarted(
+                            ResponseHandlingStartedEvent e) {
+                    }
+
+                    @Override
+                    public void onResponseHandlingEnded(
+                            ResponseHandlingEndedEvent e) {
+                    }
+                });
+    }
 
-        Window.addResizeHandler(e -> resetTimers());
-
-        RootPanel rp = RootPanel.get();
+    @Override
+    public void onUnregister() {
+        super.onUnregister();
+        stopTimers();
+        batchTimer.cancel();
+        reportTimer.cancel();
+        if (requestHandler != null) {
+            requestHandler.removeHandler();
+            requestHandler = null;
+        }
+        removeActivityListeners();
+        setHeartbeatSuspended(false);
+    }
 
-        rp.addDomHandler(e -> resetTimers(), KeyDownEvent.getType());
-        rp.addDomHandler(e -> resetTimers(), MouseMoveEvent.getType());
-        rp.addDomHandler(e -> resetTimers(), MouseDownEvent.getType());
-        rp.addDomHandler(e -> resetTimers(), TouchMoveEvent.getType());
-        rp.addDomHandler(e -> resetTimers(), TouchStartEvent.getType());
-        rp.addDomHandler(e -> resetTimers(), TouchEndEvent.getType());
-        rp.addDomHandler(e -> resetTimers(), ScrollEvent.getType());
+    private void setHeartbeatSuspended(boolean suspended) {
+        if (suspended == heartbeatSuspended || getConnection() == null) {
+            return;
+        }
+        heartbeatSuspended = suspended;
+        // A non-positive interval stops the heartbeat
+        getConnection().getHeartbeat().setInterval(suspended ? -1
+                : getConnection().getConfiguration().getHeartbeatInterval());
     }
 
+    /**
+     * Attach a single passive, capturing listener for all activity events.
+     * Every event updates the last event timestamp, but
+     * {@link #onActivity()} is invoked at most once per sample interval.
+     */
+    private native void addActivityListeners()
+    /*-{
+        var self = this;
+        var listener = $entry(function() {
+            var now = Date.now();
+            self.@org.vaadin.addons.activitymonitor.client.ActivityMonitorConnector::lastEventTime = now;
+            if (now - self.@org.vaadin.addons.activitymonitor.client.ActivityMonitorConnector::lastSignalTime
+                    >= self.@org.vaadin.addons.activitymonitor.client.ActivityMonitorConnector::sampleInterval) {
+                self.@org.vaadin.addons.activitymonitor.client.ActivityMonitorConnector::lastSignalTime = now;
+                self.@org.vaadin.addons.activitymonitor.client.ActivityMonitorConnector::onActivity()();
+            }
+        });
+        var options = { capture: true, passive: true };
+        var types = [ 'keydown', 'mousemove', 'mousedown', 'touchmove',
+                'touchstart', 'touchend', 'scroll' ];
+        for (var i = 0; i < types.length; i++) {
+            $doc.addEventListener(types[i], listener, options);
+        }
+        $wnd.addEventListener('resize', listener, options);
+        $wnd.addEventListener('focus', listener, options);
+        this.@org.vaadin.addons.activitymonitor.client.ActivityMonitorConnector::activityListener = listener;
+
+        var visibilityListener = $entry(function() {
+            self.@org.vaadin.addons.activitymonitor.client.ActivityMonitorConnector::onVisibilityChange(Z)(@org.vaadin.addons.activitymonitor.client.ActivityMonitorConnector::isInBackground()());
+        });
+        $doc.addEventListener('visibilitychange', visibilityListener);
+        $wnd.addEventListener('focus', visibilityListener);
+        this.@org.vaadin.addons.activitymonitor.client.ActivityMonitorConnector::visibilityListener = visibilityListener;
+
+        // hasFocus() is not reliably updated yet while blur is dispatched
+        var blurListener = function() {
+            $wnd.setTimeout(visibilityListener, 0);
+        };
+        $wnd.addEventListener('blur', blurListener);
+        this.@org.vaadin.addons.activitymonitor.client.ActivityMonitorConnector::blurListener = blurListener;
+    }-*/;
+
+    private native void removeActivityListeners()
+    /*-{
+        var listener = this.@org.vaadin.addons.activitymonitor.client.ActivityMonitorConnector::activityListener;
+        if (!listener) {
+            return;
+        }
+        var options = { capture: true, passive: true };
+        var types = [ 'keydown', 'mousemove', 'mousedown', 'touchmove',
+                'touchstart', 'touchend', 'scroll' ];
+        for (var i = 0; i < types.length; i++) {
+            $doc.removeEventListener(types[i], listener, options);
+        }
+        $wnd.removeEventListener('resize', listener, options);
+        $wnd.removeEventListener('focus', listener, options);
+        this.@org.vaadin.addons.activitymonitor.client.ActivityMonitorConnector::activityListener = null;
+
+        var visibilityListener = this.@org.vaadin.addons.activitymonitor.client.ActivityMonitorConnector::visibilityListener;
+        $doc.removeEventListener('visibilitychange', visibilityListener);
+        $wnd.removeEventListener('focus', visibilityListener);
+        this.@org.vaadin.addons.activitymonitor.client.ActivityMonitorConnector::visibilityListener = null;
+        $wnd.removeEventListener('blur',
+                this.@org.vaadin.addons.activitymonitor.client.ActivityMonitorConnector::blurListener);
+        this.@org.vaadin.addons.activitymonitor.client.ActivityMonitorConnector::blurListener = null;
+    }-*/;
+
+    private static native boolean isDocumentHidden()
+    /*-{
+        return !!$doc.hidden;
+    }-*/;
+
+    private static native boolean isInBackground()
+    /*-{
+        return !!$doc.hidden || !$doc.hasFocus();
+    }-*/;
+
     @Override
     public void onStateChanged(StateChangeEvent event) {
         super.onStateChanged(event);
@@ -134,45 +572,65 @@ public class ActivityMonitorConnector extends AbstractExtensionConnector {
 
         ActivityMonitorState state = getState();
 
-        boolean reset = true;
+        sampleInterval = state.activitySampleInterval;
 
-        if (state.timersEnabled == false) {
-            stopTimers();
-            reset = false;
+        if (event.isInitialStateChange()
+                || event.hasPropertyChanged("deferredTimers")) {
+            deferredTimers.clear();
+            deferredTimers.addAll(state.deferredTimers);
         }
 
-        if (event.hasPropertyChanged("customTimers")) {
+        if (event.isInitialStateChange()
+                || event.hasPropertyChanged("intensityWindow")) {
+            // Measure afresh, and report even if the bucket is the same
+            intensityMeter.configure(state.intensityWindow);
+            reportedIntensity = null;
+        }
 
-            // Stop and destroy custom timers that have been removed
-            for (String name : customTimers.keySet()) {
-                if (!state.customTimers.containsKey(name)) {
-                    customTimers.get(name).cancel();
-                    customTimers.remove(name);
-                }
+        if (event.isInitialStateChange()) {
+            scheduler.configure(state.idleThreshold,
+                    state.inactiveTimeThreshold, state.customTimers);
+        } else {
+            // Only touch the thresholds that actually changed, so unrelated
+            // timers keep counting
+            if (event.hasPropertyChanged("idleThreshold")
+                    || event.hasPropertyChanged("inactiveTimeThreshold")) {
+                scheduler.setStatusThresholds(state.idleThreshold,
+                        state.inactiveTimeThreshold);
             }
-
-            // Recreate custom timers
-            for (String name : state.customTimers.keySet()) {
-
-                // Reset interval
-                if (customTimers.containsKey(name)) {
-                    customTimers.get(name).cancel();
-                } else {
-                    // Create new timer
-                    CustomTimer ct = new CustomTimer();
-                    ct.name = name;
-                    ct.timeout = state.customTimers.get(name);
-                    customTimers.put(name, ct);
-                }
-
+            if (event.hasPropertyChanged("customTimers")) {
+                updateCustomTimers(state.customTimers);
             }
+        }
 
+        if (!state.timersEnabled) {
+            enabled = false;
+            stopTimers();
+        } else if (isServerTiming()) {
+            // The server enforces the thresholds
+            enabled = true;
+            stopTimers();
+        } else if (!enabled || event.isInitialStateChange()
+                || event.hasPropertyChanged("timingMode")) {
+            // (Re)starting monitoring restarts the countdown
+            enabled = true;
+            stopTimers();
+            onActivity();
+        } else {
+            rearmWatchdog();
         }
 
-        if (reset) {
-            resetTimers();
+        // Apply visibility mode changes to the current visibility
+        if ((state.visibilityMode == VisibilityMode.IGNORE || isServerTiming())
+                && scheduler.isSuspended()) {
+            scheduler.resume(Duration.currentTimeMillis());
+            rearmWatchdog();
+        } else if (event.hasPropertyChanged("visibilityMode")
+                || event.isInitialStateChange()) {
+            onVisibilityChange(isInBackground());
         }
 
+        setHeartbeatSuspended(state.heartbeatSuspended);
     }
 
 }
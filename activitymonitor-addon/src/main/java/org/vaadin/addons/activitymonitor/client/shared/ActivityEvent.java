@@ -0,0 +1,37 @@
+package org.vaadin.addons.activitymonitor.client.shared;
+
+import java.io.Serializable;
+
+/**
+ * A status change or custom timer event, as reported by the client in a
+ * batch.
+ */
+@SuppressWarnings("serial")
+public class ActivityEvent implements Serializable {
+
+    /**
+     * The new status, or null if this is a custom timer event.
+     */
+    public ClientStatus status;
+
+    /**
+     * Name of the custom timer that fired, or null if this is a status change.
+     */
+    public String timerName;
+
+    /**
+     * Client time at which the event happened, in milliseconds since the
+     * epoch.
+     */
+    public double timestamp;
+
+    public ActivityEvent() {
+    }
+
+    public ActivityEvent(ClientStatus status, String timerName,
+            double timestamp) {
+        this.status = status;
+        this.timerName = timerName;
+        this.timestamp = timestamp;
+    }
+}
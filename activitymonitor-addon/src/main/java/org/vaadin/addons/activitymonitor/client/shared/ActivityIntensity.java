@@ -0,0 +1,33 @@
+package org.vaadin.addons.activitymonitor.client.shared;
+
+/**
+ * How much of the recent past a user has been active, in coarse buckets.
+ * Measured by the client as the share of time slots with any activity in the
+ * intensity window, so a flood of mouse moves counts no more than a single
+ * key press in the same slot.
+ */
+public enum ActivityIntensity {
+
+    /**
+     * No activity in the window.
+     */
+    NONE,
+
+    /**
+     * Activity in less than a quarter of the window, e.g. an occasional
+     * mouse move.
+     */
+    LOW,
+
+    /**
+     * Activity in a quarter to a half of the window, e.g. reading and
+     * scrolling.
+     */
+    MEDIUM,
+
+    /**
+     * Activity in at least half of the window, e.g. typing or continuous
+     * interaction.
+     */
+    HIGH
+}
@@ -0,0 +1,33 @@
+package org.vaadin.addons.activitymonitor.client.shared;
+
+import com.vaadin.shared.communication.ClientRpc;
+
+public interface ActivityMonitorClientRPC extends ClientRpc {
+
+    /**
+     * Add a custom timer or change its threshold, without affecting other
+     * timers.
+     * 
+     * @param name
+     *            name of the timer
+     * @param threshold
+     *            time of inactivity until timer fires, in milliseconds
+     * @param delivery
+     *            when to send the timer events to the server
+     */
+    void customTimerSet(String name, int threshold, DeliveryMode delivery);
+
+    /**
+     * Remove a custom timer, without affecting other timers.
+     * 
+     * @param name
+     *            name of the timer
+     */
+    void customTimerRemoved(String name);
+
+    /**
+     * Remove all custom timers.
+     */
+    void customTimersCleared();
+
+}
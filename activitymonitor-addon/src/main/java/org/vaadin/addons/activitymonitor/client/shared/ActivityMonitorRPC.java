@@ -1,5 +1,8 @@
 package org.vaadin.addons.activitymonitor.client.shared;
 
+import java.util.List;
+
+import com.vaadin.shared.annotations.Delayed;
 import com.vaadin.shared.communication.ServerRpc;
 
 public interface ActivityMonitorRPC extends ServerRpc {
@@ -8,4 +11,49 @@ public interface ActivityMonitorRPC extends ServerRpc {
 
     void customTimerTriggered(String timerName);
 
+    /**
+     * Report a batch of events in the order they happened.
+     * 
+     * @param events
+     *            status changes and custom timer events
+     * @param clientTime
+     *            client time at which the batch was sent, used for correcting
+     *            the event timestamps for clock differences
+     */
+    void activityReported(List<ActivityEvent> events, double clientTime);
+
+    /**
+     * Report the events queued with {@link DeliveryMode#DEFERRED}, in the
+     * order they happened. The invocation is delayed until the next request
+     * and each invocation replaces the previous one, so the client sends all
+     * currently queued events every time.
+     * 
+     * @param events
+     *            status changes and custom timer events
+     */
+    @Delayed(lastOnly = true)
+    void deferredActivityReported(List<ActivityEvent> events);
+
+    /**
+     * Report the time of the last activity, in {@link TimingMode#SERVER}
+     * mode.
+     * 
+     * @param lastActivity
+     *            client time of the last activity
+     * @param clientTime
+     *            client time at which the report was sent
+     */
+    void lastActivityReported(double lastActivity, double clientTime);
+
+    /**
+     * Report a change in the activity intensity. The invocation is delayed
+     * until the next request, so the intensity never causes a request of its
+     * own, and only the latest change is sent.
+     * 
+     * @param intensity
+     *            the new intensity
+     */
+    @Delayed(lastOnly = true)
+    void intensityChanged(ActivityIntensity intensity);
+
 }
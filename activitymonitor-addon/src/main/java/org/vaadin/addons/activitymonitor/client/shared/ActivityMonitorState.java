@@ -1,7 +1,9 @@
 package org.vaadin.addons.activitymonitor.client.shared;
 
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 
 import com.vaadin.shared.communication.SharedState;
 
@@ -10,7 +12,18 @@ public class ActivityMonitorState extends SharedState {
     public int idleThreshold = 30000;
     public int inactiveTimeThreshold = 60000;
     public boolean timersEnabled = true;
+    public int activitySampleInterval = 0;
+    public int eventBatchDelay = 0;
+    public VisibilityMode visibilityMode = VisibilityMode.IGNORE;
+    public TimingMode timingMode = TimingMode.CLIENT;
+    public int activityReportInterval = 10000;
+    public DeliveryMode statusDelivery = DeliveryMode.IMMEDIATE;
+    public int deferredQueueCapacity = 32;
+    public OverflowPolicy deferredOverflowPolicy = OverflowPolicy.COALESCE;
+    public boolean heartbeatSuspended = false;
+    public int intensityWindow = 0;
 
     public Map<String, Integer> customTimers = new HashMap<>(1);
+    public Set<String> deferredTimers = new HashSet<>(1);
 
 }
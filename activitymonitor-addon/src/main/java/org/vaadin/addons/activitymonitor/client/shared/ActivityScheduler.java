@@ -0,0 +1,433 @@
+package org.vaadin.addons.activitymonitor.client.shared;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Clock-agnostic deadline scheduler for the client activity thresholds.
+ *
+ * Instead of running one timer per threshold and rescheduling all of them on
+ * every input event, the scheduler only records the time of the last activity.
+ * The owner keeps a single watchdog armed for {@link #getNextDeadline()} and
+ * calls {@link #advance(double)} when it wakes up; at that point all status
+ * changes and custom timers that have become due are reported, in threshold
+ * order and timestamped with the time the threshold was crossed, and the next
+ * deadline is returned.
+ *
+ * Recording activity with {@link #onActivity(double)} is O(1) as long as no
+ * threshold has been crossed since the previous activity, regardless of how
+ * many thresholds are configured.
+ *
+ * The scheduler has no dependencies on the browser and takes all timestamps as
+ * parameters, so it can be driven by any clock.
+ */
+public class ActivityScheduler {
+
+    /**
+     * Receives the transitions detected by the scheduler
+     */
+    public static interface Callback {
+        void statusChanged(ClientStatus status, double time);
+
+        void customTimerTriggered(String name, double time);
+    }
+
+    private static class Threshold {
+        private final ClientStatus status;
+        private final String timerName;
+        private final int timeout;
+        private boolean fired;
+
+        private Threshold(ClientStatus status, String timerName, int timeout) {
+            this.status = status;
+            this.timerName = timerName;
+            this.timeout = timeout;
+        }
+    }
+
+    /**
+     * Value returned by {@link #advance(double)} and
+     * {@link #getNextDeadline()} when there is nothing left to wait for.
+     */
+    public static final double NO_DEADLINE = -1;
+
+    private final Callback callback;
+    private final List<Threshold> thresholds = new ArrayList<>();
+
+    private ClientStatus status = ClientStatus.ACTIVE;
+    private double lastActivity;
+    private int firedCount;
+    private boolean suspended = false;
+
+    /**
+     * Create a new scheduler.
+     *
+     * @param callback
+     *            receiver for status changes and custom timer events
+     */
+    public ActivityScheduler(Callback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Replace the set of thresholds. Thresholds of 0 are ignored. All
+     * thresholds are considered pending after this call; the caller is
+     * expected to follow up with {@link #onActivity(double)} to restart the
+     * countdown.
+     *
+     * @param idleThreshold
+     *            time in milliseconds until the client is considered idle
+     * @param inactiveThreshold
+     *            time in milliseconds until the client is considered inactive
+     * @param customTimers
+     *            custom timer thresholds in milliseconds, keyed by timer name
+     */
+    public void configure(int idleThreshold, int inactiveThreshold,
+            Map<String, Integer> customTimers) {
+        thresholds.clear();
+        firedCount = 0;
+        setStatusThresholds(idleThreshold, inactiveThreshold);
+        for (Map.Entry<String, Integer> e : customTimers.entrySet()) {
+            if (e.getValue() != null) {
+                setCustomTimer(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /**
+     * Change the idle and inactive thresholds without affecting custom timers.
+     * Thresholds of 0 are ignored.
+     *
+     * @param idleThreshold
+     *            time in milliseconds until the client is considered idle
+     * @param inactiveThreshold
+     *            time in milliseconds until the client is considered inactive
+     */
+    public void setStatusThresholds(int idleThreshold, int inactiveThreshold) {
+        Threshold idle = find(ClientStatus.IDLE, null);
+        Threshold inactive = find(ClientStatus.INACTIVE, null);
+        boolean idleFired = idle != null && idle.fired;
+        boolean inactiveFired = inactive != null && inactive.fired;
+        remove(idle);
+        remove(inactive);
+        insert(new Threshold(ClientStatus.IDLE, null, idleThreshold),
+                idleFired);
+        insert(new Threshold(ClientStatus.INACTIVE, null, inactiveThreshold),
+                inactiveFired);
+    }
+
+    /**
+     * Add a custom timer or change the threshold of an existing one. Other
+     * timers are not affected. A new timer counts from the last activity; an
+     * existing timer that has already fired since the last activity does not
+     * fire again until the next activity.
+     *
+     * @param name
+     *            name of the timer
+     * @param timeout
+     *            time in milliseconds; 0 removes the timer
+     */
+    public void setCustomTimer(String name, int timeout) {
+        Threshold existing = find(null, name);
+        boolean fired = existing != null && existing.fired;
+        remove(existing);
+        insert(new Threshold(null, name, timeout), fired);
+    }
+
+    /**
+     * Remove a custom timer. Other timers are not affected.
+     *
+     * @param name
+     *            name of the timer
+     */
+    public void removeCustomTimer(String name) {
+        remove(find(null, name));
+    }
+
+    /**
+     * Remove all custom timers.
+     */
+    public void clearCustomTimers() {
+        for (Threshold t : new ArrayList<>(thresholds)) {
+            if (t.status == null) {
+                remove(t);
+            }
+        }
+    }
+
+    /**
+     * Check whether a custom timer with the given threshold exists.
+     *
+     * @param name
+     *            name of the timer
+     * @param timeout
+     *            time in milliseconds
+     * @return true if the timer exists with this threshold
+     */
+    public boolean hasCustomTimer(String name, int timeout) {
+        Threshold t = find(null, name);
+        return t != null && t.timeout == timeout;
+    }
+
+    /**
+     * Get the names of all custom timers.
+     *
+     * @return a new list of timer names
+     */
+    public List<String> getCustomTimerNames() {
+        List<String> names = new ArrayList<>();
+        for (Threshold t : thresholds) {
+            if (t.status == null) {
+                names.add(t.timerName);
+            }
+        }
+        return names;
+    }
+
+    private Threshold find(ClientStatus status, String timerName) {
+        for (Threshold t : thresholds) {
+            if (t.status == status && (timerName == null
+                    ? t.timerName == null : timerName.equals(t.timerName))) {
+                return t;
+            }
+        }
+        return null;
+    }
+
+    private void remove(Threshold t) {
+        if (t != null && thresholds.remove(t) && t.fired) {
+            firedCount--;
+        }
+    }
+
+    private void insert(Threshold t, boolean fired) {
+        if (t.timeout <= 0) {
+            return;
+        }
+        // Insert after all thresholds with the same timeout, so equal
+        // thresholds keep the order in which they were added
+        int i = 0;
+        while (i < thresholds.size()
+                && thresholds.get(i).timeout <= t.timeout) {
+            i++;
+        }
+        thresholds.add(i, t);
+        if (fired) {
+            t.fired = true;
+            firedCount++;
+        }
+    }
+
+    /**
+     * Record client activity. Reports a change to {@link ClientStatus#ACTIVE}
+     * if the client was not active before.
+     *
+     * @param now
+     *            current time in milliseconds
+     */
+    public void onActivity(double now) {
+        if (suspended) {
+            return;
+        }
+        lastActivity = now;
+        if (firedCount > 0) {
+            for (Threshold t : thresholds) {
+                t.fired = false;
+            }
+            firedCount = 0;
+        }
+        if (status != ClientStatus.ACTIVE) {
+            status = ClientStatus.ACTIVE;
+            callback.statusChanged(ClientStatus.ACTIVE, now);
+        }
+    }
+
+    /**
+     * Restart counting from the given time and take over the given status,
+     * without reporting anything. Useful when taking over from another
+     * scheduler.
+     *
+     * @param lastActivity
+     *            time of the last activity in milliseconds
+     * @param status
+     *            the current status
+     */
+    public void reset(double lastActivity, ClientStatus status) {
+        this.lastActivity = lastActivity;
+        this.status = status;
+        for (Threshold t : thresholds) {
+            t.fired = false;
+        }
+        firedCount = 0;
+    }
+
+    /**
+     * Report every threshold that has been crossed by {@code now} and has not
+     * been reported since the last activity.
+     *
+     * @param now
+     *            current time in milliseconds
+     * @return the time at which the next threshold is crossed, or
+     *         {@link #NO_DEADLINE} if all thresholds have been reported
+     */
+    public double advance(double now) {
+        if (suspended) {
+            return advanceSuspended(now);
+        }
+        double elapsed = now - lastActivity;
+        for (Threshold t : thresholds) {
+            if (t.fired) {
+                continue;
+            }
+            if (t.timeout > elapsed) {
+                return lastActivity + t.timeout;
+            }
+            t.fired = true;
+            firedCount++;
+            // Report the time the threshold was crossed, not the time the
+            // watchdog got around to noticing it
+            double time = lastActivity + t.timeout;
+            if (t.status == null) {
+                callback.customTimerTriggered(t.timerName, time);
+            } else if (status != t.status) {
+                status = t.status;
+                callback.statusChanged(t.status, time);
+            }
+        }
+        return NO_DEADLINE;
+    }
+
+    private double advanceSuspended(double now) {
+        Threshold inactive = find(ClientStatus.INACTIVE, null);
+        if (inactive == null || inactive.fired) {
+            return NO_DEADLINE;
+        }
+        double time = lastActivity + inactive.timeout;
+        if (time > now) {
+            return time;
+        }
+        inactive.fired = true;
+        firedCount++;
+        if (status != ClientStatus.INACTIVE) {
+            status = ClientStatus.INACTIVE;
+            callback.statusChanged(ClientStatus.INACTIVE, time);
+        }
+        return NO_DEADLINE;
+    }
+
+    /**
+     * Stop evaluating thresholds, e.g. while the client is not visible.
+     * Activity is ignored until {@link #resume(double)} is called. Only the
+     * inactive threshold keeps counting, so a client that stays hidden still
+     * becomes {@link ClientStatus#INACTIVE}; {@link #advance(double)} and
+     * {@link #getNextDeadline()} only consider that threshold while
+     * suspended.
+     *
+     * @param status
+     *            status to report right away, or null to leave the status as
+     *            it is
+     * @param now
+     *            current time in milliseconds
+     */
+    public void suspend(ClientStatus status, double now) {
+        suspended = true;
+        if (status != null && status != this.status) {
+            this.status = status;
+            callback.statusChanged(status, now);
+        }
+    }
+
+    /**
+     * Resume evaluating thresholds after
+     * {@link #suspend(ClientStatus, double)}. All custom timers crossed while
+     * suspended are reported, but only the resulting status is reported, not
+     * the intermediate ones.
+     *
+     * @param now
+     *            current time in milliseconds
+     * @return the time at which the next threshold is crossed, or
+     *         {@link #NO_DEADLINE} if all thresholds have been reported
+     */
+    public double resume(double now) {
+        if (!suspended) {
+            return getNextDeadline();
+        }
+        suspended = false;
+        double elapsed = now - lastActivity;
+        ClientStatus reconciled = ClientStatus.ACTIVE;
+        double next = NO_DEADLINE;
+        for (Threshold t : thresholds) {
+            if (t.timeout > elapsed) {
+                if (next == NO_DEADLINE && !t.fired) {
+                    next = lastActivity + t.timeout;
+                }
+                continue;
+            }
+            if (t.status != null) {
+                reconciled = t.status;
+            } else if (!t.fired) {
+                callback.customTimerTriggered(t.timerName,
+                        lastActivity + t.timeout);
+            }
+            if (!t.fired) {
+                t.fired = true;
+                firedCount++;
+            }
+        }
+        if (reconciled != status) {
+            status = reconciled;
+            callback.statusChanged(reconciled, now);
+        }
+        return next;
+    }
+
+    /**
+     * Check whether threshold evaluation is suspended.
+     *
+     * @return true if suspended
+     */
+    public boolean isSuspended() {
+        return suspended;
+    }
+
+    /**
+     * Get the time at which the next pending threshold is crossed. While
+     * suspended, only the inactive threshold is considered.
+     *
+     * @return time in milliseconds, or {@link #NO_DEADLINE} if no thresholds
+     *         are pending
+     */
+    public double getNextDeadline() {
+        if (suspended) {
+            Threshold inactive = find(ClientStatus.INACTIVE, null);
+            return inactive != null && !inactive.fired
+                    ? lastActivity + inactive.timeout
+                    : NO_DEADLINE;
+        }
+        for (Threshold t : thresholds) {
+            if (!t.fired) {
+                return lastActivity + t.timeout;
+            }
+        }
+        return NO_DEADLINE;
+    }
+
+    /**
+     * Get the time of the last recorded activity.
+     *
+     * @return time in milliseconds
+     */
+    public double getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * Get the status last reported by this scheduler.
+     *
+     * @return a {@link ClientStatus} value
+     */
+    public ClientStatus getStatus() {
+        return status;
+    }
+}
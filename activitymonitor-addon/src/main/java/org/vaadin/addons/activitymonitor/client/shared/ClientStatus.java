@@ -27,5 +27,16 @@ public enum ClientStatus {
      * By default, this status gets set when the user hasn't shown any
      * interaction events for 60 seconds.
      */
-    INACTIVE
+    INACTIVE,
+
+    /**
+     * Status indicating that the browser tab showing the application is
+     * hidden or in the background, e.g. because the user switched to another
+     * tab, minimized the window or focused another window.
+     * 
+     * Only reported when the visibility mode is set to
+     * {@link VisibilityMode#HIDDEN}. A client that stays hidden still becomes
+     * {@link #INACTIVE} once the inactive threshold has passed.
+     */
+    HIDDEN
 }
@@ -0,0 +1,22 @@
+package org.vaadin.addons.activitymonitor.client.shared;
+
+/**
+ * Determines when the client sends an event to the server.
+ */
+public enum DeliveryMode {
+
+    /**
+     * The event is sent right away, which causes a round-trip of its own and
+     * extends the lifetime of the session.
+     */
+    IMMEDIATE,
+
+    /**
+     * The event is queued on the client and sent along with the next request
+     * made for any other reason, e.g. user interaction or an immediate event.
+     * Deferred events never cause a request of their own, so they do not keep
+     * the session alive. Events still queued when the page is closed are
+     * lost.
+     */
+    DEFERRED
+}
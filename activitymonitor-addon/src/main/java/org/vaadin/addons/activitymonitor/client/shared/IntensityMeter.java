@@ -0,0 +1,79 @@
+package org.vaadin.addons.activitymonitor.client.shared;
+
+/**
+ * Measures the {@link ActivityIntensity} of the client. The intensity window
+ * is divided into 32 slots, and the slots with any activity are kept as the
+ * bits of an int, so recording activity and computing the intensity take
+ * constant time and memory.
+ *
+ * Activity signals must come at least once per slot while the user is
+ * active, so any activity sampling interval should be shorter than a
+ * thirty-second of the window.
+ *
+ * Like {@link ActivityScheduler}, the meter has no dependencies on the
+ * browser and takes all timestamps as parameters.
+ */
+public class IntensityMeter {
+
+    private static final int SLOTS = 32;
+
+    private double slotLength = 1;
+    // Bit i is set if there was activity i slots before the current one
+    private int activeSlots = 0;
+    private double currentSlot = 0;
+
+    /**
+     * Set the length of the window and forget all recorded activity.
+     *
+     * @param window
+     *            length of the window in milliseconds
+     */
+    public void configure(int window) {
+        slotLength = Math.max(window / (double) SLOTS, 1);
+        activeSlots = 0;
+        currentSlot = 0;
+    }
+
+    /**
+     * Record activity.
+     *
+     * @param time
+     *            time of the activity in milliseconds
+     */
+    public void onActivity(double time) {
+        advance(time);
+        activeSlots |= 1;
+    }
+
+    /**
+     * Get the intensity over the window ending at the given time.
+     *
+     * @param now
+     *            current time in milliseconds
+     * @return the intensity
+     */
+    public ActivityIntensity getIntensity(double now) {
+        advance(now);
+        int active = Integer.bitCount(activeSlots);
+        if (active == 0) {
+            return ActivityIntensity.NONE;
+        } else if (active < SLOTS / 4) {
+            return ActivityIntensity.LOW;
+        } else if (active < SLOTS / 2) {
+            return ActivityIntensity.MEDIUM;
+        } else {
+            return ActivityIntensity.HIGH;
+        }
+    }
+
+    private void advance(double time) {
+        double slot = Math.floor(time / slotLength);
+        double elapsed = slot - currentSlot;
+        if (elapsed <= 0) {
+            // Same slot, or the clock went back
+            return;
+        }
+        activeSlots = elapsed >= SLOTS ? 0 : activeSlots << (int) elapsed;
+        currentSlot = slot;
+    }
+}
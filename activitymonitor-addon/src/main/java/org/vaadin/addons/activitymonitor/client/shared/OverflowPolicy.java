@@ -0,0 +1,25 @@
+package org.vaadin.addons.activitymonitor.client.shared;
+
+/**
+ * Determines what happens when an event is added to a full, bounded event
+ * queue.
+ */
+public enum OverflowPolicy {
+
+    /**
+     * Discard the oldest queued event to make room for the new one.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Discard the new event.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Replace a queued event of the same kind (the same status change or the
+     * same custom timer) with the new one. If there is no such event, the
+     * oldest queued event is discarded.
+     */
+    COALESCE
+}
@@ -0,0 +1,20 @@
+package org.vaadin.addons.activitymonitor.client.shared;
+
+/**
+ * Determines where the activity thresholds are enforced.
+ */
+public enum TimingMode {
+
+    /**
+     * The client enforces all thresholds and reports every status change and
+     * custom timer event.
+     */
+    CLIENT,
+
+    /**
+     * The client only reports the time of its last activity, at most once per
+     * report interval and only when there has been activity. The server
+     * enforces all thresholds, so idle clients cause no requests at all.
+     */
+    SERVER
+}
@@ -0,0 +1,45 @@
+package org.vaadin.addons.activitymonitor.client.shared;
+
+/**
+ * Determines how the client reacts when its browser tab is hidden, as
+ * reported by the Page Visibility API, or its window loses focus. Input in a
+ * visible window that does not have focus counts as the user coming back.
+ *
+ * In every mode except {@link #IGNORE}, only the inactive threshold keeps
+ * counting while hidden, so a client that stays hidden still becomes
+ * {@link ClientStatus#INACTIVE}.
+ */
+public enum VisibilityMode {
+
+    /**
+     * Tab visibility is not tracked. Timers keep running while the tab is
+     * hidden, subject to the browser's timer throttling.
+     */
+    IGNORE,
+
+    /**
+     * Timers are parked while the tab is hidden and the status is left as it
+     * is until the inactive threshold passes. When the tab becomes visible
+     * again, the status is reconciled with the time since the last activity
+     * and reported once.
+     */
+    SUSPEND,
+
+    /**
+     * Like {@link #SUSPEND}, but the client is reported as
+     * {@link ClientStatus#IDLE} as soon as the tab is hidden.
+     */
+    IDLE,
+
+    /**
+     * Like {@link #SUSPEND}, but the client is reported as
+     * {@link ClientStatus#INACTIVE} as soon as the tab is hidden.
+     */
+    INACTIVE,
+
+    /**
+     * Like {@link #SUSPEND}, but the client is reported as
+     * {@link ClientStatus#HIDDEN} as soon as the tab is hidden.
+     */
+    HIDDEN
+}
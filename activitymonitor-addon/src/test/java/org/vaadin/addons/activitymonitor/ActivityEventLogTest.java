@@ -0,0 +1,167 @@
+package org.vaadin.addons.activitymonitor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+import com.vaadin.ui.UI;
+
+public class ActivityEventLogTest {
+
+    private final Path directory;
+
+    public ActivityEventLogTest() throws IOException {
+        directory = Files.createTempDirectory("activity-log");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        ActivityMonitor.setEventLog(null);
+        for (Path path : ActivityEventLogReader.listSegments(directory)) {
+            Files.delete(path);
+        }
+        Files.deleteIfExists(directory.resolve(ActivityEventLog.TIMER_FILE));
+        Files.delete(directory);
+    }
+
+    private List<String> readAll() throws IOException {
+        List<String> events = new ArrayList<>();
+        new ActivityEventLogReader(directory)
+                .read((timestamp, session, ui, status, timerName) -> events
+                        .add(timestamp + ":" + ui + ":"
+                                + (status != null ? status : timerName)));
+        return events;
+    }
+
+    @Test
+    public void monitorsAppendEvents() throws IOException {
+        MockSession session = new MockSession();
+        try (ActivityEventLog log = new ActivityEventLog(directory)) {
+            ActivityMonitor.setEventLog(log);
+            session.createUI();
+            UI ui = session.createUI();
+            ActivityMonitor monitor = new ActivityMonitor(ui);
+
+            MockSession.rpc(monitor).clientStatusChanged(ClientStatus.IDLE);
+            MockSession.rpc(monitor).customTimerTriggered("away");
+            assertEquals(2, log.getAppendedCount());
+        }
+
+        List<String> events = readAll();
+        assertEquals(2, events.size());
+        assertEquals(true, events.get(0).endsWith(":1:IDLE"));
+        assertEquals(true, events.get(1).endsWith(":1:away"));
+    }
+
+    @Test
+    public void segmentsRollOverAndAreReopened() throws IOException {
+        // Rounded down to 8 records per segment
+        int segmentSize = ActivityEventLog.HEADER_SIZE
+                + 10 * ActivityEventLog.RECORD_SIZE;
+        try (ActivityEventLog log = new ActivityEventLog(directory,
+                segmentSize, 3)) {
+            for (int i = 1; i <= 25; i++) {
+                log.timerTriggered(i, 7, 0, i % 2 == 0 ? "even" : "odd");
+            }
+        }
+        assertEquals(3, ActivityEventLogReader.listSegments(directory).size());
+        List<String> events = readAll();
+        // The oldest of four segments has been deleted to keep three
+        assertEquals(17, events.size());
+        assertEquals("9:0:odd", events.get(0));
+        assertEquals("10:0:even", events.get(1));
+
+        try (ActivityEventLog log = new ActivityEventLog(directory,
+                segmentSize, 3)) {
+            log.statusChanged(26, 7, 0, ClientStatus.HIDDEN);
+            log.timerTriggered(27, 7, 0, "even");
+        }
+        events = readAll();
+        // Appending continues in a new segment
+        assertEquals(11, events.size());
+        assertEquals("17:0:odd", events.get(0));
+        assertEquals("26:0:HIDDEN", events.get(9));
+        assertEquals("27:0:even", events.get(10));
+    }
+
+    @Test
+    public void timerNamesKeepTheirIdsAcrossReopening() throws IOException {
+        // A duplicate line, as written by earlier versions
+        Files.write(directory.resolve(ActivityEventLog.TIMER_FILE),
+                Arrays.asList("x", "x", "y"), StandardCharsets.UTF_8);
+        try (ActivityEventLog log = new ActivityEventLog(directory)) {
+            log.timerTriggered(1, 7, 0, "y");
+            log.timerTriggered(2, 7, 0, "a\nb");
+            log.timerTriggered(3, 7, 0, "a\rb");
+            log.timerTriggered(4, 7, 0, "a b");
+        }
+        try (ActivityEventLog log = new ActivityEventLog(directory)) {
+            log.timerTriggered(5, 7, 0, "c");
+            log.timerTriggered(6, 7, 0, "a\nb");
+        }
+
+        assertEquals(Arrays.asList("x", "x", "y", "a b", "c"),
+                Files.readAllLines(
+                        directory.resolve(ActivityEventLog.TIMER_FILE),
+                        StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("1:0:y", "2:0:a b", "3:0:a b", "4:0:a b",
+                "5:0:c", "6:0:a b"), readAll());
+    }
+
+    @Test
+    public void segmentsDeletedWhileReadingAreSkipped() throws IOException {
+        int segmentSize = ActivityEventLog.HEADER_SIZE
+                + 2 * ActivityEventLog.RECORD_SIZE;
+        try (ActivityEventLog log = new ActivityEventLog(directory,
+                segmentSize, 3)) {
+            for (int i = 1; i <= 5; i++) {
+                log.statusChanged(i, 7, 0, ClientStatus.IDLE);
+            }
+        }
+        List<Path> segments = ActivityEventLogReader.listSegments(directory);
+        assertEquals(3, segments.size());
+
+        List<Long> timestamps = new ArrayList<>();
+        new ActivityEventLogReader(directory)
+                .read((timestamp, session, ui, status, timerName) -> {
+                    if (timestamps.isEmpty()) {
+                        // As the writer does when it rolls over
+                        try {
+                            Files.delete(segments.get(1));
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }
+                    timestamps.add(timestamp);
+                });
+        assertEquals(Arrays.asList(1L, 2L, 5L), timestamps);
+    }
+
+    @Test
+    public void appendsAfterCloseAreDropped() throws IOException {
+        ActivityEventLog log = new ActivityEventLog(directory);
+        log.close();
+        log.statusChanged(1, 0, 0, ClientStatus.ACTIVE);
+        assertEquals(1, log.getDroppedCount());
+        assertEquals(0, readAll().size());
+    }
+
+    @Test
+    public void csvValuesAreQuotedWhenNeeded() {
+        assertEquals("away", ActivityEventLogReader.csv("away"));
+        assertEquals("\"a,b\"", ActivityEventLogReader.csv("a,b"));
+        assertEquals("\"say \"\"hi\"\"\"",
+                ActivityEventLogReader.csv("say \"hi\""));
+    }
+}
@@ -0,0 +1,44 @@
+package org.vaadin.addons.activitymonitor;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+public class ActivityHistoryTest {
+
+    @Test
+    public void timeInStateAndEpisodesAreComputedFromTransitions() {
+        ActivityHistory history = new ActivityHistory(8, ClientStatus.ACTIVE,
+                0);
+        history.statusChanged(ClientStatus.IDLE, 100);
+        history.timerTriggered("A", 150);
+        history.statusChanged(ClientStatus.ACTIVE, 200);
+        history.statusChanged(ClientStatus.IDLE, 500);
+
+        assertEquals(400, history.getTimeInState(ClientStatus.ACTIVE, 0, 600));
+        assertEquals(200, history.getTimeInState(ClientStatus.IDLE, 0, 600));
+        assertEquals(50, history.getTimeInState(ClientStatus.IDLE, 150, 200));
+        assertEquals(2, history.getEpisodeCount(ClientStatus.IDLE, 0, 600));
+        assertEquals(1, history.getTimerCount("A", 0, 600));
+        assertEquals("[ACTIVE@200, IDLE@500]",
+                history.getLastTransitions(2).toString());
+    }
+
+    @Test
+    public void oldestEventsAreOverwritten() {
+        ActivityHistory history = new ActivityHistory(2, ClientStatus.ACTIVE,
+                0);
+        history.statusChanged(ClientStatus.IDLE, 100);
+        history.statusChanged(ClientStatus.INACTIVE, 200);
+        history.timerTriggered("A", 300);
+
+        assertEquals(2, history.size());
+        assertEquals(100, history.getStartTime());
+        assertEquals(100,
+                history.getTimeInState(ClientStatus.IDLE, 0, 400));
+        assertEquals(0, history.getTimeInState(ClientStatus.ACTIVE, 0, 400));
+        assertEquals("[INACTIVE@200, A@300]",
+                history.getLastEvents(5).toString());
+    }
+}
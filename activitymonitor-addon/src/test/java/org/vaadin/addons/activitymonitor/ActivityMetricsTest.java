@@ -0,0 +1,53 @@
+package org.vaadin.addons.activitymonitor;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Test;
+import org.vaadin.addons.activitymonitor.ActivityInstrumentation.Rpc;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+public class ActivityMetricsTest {
+
+    private final ActivityMetrics metrics = new ActivityMetrics();
+    private final MockSession session = new MockSession();
+
+    @After
+    public void tearDown() {
+        ActivityMonitor.setInstrumentation(null);
+    }
+
+    @Test
+    public void monitorsReportTransitionsAndGauges() {
+        ActivityMonitor.setInstrumentation(metrics);
+        ActivityMonitor monitor = new ActivityMonitor(session.createUI());
+        assertEquals(1, metrics.getMonitorCount(ClientStatus.ACTIVE));
+
+        MockSession.rpc(monitor).clientStatusChanged(ClientStatus.IDLE);
+        MockSession.rpc(monitor).customTimerTriggered("A");
+        assertEquals(0, metrics.getMonitorCount(ClientStatus.ACTIVE));
+        assertEquals(1, metrics.getMonitorCount(ClientStatus.IDLE));
+        assertEquals(1, metrics.getTransitionCount(ClientStatus.ACTIVE,
+                ClientStatus.IDLE));
+        assertEquals(1, metrics.getRpcCount(Rpc.STATUS_CHANGE));
+        assertEquals(1, metrics.getCustomTimerCount());
+        assertEquals(1, metrics.getTimeInState(ClientStatus.ACTIVE)
+                .getCount());
+        assertEquals(2, metrics.getListenerLatency().getCount());
+
+        monitor.remove();
+        assertEquals(0, metrics.getMonitorCount(ClientStatus.IDLE));
+    }
+
+    @Test
+    public void histogramPercentilesAreBucketBounds() {
+        ActivityMetrics.Histogram histogram = new ActivityMetrics.Histogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getMax());
+        assertEquals(50.5, histogram.getMean(), 0.001);
+        assertEquals(63, histogram.getPercentile(50));
+        assertEquals(100, histogram.getPercentile(99));
+    }
+}
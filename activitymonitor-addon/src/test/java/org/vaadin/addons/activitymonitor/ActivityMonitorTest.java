@@ -0,0 +1,414 @@
+package org.vaadin.addons.activitymonitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.vaadin.addons.activitymonitor.ActivityMonitor.ClientStatusChangeListener;
+import org.vaadin.addons.activitymonitor.ActivityMonitor.CustomTimerListener;
+import org.vaadin.addons.activitymonitor.client.shared.ActivityEvent;
+import org.vaadin.addons.activitymonitor.client.shared.ActivityIntensity;
+import org.vaadin.addons.activitymonitor.client.shared.ActivityScheduler;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+import org.vaadin.addons.activitymonitor.client.shared.DeliveryMode;
+import org.vaadin.addons.activitymonitor.client.shared.OverflowPolicy;
+import org.vaadin.addons.activitymonitor.client.shared.TimingMode;
+
+import com.vaadin.shared.communication.URLReference;
+
+public class ActivityMonitorTest {
+
+    private final MockSession session = new MockSession();
+    private final ActivityMonitor monitor = new ActivityMonitor(
+            session.createUI());
+
+    @Test
+    public void batchIsReplayedInOrderWithServerTimestamps() {
+        List<String> events = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        monitor.addClientStatusChangeListener(
+                new ClientStatusChangeListener() {
+                    @Override
+                    public void statusChanged(ClientStatus newStatus) {
+                    }
+
+                    @Override
+                    public void statusChanged(ClientStatus newStatus,
+                            long timestamp) {
+                        events.add(newStatus.name());
+                        times.add(timestamp);
+                    }
+                });
+        monitor.addCustomTimerListener(events::add);
+
+        // Client clock is one hour ahead of the server
+        double clientNow = System.currentTimeMillis() + 3600000;
+        long before = System.currentTimeMillis();
+        MockSession.rpc(monitor).activityReported(Arrays.asList(
+                new ActivityEvent(ClientStatus.IDLE, null, clientNow - 3000),
+                new ActivityEvent(null, "A", clientNow - 2000),
+                new ActivityEvent(ClientStatus.INACTIVE, null,
+                        clientNow - 1000)),
+                clientNow);
+
+        assertEquals("[IDLE, A, INACTIVE]", events.toString());
+        assertEquals(ClientStatus.INACTIVE, monitor.getCurrentStatus());
+        assertEquals(2, monitor.getStatusSequence());
+        long idleTime = times.get(0);
+        assertTrue(idleTime >= before - 3000
+                && idleTime <= System.currentTimeMillis() - 3000);
+        assertEquals(2000, times.get(1) - idleTime);
+    }
+
+    @Test
+    public void deferredEventsUseLastMeasuredClockOffset() {
+        List<Long> times = new ArrayList<>();
+        monitor.addCustomTimerListener(new CustomTimerListener() {
+            @Override
+            public void timerTriggered(String name) {
+            }
+
+            @Override
+            public void timerTriggered(String name, long timestamp) {
+                times.add(timestamp);
+            }
+        });
+        monitor.addCustomTimer("A", 300000, DeliveryMode.DEFERRED);
+        assertEquals(DeliveryMode.DEFERRED,
+                monitor.getCustomTimerDeliveryMode("A"));
+
+        // Client clock is one hour ahead of the server
+        double clientNow = System.currentTimeMillis() + 3600000;
+        MockSession.rpc(monitor).activityReported(Arrays.asList(
+                new ActivityEvent(ClientStatus.IDLE, null, clientNow)),
+                clientNow);
+        long before = System.currentTimeMillis();
+        MockSession.rpc(monitor).deferredActivityReported(Arrays.asList(
+                new ActivityEvent(null, "A", clientNow - 5000)));
+
+        assertEquals(1, times.size());
+        assertTrue(times.get(0) >= before - 5000 - 1000
+                && times.get(0) <= before - 5000 + 1000);
+    }
+
+    @Test
+    public void serverTimingEnforcesThresholds() {
+        ManualScheduler scheduler = new ManualScheduler();
+        TimingWheel wheel = new TimingWheel(10, TimeUnit.MILLISECONDS, 64,
+                scheduler::nanoTime);
+        ActivityMonitor serverMonitor = new ActivityMonitor(
+                session.createUI()) {
+            @Override
+            ServerTiming createServerTiming(
+                    ActivityScheduler.Callback callback) {
+                return new ServerTiming(this, callback, wheel,
+                        scheduler::currentTimeMillis, scheduler);
+            }
+        };
+        serverMonitor.setIdleTimeThreshold(100);
+        serverMonitor.setInactiveTimeThreshold(0);
+        serverMonitor.setTimingMode(TimingMode.SERVER);
+
+        scheduler.advance(100, TimeUnit.MILLISECONDS);
+        wheel.advance();
+        scheduler.advance(0, TimeUnit.MILLISECONDS);
+        assertEquals(ClientStatus.ACTIVE,
+                serverMonitor.getCurrentStatus());
+
+        // The timeout expires at the end of its tick and is handed off to
+        // the executor
+        scheduler.advance(10, TimeUnit.MILLISECONDS);
+        wheel.advance();
+        scheduler.advance(0, TimeUnit.MILLISECONDS);
+        assertEquals(ClientStatus.IDLE, serverMonitor.getCurrentStatus());
+        assertEquals(100, serverMonitor.getStatusChangeTime());
+
+        double now = System.currentTimeMillis();
+        MockSession.rpc(serverMonitor).lastActivityReported(now - 5, now);
+        assertEquals(ClientStatus.ACTIVE,
+                serverMonitor.getCurrentStatus());
+        assertEquals(105, serverMonitor.getStatusChangeTime());
+    }
+
+    @Test
+    public void intensityIsOnlyKeptWhileMeasured() {
+        MockSession.rpc(monitor).intensityChanged(ActivityIntensity.HIGH);
+        assertEquals(null, monitor.getIntensity());
+
+        monitor.setIntensityWindow(30000);
+        MockSession.rpc(monitor).intensityChanged(ActivityIntensity.HIGH);
+        assertEquals(ActivityIntensity.HIGH, monitor.getIntensity());
+
+        // Measured afresh
+        monitor.setIntensityWindow(60000);
+        assertEquals(null, monitor.getIntensity());
+        monitor.setIntensityWindow(0);
+        MockSession.rpc(monitor).intensityChanged(ActivityIntensity.LOW);
+        assertEquals(null, monitor.getIntensity());
+    }
+
+    @Test
+    public void statusCanBeReadAndListenersChangedDuringDispatch()
+            throws InterruptedException {
+        int changes = 20000;
+        AtomicInteger notified = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        monitor.addClientStatusChangeListener(status -> {
+            notified.incrementAndGet();
+            // Registration from within a listener must not disturb the
+            // iteration in progress
+            ClientStatusChangeListener nested = s -> {
+            };
+            monitor.addClientStatusChangeListener(nested);
+            monitor.removeClientStatusChangeListener(nested);
+        });
+
+        CountDownLatch done = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            threads.add(new Thread(() -> {
+                long previous = 0;
+                while (done.getCount() > 0) {
+                    long sequence = monitor.getStatusSequence();
+                    if (sequence < previous
+                            || monitor.getCurrentStatus() == null) {
+                        failure.compareAndSet(null,
+                                new AssertionError("Torn read"));
+                    }
+                    previous = sequence;
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            while (done.getCount() > 0) {
+                ClientStatusChangeListener listener = status -> {
+                };
+                monitor.addClientStatusChangeListener(listener);
+                monitor.removeClientStatusChangeListener(listener);
+            }
+        }));
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler(
+                    (t, e) -> failure.compareAndSet(null, e));
+            thread.start();
+        }
+
+        try {
+            for (int i = 0; i < changes; i++) {
+                MockSession.rpc(monitor).clientStatusChanged(
+                        i % 2 == 0 ? ClientStatus.IDLE : ClientStatus.ACTIVE);
+            }
+        } finally {
+            done.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+
+        assertEquals(null, failure.get());
+        assertEquals(changes, notified.get());
+        assertEquals(changes, monitor.getStatusSequence());
+        assertEquals(ClientStatus.ACTIVE, monitor.getCurrentStatus());
+    }
+
+    private static final AtomicInteger restoredListeners = new AtomicInteger();
+
+    @Test
+    public void monitorSurvivesSerialization() throws Exception {
+        monitor.setIdleTimeThreshold(5000);
+        monitor.addCustomTimer("away", 120000, DeliveryMode.DEFERRED);
+        monitor.setHistoryCapacity(8);
+        monitor.setIntensityWindow(60000);
+        MockSession.rpc(monitor).intensityChanged(ActivityIntensity.MEDIUM);
+        // Not serializable; left out and restored
+        monitor.addClientStatusChangeListener(status -> {
+        });
+        monitor.setListenerRestorer(m -> {
+            restoredListeners.incrementAndGet();
+            m.addClientStatusChangeListener(status -> {
+            });
+        });
+        MockSession.rpc(monitor).clientStatusChanged(ClientStatus.IDLE);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(monitor);
+        }
+        ActivityMonitor copy;
+        try (ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = (ActivityMonitor) in.readObject();
+        }
+
+        assertEquals(1, restoredListeners.get());
+        assertEquals(5000, copy.getIdleTimeThreshold());
+        assertEquals(60000, copy.getInactiveTimeThreshold());
+        assertEquals(DeliveryMode.DEFERRED,
+                copy.getCustomTimerDeliveryMode("away"));
+        assertEquals(ClientStatus.IDLE, copy.getCurrentStatus());
+        assertEquals(monitor.getStatusChangeTime(),
+                copy.getStatusChangeTime());
+        assertEquals(1, copy.getStatusSequence());
+        assertEquals(1, copy.getHistory().size());
+        assertEquals(60000, copy.getIntensityWindow());
+        assertEquals(ActivityIntensity.MEDIUM, copy.getIntensity());
+
+        MockSession.rpc(copy).clientStatusChanged(ClientStatus.ACTIVE);
+        assertEquals(2, copy.getStatusSequence());
+    }
+
+    private static <T> T roundTrip(T object) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()))) {
+            @SuppressWarnings("unchecked")
+            T copy = (T) in.readObject();
+            return copy;
+        }
+    }
+
+    @Test
+    public void deserializedMonitorIsReconnected() throws Exception {
+        Path directory = Files.createTempDirectory("activity-log");
+        ActivityMetrics metrics = new ActivityMetrics();
+        ActivityRegistry registry = ActivityRegistry.get();
+        ActivityRegistry.setEnabled(true);
+        ActivityMonitor.setInstrumentation(metrics);
+        try (ActivityEventLog log = new ActivityEventLog(directory)) {
+            ActivityMonitor.setEventLog(log);
+            // The whole session is serialized along with the monitor
+            ActivityMonitor original = new ActivityMonitor(
+                    new MockSession().createUI());
+            // Not serializable; replaced with the default executor
+            original.setAsynchronousListeners(Runnable::run, 4,
+                    OverflowPolicy.DROP_NEWEST);
+            original.setTimingMode(TimingMode.SERVER);
+            assertEquals(1, registry.count(ClientStatus.ACTIVE));
+
+            ActivityMonitor copy = roundTrip(original);
+            assertEquals(2, registry.count(ClientStatus.ACTIVE));
+            assertEquals(2, metrics.getMonitorCount(ClientStatus.ACTIVE));
+            assertTrue(copy.getServerTiming() != null);
+            assertEquals(ActivityMonitor.getDefaultListenerExecutor(),
+                    copy.getListenerExecutor());
+
+            MockSession.rpc(copy).clientStatusChanged(ClientStatus.IDLE);
+            assertEquals(1, registry.count(ClientStatus.IDLE));
+            assertEquals(1, metrics.getTransitionCount(ClientStatus.ACTIVE,
+                    ClientStatus.IDLE));
+            assertEquals(1, log.getAppendedCount());
+
+            copy.remove();
+            original.remove();
+            assertEquals(0, registry.count());
+            assertEquals(null, copy.getServerTiming());
+        } finally {
+            // Leave the shared registry empty for the other tests
+            for (ClientStatus status : ClientStatus.values()) {
+                registry.getMonitors(status).forEach(ActivityMonitor::remove);
+            }
+            ActivityRegistry.setEnabled(false);
+            ActivityMonitor.setInstrumentation(null);
+            ActivityMonitor.setEventLog(null);
+            for (Path path : ActivityEventLogReader.listSegments(directory)) {
+                Files.delete(path);
+            }
+            Files.deleteIfExists(
+                    directory.resolve(ActivityEventLog.TIMER_FILE));
+            Files.delete(directory);
+        }
+    }
+
+    @Test
+    public void compactStateKeepsEveryField() throws Exception {
+        CompactMonitorState defaults = new CompactMonitorState();
+        CompactMonitorState state = new CompactMonitorState();
+        List<Field> fields = new ArrayList<>();
+        for (Field field : CompactMonitorState.class.getFields()) {
+            if (!Modifier.isStatic(field.getModifiers())) {
+                fields.add(field);
+                field.set(state, changed(field, field.get(defaults)));
+            }
+        }
+        assertTrue(fields.size() > 0);
+
+        CompactMonitorState copy = roundTrip(state);
+        for (Field field : fields) {
+            assertTrue(field.getName(), !Objects.equals(field.get(defaults),
+                    field.get(state)));
+            assertEquals(field.getName(), field.get(state), field.get(copy));
+        }
+    }
+
+    /**
+     * Get a value that differs from the default value of a state field.
+     */
+    private static Object changed(Field field, Object value) {
+        Class<?> type = field.getType();
+        if (type == int.class) {
+            return (Integer) value + 1;
+        } else if (type == boolean.class) {
+            return !(Boolean) value;
+        } else if (type.isEnum()) {
+            Object[] constants = type.getEnumConstants();
+            return constants[(((Enum<?>) value).ordinal() + 1)
+                    % constants.length];
+        } else if (type == Map.class) {
+            Class<?> valueType = (Class<?>) ((ParameterizedType) field
+                    .getGenericType()).getActualTypeArguments()[1];
+            Map<String, Object> map = new HashMap<>();
+            map.put("first", valueType == Integer.class ? (Object) 1000
+                    : new Reference("app://first"));
+            return map;
+        } else if (type == Set.class) {
+            return new HashSet<>(Arrays.asList("first", "second"));
+        }
+        throw new AssertionError("No test value for " + field);
+    }
+
+    /**
+     * A resource reference that is compared by its URL.
+     */
+    @SuppressWarnings("serial")
+    private static class Reference extends URLReference {
+        private Reference(String url) {
+            setURL(url);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof URLReference
+                    && Objects.equals(getURL(), ((URLReference) obj).getURL());
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(getURL());
+        }
+    }
+}
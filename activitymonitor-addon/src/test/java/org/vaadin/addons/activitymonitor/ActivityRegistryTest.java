@@ -0,0 +1,47 @@
+package org.vaadin.addons.activitymonitor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+
+import com.vaadin.ui.UI;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+public class ActivityRegistryTest {
+
+    private final ActivityRegistry registry = ActivityRegistry.get();
+    private final MockSession session = new MockSession();
+
+    @Before
+    public void setUp() {
+        ActivityRegistry.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        ActivityRegistry.setEnabled(false);
+    }
+
+    @Test
+    public void monitorsAreIndexedByStatus() {
+        UI ui = session.createUI();
+        ActivityMonitor monitor = new ActivityMonitor(ui);
+        ActivityMonitor other = new ActivityMonitor(session.createUI());
+
+        assertEquals(2, registry.count(ClientStatus.ACTIVE));
+
+        MockSession.rpc(monitor).clientStatusChanged(ClientStatus.IDLE);
+        assertEquals(1, registry.count(ClientStatus.ACTIVE));
+        assertEquals(1, registry.count(ClientStatus.IDLE));
+        assertEquals(Collections.singletonList(ui),
+                registry.getUIs(ClientStatus.IDLE));
+
+        monitor.remove();
+        other.remove();
+        assertEquals(0, registry.count());
+    }
+}
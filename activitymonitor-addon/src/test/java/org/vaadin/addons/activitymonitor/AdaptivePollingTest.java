@@ -0,0 +1,93 @@
+package org.vaadin.addons.activitymonitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+import org.vaadin.addons.activitymonitor.client.shared.ActivityMonitorRPC;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+import com.vaadin.ui.UI;
+
+public class AdaptivePollingTest {
+
+    private final MockSession session = new MockSession();
+    private final UI ui = session.createUI();
+    private final ActivityMonitor monitor = new ActivityMonitor(ui);
+    private final ActivityMonitorRPC rpc = MockSession.rpc(monitor);
+
+    @Test
+    public void pollIntervalFollowsStatus() {
+        ui.setPollInterval(2000);
+        AdaptivePolling polling = new AdaptivePolling(monitor);
+        polling.setPollInterval(ClientStatus.IDLE, 15000);
+
+        rpc.clientStatusChanged(ClientStatus.IDLE);
+        assertEquals(15000, ui.getPollInterval());
+        rpc.clientStatusChanged(ClientStatus.INACTIVE);
+        assertEquals(-1, ui.getPollInterval());
+        rpc.clientStatusChanged(ClientStatus.ACTIVE);
+        assertEquals(2000, ui.getPollInterval());
+    }
+
+    @Test
+    public void heartbeatIsSuspendedWhileInactive() {
+        AdaptivePolling polling = new AdaptivePolling(monitor);
+        polling.setHeartbeatSuspended(ClientStatus.INACTIVE, true);
+
+        rpc.clientStatusChanged(ClientStatus.IDLE);
+        assertFalse(monitor.isHeartbeatSuspended());
+        rpc.clientStatusChanged(ClientStatus.INACTIVE);
+        assertTrue(monitor.isHeartbeatSuspended());
+        rpc.clientStatusChanged(ClientStatus.ACTIVE);
+        assertFalse(monitor.isHeartbeatSuspended());
+    }
+
+    @Test
+    public void closeRestoresActiveSettings() {
+        ui.setPollInterval(2000);
+        AdaptivePolling polling = new AdaptivePolling(monitor);
+        polling.setHeartbeatSuspended(ClientStatus.INACTIVE, true);
+        rpc.clientStatusChanged(ClientStatus.INACTIVE);
+        assertEquals(-1, ui.getPollInterval());
+
+        polling.close();
+        assertEquals(2000, ui.getPollInterval());
+        assertFalse(monitor.isHeartbeatSuspended());
+        rpc.clientStatusChanged(ClientStatus.IDLE);
+        rpc.clientStatusChanged(ClientStatus.INACTIVE);
+        assertEquals(2000, ui.getPollInterval());
+    }
+
+    @Test
+    public void inactiveUIResumesPollingAfterDeserialization()
+            throws Exception {
+        ui.setPollInterval(2000);
+        AdaptivePolling polling = new AdaptivePolling(monitor);
+        polling.setHeartbeatSuspended(ClientStatus.INACTIVE, true);
+        rpc.clientStatusChanged(ClientStatus.INACTIVE);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(monitor);
+        }
+        ActivityMonitor copy;
+        try (ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()))) {
+            copy = (ActivityMonitor) in.readObject();
+        }
+        assertEquals(-1, copy.getUI().getPollInterval());
+        assertTrue(copy.isHeartbeatSuspended());
+
+        MockSession.rpc(copy).clientStatusChanged(ClientStatus.ACTIVE);
+        assertEquals(2000, copy.getUI().getPollInterval());
+        assertFalse(copy.isHeartbeatSuspended());
+        polling.close();
+    }
+}
@@ -0,0 +1,79 @@
+package org.vaadin.addons.activitymonitor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+import org.vaadin.addons.activitymonitor.client.shared.OverflowPolicy;
+
+public class ListenerDispatcherTest {
+
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final List<String> delivered = new ArrayList<>();
+
+    private ListenerDispatcher create(OverflowPolicy policy) {
+        return new ListenerDispatcher(tasks::add, 2, policy,
+                e -> delivered.add(e.timerName == null ? e.status.name()
+                        : e.timerName));
+    }
+
+    @Test
+    public void eventsAreDeliveredInOrderByOneTask() {
+        ListenerDispatcher dispatcher = create(OverflowPolicy.DROP_NEWEST);
+        dispatcher.dispatch(
+                new ListenerDispatcher.Event(ClientStatus.IDLE, null, 0));
+        dispatcher.dispatch(new ListenerDispatcher.Event(null, "A", 0));
+        dispatcher.dispatch(new ListenerDispatcher.Event(null, "B", 0));
+
+        assertEquals(1, tasks.size());
+        tasks.get(0).run();
+        assertEquals("[IDLE, A]", delivered.toString());
+        assertEquals(1, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void coalescingReplacesQueuedEventOfSameKind() {
+        ListenerDispatcher dispatcher = create(OverflowPolicy.COALESCE);
+        dispatcher.dispatch(
+                new ListenerDispatcher.Event(ClientStatus.IDLE, null, 0));
+        dispatcher.dispatch(new ListenerDispatcher.Event(null, "A", 0));
+        dispatcher.dispatch(
+                new ListenerDispatcher.Event(ClientStatus.INACTIVE, null, 0));
+
+        tasks.get(0).run();
+        // The new status change takes the place of the queued one
+        assertEquals("[INACTIVE, A]", delivered.toString());
+        assertEquals(1, dispatcher.getDroppedCount());
+    }
+
+    @Test
+    public void errorInListenerDoesNotStopDelivery() {
+        ListenerDispatcher dispatcher = new ListenerDispatcher(tasks::add, 4,
+                OverflowPolicy.DROP_NEWEST, e -> {
+                    if ("A".equals(e.timerName)) {
+                        throw new AssertionError("listener failed");
+                    }
+                    delivered.add(e.timerName);
+                });
+        dispatcher.dispatch(new ListenerDispatcher.Event(null, "A", 0));
+        dispatcher.dispatch(new ListenerDispatcher.Event(null, "B", 0));
+
+        try {
+            tasks.get(0).run();
+        } catch (AssertionError e) {
+            // Passed on to the executor
+        }
+        // The remaining event gets a task of its own
+        assertEquals(2, tasks.size());
+        tasks.get(1).run();
+        assertEquals("[B]", delivered.toString());
+
+        dispatcher.dispatch(new ListenerDispatcher.Event(null, "C", 0));
+        assertEquals(3, tasks.size());
+        tasks.get(2).run();
+        assertEquals("[B, C]", delivered.toString());
+    }
+}
@@ -0,0 +1,203 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single-threaded scheduler with a virtual clock. Tasks only run when the
+ * test advances the clock, on the test thread, in deadline order.
+ */
+public class ManualScheduler extends AbstractExecutorService
+        implements ScheduledExecutorService {
+
+    private final class Task implements ScheduledFuture<Object> {
+        private final Runnable command;
+        private final long period;
+        private final long sequence = taskCount++;
+        private long deadline;
+        private boolean cancelled = false;
+        private boolean done = false;
+
+        private Task(Runnable command, long deadline, long period) {
+            this.command = command;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            Task other = (Task) o;
+            int c = Long.compare(deadline, other.deadline);
+            return c != 0 ? c : Long.compare(sequence, other.sequence);
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (ManualScheduler.this) {
+                if (done || cancelled) {
+                    return false;
+                }
+                cancelled = true;
+                tasks.remove(this);
+                return true;
+            }
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public boolean isDone() {
+            return done || cancelled;
+        }
+
+        @Override
+        public Object get() {
+            return null;
+        }
+
+        @Override
+        public Object get(long timeout, TimeUnit unit) {
+            return null;
+        }
+    }
+
+    private final PriorityQueue<Task> tasks = new PriorityQueue<>();
+    private long taskCount = 0;
+    private long now = 0;
+    private boolean shutdown = false;
+
+    /**
+     * Get the virtual time.
+     */
+    public synchronized long nanoTime() {
+        return now;
+    }
+
+    /**
+     * Get the virtual time in milliseconds.
+     */
+    public synchronized long currentTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(now);
+    }
+
+    /**
+     * Advance the virtual time, running the tasks that become due.
+     */
+    public void advance(long time, TimeUnit unit) {
+        long target;
+        synchronized (this) {
+            target = now + unit.toNanos(time);
+        }
+        while (true) {
+            Task task;
+            synchronized (this) {
+                task = tasks.peek();
+                if (task == null || task.deadline > target) {
+                    now = target;
+                    return;
+                }
+                tasks.poll();
+                now = Math.max(now, task.deadline);
+            }
+            task.command.run();
+            synchronized (this) {
+                if (task.period > 0 && !task.cancelled) {
+                    task.deadline += task.period;
+                    tasks.add(task);
+                } else {
+                    task.done = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of tasks waiting to run.
+     */
+    public synchronized int getQueueSize() {
+        return tasks.size();
+    }
+
+    private synchronized Task add(Runnable command, long delay, long period,
+            TimeUnit unit) {
+        Task task = new Task(command, now + Math.max(unit.toNanos(delay), 0),
+                unit.toNanos(period));
+        tasks.add(task);
+        return task;
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay,
+            TimeUnit unit) {
+        return add(command, delay, 0, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay,
+            TimeUnit unit) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command,
+            long initialDelay, long period, TimeUnit unit) {
+        return add(command, initialDelay, Math.max(period, 1), unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command,
+            long initialDelay, long delay, TimeUnit unit) {
+        return add(command, initialDelay, Math.max(delay, 1), unit);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        add(command, 0, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        shutdown = true;
+    }
+
+    @Override
+    public synchronized List<Runnable> shutdownNow() {
+        shutdown = true;
+        List<Runnable> pending = new ArrayList<>();
+        for (Task task : tasks) {
+            pending.add(task.command);
+        }
+        tasks.clear();
+        return pending;
+    }
+
+    @Override
+    public synchronized boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public synchronized boolean isTerminated() {
+        return shutdown && tasks.isEmpty();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) {
+        return isTerminated();
+    }
+}
@@ -0,0 +1,143 @@
+package org.vaadin.addons.activitymonitor;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.lang.reflect.Field;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.vaadin.server.ClientConnector;
+import com.vaadin.server.DefaultDeploymentConfiguration;
+import com.vaadin.server.DeploymentConfiguration;
+import com.vaadin.server.ServiceException;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinServletService;
+import com.vaadin.server.VaadinSession;
+import com.vaadin.ui.UI;
+
+import org.vaadin.addons.activitymonitor.client.shared.ActivityMonitorRPC;
+
+/**
+ * A servlet-less session that is always considered locked and runs access
+ * tasks immediately, one at a time like a real session, so monitors can be
+ * driven without a servlet container.
+ * Also used by the benchmarks.
+ */
+@SuppressWarnings("serial")
+public class MockSession extends VaadinSession {
+
+    /**
+     * A service that only generates connector IDs
+     */
+    private static class MockService extends VaadinServletService {
+        private MockService(DeploymentConfiguration configuration)
+                throws ServiceException {
+            super(null, configuration);
+        }
+
+        @Override
+        public String generateConnectorId(VaadinSession session,
+                ClientConnector connector) {
+            return session.getNextConnectorId();
+        }
+    }
+
+    private final Lock lock = new ReentrantLock();
+    private int uiId = 0;
+
+    public MockSession() {
+        super(createService());
+    }
+
+    private static VaadinServletService createService() {
+        Properties properties = new Properties();
+        properties.setProperty("productionMode", "true");
+        try {
+            return new MockService(new DefaultDeploymentConfiguration(
+                    MockService.class, properties));
+        } catch (ServiceException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    @Override
+    public boolean hasLock() {
+        return true;
+    }
+
+    @Override
+    public void lock() {
+    }
+
+    @Override
+    public void unlock() {
+    }
+
+    @Override
+    public Lock getLockInstance() {
+        return lock;
+    }
+
+    @Override
+    public Future<Void> access(Runnable command) {
+        lock.lock();
+        try {
+            command.run();
+        } finally {
+            lock.unlock();
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    // Restores the transient service, as the service does when it loads a
+    // deserialized session
+    private void readObject(ObjectInputStream in)
+            throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        try {
+            Field field = VaadinSession.class.getDeclaredField("service");
+            field.setAccessible(true);
+            field.set(this, createService());
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Create a new UI attached to this session.
+     */
+    public UI createUI() {
+        UI ui = new UI() {
+            @Override
+            protected void init(VaadinRequest request) {
+            }
+        };
+        try {
+            Field field = UI.class.getDeclaredField("uiId");
+            field.setAccessible(true);
+            field.set(ui, uiId++);
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+        ui.setSession(this);
+        addUI(ui);
+        return ui;
+    }
+
+    /**
+     * Get the server-side RPC implementation of a monitor, as invoked by the
+     * client.
+     */
+    public static ActivityMonitorRPC rpc(ActivityMonitor monitor) {
+        try {
+            Field field = ActivityMonitor.class.getDeclaredField("rpc");
+            field.setAccessible(true);
+            return (ActivityMonitorRPC) field.get(monitor);
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
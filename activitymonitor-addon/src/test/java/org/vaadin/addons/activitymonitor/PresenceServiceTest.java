@@ -0,0 +1,91 @@
+package org.vaadin.addons.activitymonitor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+import org.junit.After;
+import org.junit.Test;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+import com.vaadin.ui.UI;
+
+public class PresenceServiceTest {
+
+    private final MockSession session = new MockSession();
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+            1);
+    private final PresenceService presence = new PresenceService(100,
+            scheduler);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void changesAreCoalescedPerSubscriber()
+            throws InterruptedException {
+        ActivityMonitor alice = new ActivityMonitor(session.createUI());
+        ActivityMonitor bob = new ActivityMonitor(session.createUI());
+        presence.publish(alice, "alice");
+        presence.publish(bob, "bob");
+
+        List<String> batches = new ArrayList<>();
+        presence.subscribe(session.createUI(), Arrays.asList("alice", "bob"),
+                changes -> {
+                    synchronized (batches) {
+                        batches.add(new TreeMap<>(changes).toString());
+                    }
+                });
+        awaitBatches(batches, 1);
+
+        // Alice flaps, Bob goes idle
+        MockSession.rpc(alice).clientStatusChanged(ClientStatus.IDLE);
+        MockSession.rpc(alice).clientStatusChanged(ClientStatus.ACTIVE);
+        MockSession.rpc(bob).clientStatusChanged(ClientStatus.IDLE);
+        awaitBatches(batches, 2);
+        Thread.sleep(200);
+
+        synchronized (batches) {
+            assertEquals("[{alice=ACTIVE, bob=ACTIVE}, {bob=IDLE}]",
+                    batches.toString());
+        }
+        assertEquals(ClientStatus.IDLE, presence.getPresence("bob"));
+        assertEquals(ClientStatus.INACTIVE, presence.getPresence("carol"));
+    }
+
+    @Test
+    public void uisStaySerializable() throws IOException {
+        UI published = session.createUI();
+        UI subscribed = session.createUI();
+        presence.publish(new ActivityMonitor(published), "alice");
+        presence.subscribe(subscribed, Arrays.asList("alice"), changes -> {
+        });
+        try (ObjectOutputStream out = new ObjectOutputStream(
+                new ByteArrayOutputStream())) {
+            out.writeObject(published);
+            out.writeObject(subscribed);
+        }
+    }
+
+    private static void awaitBatches(List<String> batches, int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (batches) {
+                if (batches.size() >= count) {
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package org.vaadin.addons.activitymonitor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collection;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+import org.junit.After;
+import org.junit.Test;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+public class PresenceWriteBehindTest {
+
+    private final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+            1);
+    private final InMemoryPresenceStore store = new InMemoryPresenceStore();
+
+    /**
+     * Fails a given number of writes before passing them on
+     */
+    private class FailingStore implements PresenceStore {
+        private final AtomicInteger failures;
+
+        private FailingStore(int failures) {
+            this.failures = new AtomicInteger(failures);
+        }
+
+        @Override
+        public void write(Collection<Record> records) throws Exception {
+            if (failures.getAndDecrement() > 0) {
+                throw new Exception("Store unavailable");
+            }
+            store.write(records);
+        }
+
+        @Override
+        public Record read(String principal) {
+            return store.read(principal);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    private static void await(LongSupplier value, long expected)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (value.getAsLong() < expected
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void changesAreCoalescedPerPrincipal()
+            throws InterruptedException {
+        PresenceWriteBehind writeBehind = new PresenceWriteBehind(store,
+                Runnable::run, scheduler);
+        writeBehind.setFlushInterval(50);
+        writeBehind.record("alice", ClientStatus.IDLE, 1);
+        writeBehind.record("alice", ClientStatus.INACTIVE, 2);
+        writeBehind.record("bob", ClientStatus.IDLE, 3);
+        writeBehind.record("alice", ClientStatus.ACTIVE, 4);
+
+        await(writeBehind::getWrittenCount, 2);
+        assertEquals(1, store.getWriteCount());
+        assertEquals(2, store.getRecordCount());
+        assertEquals(ClientStatus.ACTIVE, store.read("alice").getStatus());
+        assertEquals(4, store.read("alice").getTimestamp());
+        assertEquals(4, writeBehind.getReceivedCount());
+    }
+
+    @Test
+    public void fullBatchIsWrittenRightAway() {
+        PresenceWriteBehind writeBehind = new PresenceWriteBehind(store,
+                Runnable::run, scheduler);
+        writeBehind.setFlushInterval(60000);
+        writeBehind.setMaxBatchSize(3);
+        writeBehind.record("a", ClientStatus.IDLE, 1);
+        writeBehind.record("b", ClientStatus.IDLE, 1);
+        assertEquals(0, store.getWriteCount());
+        writeBehind.record("c", ClientStatus.IDLE, 1);
+        assertEquals(1, store.getWriteCount());
+        assertEquals(0, writeBehind.getPendingCount());
+    }
+
+    @Test
+    public void failedWriteIsRetriedWithoutOverwritingNewerChanges()
+            throws InterruptedException {
+        PresenceWriteBehind writeBehind = new PresenceWriteBehind(
+                new FailingStore(1), Runnable::run, scheduler);
+        writeBehind.setFlushInterval(60000);
+        writeBehind.setRetryDelay(50);
+        writeBehind.record("alice", ClientStatus.IDLE, 1);
+        writeBehind.record("bob", ClientStatus.IDLE, 1);
+        writeBehind.flush();
+        assertEquals(1, writeBehind.getFailedWriteCount());
+        writeBehind.record("alice", ClientStatus.ACTIVE, 2);
+
+        await(writeBehind::getWrittenCount, 2);
+        assertEquals(2, writeBehind.getWrittenCount());
+        assertEquals(ClientStatus.ACTIVE, store.read("alice").getStatus());
+        assertEquals(ClientStatus.IDLE, store.read("bob").getStatus());
+    }
+
+    @Test
+    public void writeFailingWithErrorIsRetried() {
+        AtomicInteger errors = new AtomicInteger(1);
+        PresenceStore failing = new PresenceStore() {
+            @Override
+            public void write(Collection<Record> records) throws Exception {
+                if (errors.getAndDecrement() > 0) {
+                    throw new AssertionError("Store crashed");
+                }
+                store.write(records);
+            }
+
+            @Override
+            public Record read(String principal) {
+                return store.read(principal);
+            }
+        };
+        // Like a pool thread that dies from the error
+        PresenceWriteBehind writeBehind = new PresenceWriteBehind(failing,
+                command -> {
+                    try {
+                        command.run();
+                    } catch (AssertionError e) {
+                        // Ignore
+                    }
+                }, scheduler);
+        writeBehind.setFlushInterval(60000);
+        writeBehind.setRetryDelay(60000);
+        writeBehind.record("alice", ClientStatus.IDLE, 1);
+        writeBehind.flush();
+        assertEquals(1, writeBehind.getFailedWriteCount());
+        assertEquals(1, writeBehind.getPendingCount());
+
+        writeBehind.flush();
+        assertEquals(1, writeBehind.getWrittenCount());
+        assertEquals(ClientStatus.IDLE, store.read("alice").getStatus());
+    }
+
+    @Test
+    public void bufferIsBoundedWhileStoreFails() {
+        PresenceWriteBehind writeBehind = new PresenceWriteBehind(
+                new FailingStore(Integer.MAX_VALUE), Runnable::run,
+                scheduler);
+        writeBehind.setRetryDelay(60000);
+        writeBehind.setCapacity(2);
+        writeBehind.record("a", ClientStatus.IDLE, 1);
+        writeBehind.flush();
+        writeBehind.record("b", ClientStatus.IDLE, 1);
+        writeBehind.record("c", ClientStatus.IDLE, 1);
+        writeBehind.record("a", ClientStatus.ACTIVE, 2);
+        assertEquals(2, writeBehind.getPendingCount());
+        assertEquals(1, writeBehind.getDroppedCount());
+    }
+
+    @Test
+    public void presenceChangesAreWritten() {
+        PresenceService presence = new PresenceService(0, scheduler);
+        PresenceWriteBehind writeBehind = new PresenceWriteBehind(store,
+                Runnable::run, scheduler);
+        writeBehind.setFlushInterval(60000);
+        presence.setWriteBehind(writeBehind);
+
+        MockSession session = new MockSession();
+        ActivityMonitor monitor = new ActivityMonitor(session.createUI());
+        presence.publish(monitor, "alice");
+        MockSession.rpc(monitor).clientStatusChanged(ClientStatus.IDLE);
+        MockSession.rpc(monitor).clientStatusChanged(ClientStatus.INACTIVE);
+
+        writeBehind.flush();
+        assertEquals(ClientStatus.INACTIVE, store.read("alice").getStatus());
+        assertEquals(1, store.getRecordCount());
+    }
+}
@@ -0,0 +1,111 @@
+package org.vaadin.addons.activitymonitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+public class PriorityAccessExecutorTest {
+
+    private final MockSession session = new MockSession();
+    private final Queue<Runnable> pending = new ArrayDeque<>();
+    private final PriorityAccessExecutor executor = new PriorityAccessExecutor(
+            pending::add, 1);
+
+    @Test
+    public void activeClientsGoFirst() {
+        ActivityMonitor busy = new ActivityMonitor(session.createUI());
+        ActivityMonitor inactive = new ActivityMonitor(session.createUI());
+        ActivityMonitor active = new ActivityMonitor(session.createUI());
+        MockSession.rpc(inactive).clientStatusChanged(ClientStatus.INACTIVE);
+
+        List<String> order = new ArrayList<>();
+        executor.access(busy, () -> order.add("busy"));
+        executor.access(inactive, () -> order.add("inactive"));
+        executor.access(active, () -> order.add("active 1"));
+        executor.access(active, () -> order.add("active 2"));
+        assertEquals(3, executor.getQueuedCount());
+
+        // Both tasks for the active UI run as one batch
+        while (!pending.isEmpty()) {
+            pending.poll().run();
+        }
+        assertEquals("[busy, active 1, active 2, inactive]",
+                order.toString());
+    }
+
+    @Test
+    public void batchesRunInDeadlineOrder() {
+        ActivityMonitor busy = new ActivityMonitor(session.createUI());
+        ActivityMonitor first = new ActivityMonitor(session.createUI());
+        ActivityMonitor second = new ActivityMonitor(session.createUI());
+        ActivityMonitor third = new ActivityMonitor(session.createUI());
+        Map<ActivityMonitor, Long> delays = new HashMap<>();
+        delays.put(first, 60000L);
+        delays.put(second, 30000L);
+        delays.put(third, 90000L);
+        executor.setDelayPolicy(monitor -> delays.getOrDefault(monitor, 0L));
+
+        List<String> order = new ArrayList<>();
+        executor.access(busy, () -> order.add("busy"));
+        executor.access(first, () -> order.add("first 1"));
+        executor.access(second, () -> order.add("second"));
+        executor.access(third, () -> order.add("third"));
+        // An earlier deadline moves the whole batch forward
+        delays.put(first, 0L);
+        executor.access(first, () -> order.add("first 2"));
+
+        while (!pending.isEmpty()) {
+            pending.poll().run();
+        }
+        assertEquals("[busy, first 1, first 2, second, third]",
+                order.toString());
+    }
+
+    @Test
+    public void failingTasksDoNotAffectOthers() throws Exception {
+        ActivityMonitor monitor = new ActivityMonitor(session.createUI());
+        ActivityMonitor other = new ActivityMonitor(session.createUI());
+        List<String> order = new ArrayList<>();
+        executor.access(other, () -> order.add("busy"));
+        Future<Void> exception = executor.access(monitor, () -> {
+            throw new IllegalStateException();
+        });
+        Future<Void> error = executor.access(monitor, () -> {
+            throw new AssertionError();
+        });
+        Future<Void> after = executor.access(monitor,
+                () -> order.add("after"));
+        Future<Void> next = executor.access(other, () -> order.add("next"));
+
+        while (!pending.isEmpty()) {
+            pending.poll().run();
+        }
+        assertEquals("[busy, after, next]", order.toString());
+        assertCause(IllegalStateException.class, exception);
+        assertCause(AssertionError.class, error);
+        after.get(0, TimeUnit.MILLISECONDS);
+        next.get(0, TimeUnit.MILLISECONDS);
+    }
+
+    private static void assertCause(Class<?> type, Future<Void> future)
+            throws Exception {
+        try {
+            future.get(0, TimeUnit.MILLISECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(type, e.getCause().getClass());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package org.vaadin.addons.activitymonitor;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+public class SessionActivityAggregatorTest {
+
+    private final MockSession session = new MockSession();
+
+    @Test
+    public void onlyAggregateChangesAreReported() {
+        ActivityMonitor first = new ActivityMonitor(session.createUI());
+        SessionActivityAggregator aggregator = SessionActivityAggregator
+                .get(session);
+        ActivityMonitor second = new ActivityMonitor(session.createUI());
+        assertEquals(2, aggregator.getMonitors().size());
+
+        List<ClientStatus> reported = new ArrayList<>();
+        aggregator.addSessionStatusChangeListener(
+                (s, status) -> reported.add(status));
+
+        // The other tab is still active
+        MockSession.rpc(first).clientStatusChanged(ClientStatus.INACTIVE);
+        assertEquals("[]", reported.toString());
+
+        MockSession.rpc(second).clientStatusChanged(ClientStatus.IDLE);
+        MockSession.rpc(second).clientStatusChanged(ClientStatus.INACTIVE);
+        assertEquals("[IDLE, INACTIVE]", reported.toString());
+
+        MockSession.rpc(second).clientStatusChanged(ClientStatus.ACTIVE);
+        first.remove();
+        assertEquals("[IDLE, INACTIVE, ACTIVE]", reported.toString());
+        assertEquals(1, aggregator.getMonitors().size());
+    }
+
+    @Test
+    public void hiddenRanksBetweenIdleAndInactive() {
+        List<ClientStatus> hidden = Collections
+                .singletonList(ClientStatus.HIDDEN);
+        assertEquals(ClientStatus.HIDDEN,
+                SessionActivityAggregator.MOST_ACTIVE.aggregate(hidden));
+        assertEquals(ClientStatus.HIDDEN,
+                SessionActivityAggregator.LEAST_ACTIVE.aggregate(hidden));
+
+        List<ClientStatus> mixed = Arrays.asList(ClientStatus.INACTIVE,
+                ClientStatus.HIDDEN, ClientStatus.IDLE);
+        assertEquals(ClientStatus.IDLE,
+                SessionActivityAggregator.MOST_ACTIVE.aggregate(mixed));
+        assertEquals(ClientStatus.INACTIVE,
+                SessionActivityAggregator.LEAST_ACTIVE.aggregate(mixed));
+        assertEquals(ClientStatus.HIDDEN, SessionActivityAggregator.MOST_ACTIVE
+                .aggregate(mixed.subList(0, 2)));
+    }
+}
@@ -0,0 +1,64 @@
+package org.vaadin.addons.activitymonitor;
+
+import static org.junit.Assert.assertEquals;
+
+import com.vaadin.server.VaadinSession;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+public class SessionEvictionSchedulerTest {
+
+    private final SessionEvictionScheduler scheduler = SessionEvictionScheduler
+            .get();
+    private final MockSession session = new MockSession();
+
+    @Before
+    public void setUp() {
+        SessionEvictionScheduler.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        SessionEvictionScheduler.setEnabled(false);
+        scheduler.setGracePeriod(1800000);
+        scheduler.setEvictionVeto(null);
+    }
+
+    @Test
+    public void sessionIsClosedWhenAllMonitorsAreInactive()
+            throws InterruptedException {
+        scheduler.setGracePeriod(50);
+        ActivityMonitor first = new ActivityMonitor(session.createUI());
+        ActivityMonitor second = new ActivityMonitor(session.createUI());
+        long evictions = scheduler.getEvictionCount();
+
+        MockSession.rpc(first).clientStatusChanged(ClientStatus.INACTIVE);
+        assertEquals(0, scheduler.getPendingCount());
+
+        MockSession.rpc(second).clientStatusChanged(ClientStatus.INACTIVE);
+        assertEquals(1, scheduler.getPendingCount());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (session.getState() == VaadinSession.State.OPEN
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(VaadinSession.State.CLOSING, session.getState());
+        assertEquals(evictions + 1, scheduler.getEvictionCount());
+        assertEquals(0, scheduler.getPendingCount());
+    }
+
+    @Test
+    public void activityCancelsEviction() {
+        ActivityMonitor monitor = new ActivityMonitor(session.createUI());
+
+        MockSession.rpc(monitor).clientStatusChanged(ClientStatus.INACTIVE);
+        assertEquals(1, scheduler.getPendingCount());
+
+        MockSession.rpc(monitor).clientStatusChanged(ClientStatus.ACTIVE);
+        assertEquals(0, scheduler.getPendingCount());
+    }
+}
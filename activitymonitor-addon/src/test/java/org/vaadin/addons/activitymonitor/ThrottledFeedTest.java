@@ -0,0 +1,127 @@
+package org.vaadin.addons.activitymonitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.vaadin.addons.activitymonitor.client.shared.ActivityMonitorRPC;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+public class ThrottledFeedTest {
+
+    private final MockSession session = new MockSession();
+    private final ActivityMonitor monitor = new ActivityMonitor(
+            session.createUI());
+    private final ActivityMonitorRPC rpc = MockSession.rpc(monitor);
+    private final ManualScheduler scheduler = new ManualScheduler();
+    private final List<Integer> delivered = new ArrayList<>();
+    private final ThrottledFeed<Integer> feed = new ThrottledFeed<>(monitor,
+            value -> {
+                synchronized (delivered) {
+                    delivered.add(value);
+                }
+            }, scheduler, scheduler::nanoTime);
+
+    @Test
+    public void valuesWithinTheIntervalAreCoalesced() {
+        rpc.clientStatusChanged(ClientStatus.IDLE);
+        feed.push(1);
+        feed.push(2);
+        feed.push(3);
+        assertEquals(Arrays.asList(1), delivered);
+
+        scheduler.advance(999, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(1), delivered);
+        scheduler.advance(1, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(1, 3), delivered);
+
+        // The next value waits for a whole interval after the last delivery
+        scheduler.advance(500, TimeUnit.MILLISECONDS);
+        feed.push(4);
+        assertEquals(Arrays.asList(1, 3), delivered);
+        scheduler.advance(500, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(1, 3, 4), delivered);
+    }
+
+    @Test
+    public void pendingValueFollowsStatusChanges() {
+        rpc.clientStatusChanged(ClientStatus.IDLE);
+        feed.push(1);
+        feed.push(2);
+
+        // Re-throttled with the longer interval when the timer fires
+        rpc.clientStatusChanged(ClientStatus.INACTIVE);
+        scheduler.advance(1000, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(1), delivered);
+        scheduler.advance(28999, TimeUnit.MILLISECONDS);
+        assertEquals(Arrays.asList(1), delivered);
+
+        // Delivered right away when the user returns
+        rpc.clientStatusChanged(ClientStatus.ACTIVE);
+        assertEquals(Arrays.asList(1, 2), delivered);
+        assertEquals(0, scheduler.getQueueSize());
+    }
+
+    @Test
+    public void concurrentPushesDeliverOncePerInterval()
+            throws InterruptedException {
+        rpc.clientStatusChanged(ClientStatus.IDLE);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            int value = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                feed.push(value);
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // One immediate delivery; the rest is coalesced into one more
+        assertEquals(1, delivered.size());
+        scheduler.advance(1000, TimeUnit.MILLISECONDS);
+        assertEquals(2, delivered.size());
+    }
+
+    @Test
+    public void concurrentDeliveriesEndWithLatestValue()
+            throws InterruptedException {
+        int count = 20000;
+        Thread pusher = new Thread(() -> {
+            for (int i = 1; i <= count; i++) {
+                feed.push(i);
+            }
+        });
+        Thread flusher = new Thread(() -> {
+            while (pusher.isAlive()) {
+                feed.flush();
+            }
+        });
+        pusher.start();
+        flusher.start();
+        pusher.join();
+        flusher.join();
+
+        synchronized (delivered) {
+            for (int i = 1; i < delivered.size(); i++) {
+                assertTrue(delivered.get(i - 1) < delivered.get(i));
+            }
+            assertEquals(count, (int) delivered.get(delivered.size() - 1));
+        }
+    }
+}
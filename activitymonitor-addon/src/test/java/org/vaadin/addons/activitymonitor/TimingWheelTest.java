@@ -0,0 +1,74 @@
+package org.vaadin.addons.activitymonitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class TimingWheelTest {
+
+    private final ManualScheduler clock = new ManualScheduler();
+    private final TimingWheel wheel = new TimingWheel(5,
+            TimeUnit.MILLISECONDS, 8, clock::nanoTime);
+
+    private void advance(long millis) {
+        clock.advance(millis, TimeUnit.MILLISECONDS);
+        wheel.advance();
+    }
+
+    @Test
+    public void timeoutsBeyondOneRevolutionFireAfterTheirDelay() {
+        AtomicInteger fired = new AtomicInteger();
+        // Two and a half revolutions of 40 ms
+        wheel.schedule(fired::incrementAndGet, 100, TimeUnit.MILLISECONDS);
+
+        advance(99);
+        assertEquals(0, fired.get());
+        // Runs at the end of the tick that contains the deadline
+        advance(5);
+        assertEquals(0, fired.get());
+        advance(1);
+        assertEquals(1, fired.get());
+        advance(100);
+        assertEquals(1, fired.get());
+    }
+
+    @Test
+    public void cancelledTimeoutsDoNotFire() {
+        AtomicInteger fired = new AtomicInteger();
+        AtomicInteger other = new AtomicInteger();
+        TimingWheel.Timeout timeout = wheel.schedule(fired::incrementAndGet,
+                20, TimeUnit.MILLISECONDS);
+        TimingWheel.Timeout scheduled = wheel.schedule(fired::incrementAndGet,
+                60, TimeUnit.MILLISECONDS);
+        wheel.schedule(other::incrementAndGet, 60, TimeUnit.MILLISECONDS);
+
+        // Cancelled before and after being moved into its bucket
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        advance(10);
+        assertTrue(scheduled.cancel());
+        advance(100);
+        assertEquals(0, fired.get());
+        assertEquals(1, other.get());
+        assertTrue(timeout.isCancelled());
+        assertFalse(scheduled.isExpired());
+    }
+
+    @Test
+    public void tickerThreadRunsTimeouts() throws InterruptedException {
+        TimingWheel ticking = new TimingWheel(5, TimeUnit.MILLISECONDS, 8);
+        try {
+            CountDownLatch latch = new CountDownLatch(1);
+            ticking.schedule(latch::countDown, 10, TimeUnit.MILLISECONDS);
+            assertTrue(latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            ticking.stop();
+        }
+    }
+}
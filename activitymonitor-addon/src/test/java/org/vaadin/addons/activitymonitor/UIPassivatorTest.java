@@ -0,0 +1,127 @@
+package org.vaadin.addons.activitymonitor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.vaadin.addons.activitymonitor.UIPassivator.PassivationHandler;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+import com.vaadin.ui.Component;
+import com.vaadin.ui.Label;
+import com.vaadin.ui.UI;
+
+public class UIPassivatorTest {
+
+    private final MockSession session = new MockSession();
+    private final UI ui = session.createUI();
+    private final ActivityMonitor monitor = new ActivityMonitor(ui);
+    private final ManualScheduler scheduler = new ManualScheduler();
+
+    private final PassivationHandler<String> handler = new PassivationHandler<String>() {
+        @Override
+        public String passivate(UI ui) {
+            return "saved";
+        }
+
+        @Override
+        public Component restore(UI ui, String snapshot) {
+            return new Label(snapshot);
+        }
+    };
+
+    private UIPassivator<String> createPassivator() {
+        UIPassivator<String> passivator = new UIPassivator<>(monitor, handler,
+                scheduler);
+        passivator.setPassivationDelay(1000);
+        return passivator;
+    }
+
+    @Test
+    public void inactiveUIIsPassivatedAndRestored() {
+        Label content = new Label(new String(new char[10000]));
+        ui.setContent(content);
+        UIPassivator<String> passivator = createPassivator();
+        passivator.setMeasureReclaimedBytes(true);
+
+        MockSession.rpc(monitor).clientStatusChanged(ClientStatus.INACTIVE);
+        scheduler.advance(999, TimeUnit.MILLISECONDS);
+        assertSame(content, ui.getContent());
+        scheduler.advance(1, TimeUnit.MILLISECONDS);
+        assertNotSame(content, ui.getContent());
+        assertEquals(1, passivator.getPassivationCount());
+        assertTrue(passivator.getReclaimedBytes() > 10000);
+
+        MockSession.rpc(monitor).clientStatusChanged(ClientStatus.ACTIVE);
+        assertEquals("saved", ((Label) ui.getContent()).getValue());
+        passivator.close();
+    }
+
+    @Test
+    public void activityCancelsPendingPassivation() {
+        Label content = new Label();
+        ui.setContent(content);
+        UIPassivator<String> passivator = createPassivator();
+
+        MockSession.rpc(monitor).clientStatusChanged(ClientStatus.INACTIVE);
+        scheduler.advance(500, TimeUnit.MILLISECONDS);
+        MockSession.rpc(monitor).clientStatusChanged(ClientStatus.ACTIVE);
+        scheduler.advance(1000, TimeUnit.MILLISECONDS);
+        assertSame(content, ui.getContent());
+        assertEquals(0, passivator.getPassivationCount());
+        // Not measured by default
+        assertEquals(0, passivator.getReclaimedBytes());
+        passivator.close();
+    }
+
+    @Test
+    public void passivatedUIIsRestoredAfterDeserialization()
+            throws Exception {
+        ui.setContent(new Label("original"));
+        UIPassivator<String> passivator = createPassivator();
+        MockSession.rpc(monitor).clientStatusChanged(ClientStatus.INACTIVE);
+        scheduler.advance(1000, TimeUnit.MILLISECONDS);
+        assertTrue(passivator.isPassivated());
+
+        ActivityMonitor copy = roundTrip(monitor);
+        UIPassivator<String> restored = new UIPassivator<>(copy,
+                handler, scheduler);
+        assertTrue(restored.isPassivated());
+        MockSession.rpc(copy).clientStatusChanged(ClientStatus.ACTIVE);
+        assertEquals("saved", ((Label) copy.getUI().getContent()).getValue());
+        restored.close();
+        passivator.close();
+    }
+
+    private static <T> T roundTrip(T object) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(object);
+        }
+        try (ObjectInputStream in = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()))) {
+            @SuppressWarnings("unchecked")
+            T copy = (T) in.readObject();
+            return copy;
+        }
+    }
+
+    @Test
+    public void uiStaysSerializable() throws IOException {
+        UIPassivator<String> passivator = createPassivator();
+        try (ObjectOutputStream out = new ObjectOutputStream(
+                new ByteArrayOutputStream())) {
+            out.writeObject(ui);
+        }
+        passivator.close();
+    }
+}
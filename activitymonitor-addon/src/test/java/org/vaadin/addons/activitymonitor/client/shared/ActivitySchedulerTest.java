@@ -0,0 +1,118 @@
+package org.vaadin.addons.activitymonitor.client.shared;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ActivitySchedulerTest {
+
+    private final List<String> events = new ArrayList<>();
+    private final List<Double> times = new ArrayList<>();
+    private ActivityScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new ActivityScheduler(new ActivityScheduler.Callback() {
+            @Override
+            public void statusChanged(ClientStatus status, double time) {
+                events.add(status.name());
+                times.add(time);
+            }
+
+            @Override
+            public void customTimerTriggered(String name, double time) {
+                events.add("timer:" + name);
+                times.add(time);
+            }
+        });
+        Map<String, Integer> custom = new LinkedHashMap<>();
+        custom.put("A", 1500);
+        custom.put("B", 5000);
+        scheduler.configure(1000, 2000, custom);
+        scheduler.onActivity(0);
+    }
+
+    @Test
+    public void nextDeadlineIsNearestThreshold() {
+        assertEquals(1000, scheduler.getNextDeadline(), 0);
+        assertEquals(1000, scheduler.advance(500), 0);
+        assertEquals(0, events.size());
+    }
+
+    @Test
+    public void dueThresholdsFireInOrder() {
+        assertEquals(5000, scheduler.advance(2500), 0);
+        assertEquals("[IDLE, timer:A, INACTIVE]", events.toString());
+        assertEquals(ActivityScheduler.NO_DEADLINE, scheduler.advance(6000),
+                0);
+        assertEquals("[IDLE, timer:A, INACTIVE, timer:B]", events.toString());
+    }
+
+    @Test
+    public void lateWakeUpReportsThresholdTimes() {
+        scheduler.advance(60000);
+        assertEquals("[1000.0, 1500.0, 2000.0, 5000.0]", times.toString());
+    }
+
+    @Test
+    public void activityBeforeDeadlinePostponesIt() {
+        scheduler.onActivity(800);
+        assertEquals(1800, scheduler.advance(1000), 0);
+        assertEquals(0, events.size());
+    }
+
+    @Test
+    public void activityAfterTransitionRestartsThresholds() {
+        scheduler.advance(1200);
+        scheduler.onActivity(1300);
+        assertEquals("[IDLE, ACTIVE]", events.toString());
+        assertEquals(2300, scheduler.getNextDeadline(), 0);
+        scheduler.advance(2300);
+        assertEquals("[IDLE, ACTIVE, IDLE]", events.toString());
+    }
+
+    @Test
+    public void changingOneTimerKeepsOthersCounting() {
+        scheduler.advance(1600);
+        assertEquals("[IDLE, timer:A]", events.toString());
+
+        scheduler.setCustomTimer("C", 1800);
+        scheduler.setCustomTimer("A", 1700);
+        scheduler.removeCustomTimer("B");
+        assertEquals(1800, scheduler.getNextDeadline(), 0);
+
+        scheduler.advance(10000);
+        assertEquals("[IDLE, timer:A, timer:C, INACTIVE]", events.toString());
+    }
+
+    @Test
+    public void resumeReportsOnlyReconciledStatus() {
+        scheduler.suspend(ClientStatus.HIDDEN, 100);
+        // Only the inactive threshold is pending while suspended
+        assertEquals(2000, scheduler.advance(1200), 0);
+        assertEquals(5000, scheduler.resume(3000), 0);
+        assertEquals("[HIDDEN, timer:A, INACTIVE]", events.toString());
+    }
+
+    @Test
+    public void suspendedClientBecomesInactive() {
+        scheduler.suspend(null, 100);
+        assertEquals(2000, scheduler.getNextDeadline(), 0);
+        assertEquals(ActivityScheduler.NO_DEADLINE, scheduler.advance(2500),
+                0);
+        assertEquals("[INACTIVE]", events.toString());
+        assertEquals(2000, times.get(0), 0);
+        assertEquals(ActivityScheduler.NO_DEADLINE,
+                scheduler.getNextDeadline(), 0);
+
+        // Resuming does not report INACTIVE again
+        assertEquals(5000, scheduler.resume(3000), 0);
+        assertEquals("[INACTIVE, timer:A]", events.toString());
+    }
+}
@@ -0,0 +1,59 @@
+package org.vaadin.addons.activitymonitor.client.shared;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class IntensityMeterTest {
+
+    private final IntensityMeter meter = new IntensityMeter();
+
+    @Before
+    public void setUp() {
+        // Slots of one second
+        meter.configure(32000);
+    }
+
+    @Test
+    public void intensityCountsActiveSlots() {
+        assertEquals(ActivityIntensity.NONE, meter.getIntensity(0));
+
+        // A flood of events within one slot counts once
+        for (int i = 0; i < 1000; i++) {
+            meter.onActivity(i * 0.5);
+        }
+        assertEquals(ActivityIntensity.LOW, meter.getIntensity(1000));
+
+        for (int t = 1000; t < 12000; t += 1000) {
+            meter.onActivity(t);
+        }
+        assertEquals(ActivityIntensity.MEDIUM, meter.getIntensity(12000));
+
+        for (int t = 12000; t < 20000; t += 1000) {
+            meter.onActivity(t);
+        }
+        assertEquals(ActivityIntensity.HIGH, meter.getIntensity(20000));
+    }
+
+    @Test
+    public void intensityDecaysWithoutActivity() {
+        for (int t = 0; t < 32000; t += 1000) {
+            meter.onActivity(t);
+        }
+        assertEquals(ActivityIntensity.HIGH, meter.getIntensity(32000));
+        // 16 of the slots still have activity
+        assertEquals(ActivityIntensity.HIGH, meter.getIntensity(47999));
+        assertEquals(ActivityIntensity.MEDIUM, meter.getIntensity(48000));
+        assertEquals(ActivityIntensity.LOW, meter.getIntensity(57000));
+        assertEquals(ActivityIntensity.NONE, meter.getIntensity(64000));
+    }
+
+    @Test
+    public void occasionalActivityIsLow() {
+        for (int t = 0; t < 600000; t += 60000) {
+            meter.onActivity(t);
+            assertEquals(ActivityIntensity.LOW, meter.getIntensity(t));
+        }
+    }
+}
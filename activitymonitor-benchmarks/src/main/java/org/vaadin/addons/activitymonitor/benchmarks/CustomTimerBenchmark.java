@@ -0,0 +1,69 @@
+package org.vaadin.addons.activitymonitor.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.vaadin.addons.activitymonitor.ActivityMonitor;
+import org.vaadin.addons.activitymonitor.MockSession;
+import org.vaadin.addons.activitymonitor.client.shared.ActivityEvent;
+import org.vaadin.addons.activitymonitor.client.shared.ActivityMonitorRPC;
+
+/**
+ * Cost of fanning out custom timer events to the custom timer listeners,
+ * both one event per call and as a batch of timer events.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CustomTimerBenchmark {
+
+    @Param({ "1", "10", "100", "1000" })
+    public int listeners;
+
+    @Param({ "10" })
+    public int batchSize;
+
+    private ActivityMonitorRPC rpc;
+    private List<ActivityEvent> batch;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        ActivityMonitor monitor = new ActivityMonitor(
+                new MockSession().createUI());
+        for (int i = 0; i < listeners; i++) {
+            monitor.addCustomTimerListener(name -> blackhole.consume(name));
+        }
+        rpc = MockSession.rpc(monitor);
+        batch = new ArrayList<>(batchSize);
+        double now = System.currentTimeMillis();
+        for (int i = 0; i < batchSize; i++) {
+            batch.add(new ActivityEvent(null, "timer" + i, now));
+        }
+    }
+
+    @Benchmark
+    public void customTimerTriggered() {
+        rpc.customTimerTriggered("timer");
+    }
+
+    @Benchmark
+    public void batchReported() {
+        rpc.activityReported(batch, System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,74 @@
+package org.vaadin.addons.activitymonitor.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vaadin.addons.activitymonitor.ActivityEventLog;
+import org.vaadin.addons.activitymonitor.ActivityEventLogReader;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * Cost of appending an event to the memory-mapped activity event log, from
+ * one thread and from four threads sharing the log. Segments are rolled over
+ * during the measurement.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EventLogBenchmark {
+
+    private Path directory;
+    private ActivityEventLog log;
+    private long timestamp;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("activity-log");
+        log = new ActivityEventLog(directory, 16 << 20, 2);
+        timestamp = System.currentTimeMillis();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        log.close();
+        for (Path path : ActivityEventLogReader.listSegments(directory)) {
+            Files.delete(path);
+        }
+        Files.deleteIfExists(
+                directory.resolve(ActivityEventLog.TIMER_FILE));
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public void statusChanged() {
+        log.statusChanged(timestamp, 1, 2, ClientStatus.IDLE);
+    }
+
+    @Benchmark
+    public void timerTriggered() {
+        log.timerTriggered(timestamp, 1, 2, "timer");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void statusChangedConcurrently() {
+        log.statusChanged(timestamp, 1, 2, ClientStatus.IDLE);
+    }
+}
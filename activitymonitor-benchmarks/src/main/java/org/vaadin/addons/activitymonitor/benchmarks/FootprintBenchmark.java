@@ -0,0 +1,57 @@
+package org.vaadin.addons.activitymonitor.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.vaadin.addons.activitymonitor.ActivityMonitor;
+import org.vaadin.addons.activitymonitor.MockSession;
+
+import com.vaadin.ui.UI;
+
+/**
+ * Cost of creating a monitor with its shared state, RPC registration and
+ * listener sets. Run with {@code -prof gc} and read
+ * {@code gc.alloc.rate.norm}, the bytes allocated per monitor, as an upper
+ * bound of the per-instance heap footprint.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FootprintBenchmark {
+
+    @Param({ "0", "1", "10" })
+    public int listeners;
+
+    private UI ui;
+
+    @Setup
+    public void setUp() {
+        ui = new MockSession().createUI();
+    }
+
+    @Benchmark
+    public void createMonitor(Blackhole blackhole) {
+        ActivityMonitor monitor = new ActivityMonitor(ui);
+        for (int i = 0; i < listeners; i++) {
+            monitor.addClientStatusChangeListener(
+                    status -> blackhole.consume(status));
+        }
+        // Keep the UI from accumulating extensions
+        monitor.remove();
+        blackhole.consume(monitor);
+    }
+}
@@ -0,0 +1,56 @@
+package org.vaadin.addons.activitymonitor.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.vaadin.addons.activitymonitor.ActivityMonitor;
+import org.vaadin.addons.activitymonitor.MockSession;
+
+/**
+ * Cost of changing thresholds on the server: dirty-marking the shared state
+ * for the status thresholds, and the incremental client RPC for custom
+ * timers, with a varying number of existing custom timers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StateUpdateBenchmark {
+
+    @Param({ "0", "10", "100" })
+    public int customTimers;
+
+    private ActivityMonitor monitor;
+    private int threshold = 30000;
+
+    @Setup
+    public void setUp() {
+        monitor = new ActivityMonitor(new MockSession().createUI());
+        for (int i = 0; i < customTimers; i++) {
+            monitor.addCustomTimer("timer" + i, 10000 + i);
+        }
+        monitor.addCustomTimer("timer", threshold);
+    }
+
+    @Benchmark
+    public void setIdleTimeThreshold() {
+        monitor.setIdleTimeThreshold(++threshold);
+    }
+
+    @Benchmark
+    public void setCustomTimerThreshold() {
+        monitor.setCustomTimerThreshold("timer", ++threshold);
+    }
+}
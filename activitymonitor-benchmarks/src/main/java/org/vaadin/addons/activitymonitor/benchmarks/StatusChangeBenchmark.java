@@ -0,0 +1,58 @@
+package org.vaadin.addons.activitymonitor.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.vaadin.addons.activitymonitor.ActivityMonitor;
+import org.vaadin.addons.activitymonitor.MockSession;
+import org.vaadin.addons.activitymonitor.client.shared.ActivityMonitorRPC;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * Cost of handling a status change reported by the client, including the
+ * synchronous invocation of all status change listeners.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StatusChangeBenchmark {
+
+    @Param({ "1", "10", "100", "1000" })
+    public int listeners;
+
+    private ActivityMonitorRPC rpc;
+    private boolean idle = false;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        ActivityMonitor monitor = new ActivityMonitor(
+                new MockSession().createUI());
+        for (int i = 0; i < listeners; i++) {
+            // Distinct instances, as the listeners are kept in a set
+            monitor.addClientStatusChangeListener(
+                    status -> blackhole.consume(status));
+        }
+        rpc = MockSession.rpc(monitor);
+    }
+
+    @Benchmark
+    public void clientStatusChanged() {
+        // Alternate, so that every call is an actual transition
+        idle = !idle;
+        rpc.clientStatusChanged(idle ? ClientStatus.IDLE : ClientStatus.ACTIVE);
+    }
+}
@@ -0,0 +1,258 @@
+package org.vaadin.addons.activitymonitor.benchmarks.simulation;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.vaadin.addons.activitymonitor.ActivityInstrumentation;
+import org.vaadin.addons.activitymonitor.ActivityMetrics;
+import org.vaadin.addons.activitymonitor.ActivityMonitor;
+import org.vaadin.addons.activitymonitor.MockSession;
+import org.vaadin.addons.activitymonitor.client.shared.VisibilityMode;
+
+/**
+ * A discrete-event simulation of a population of users, each with a
+ * {@link VirtualClient} talking to a real {@link ActivityMonitor} on a mock
+ * UI and session.
+ *
+ * Time is virtual: {@link #run(long)} jumps from one scheduled action to the
+ * next, so hours of user behavior are simulated in seconds, and the outcome
+ * depends only on the configuration and the seed. The server side sees the
+ * RPC calls as if they arrived in a burst; its own timestamps are wall clock
+ * time, so the server-side rates and latencies should be read from the
+ * returned {@link SimulationReport}, not from the monitors.
+ *
+ * The simulation is single-threaded and not thread safe.
+ */
+public class LoadSimulation {
+
+    private static final class Action implements Comparable<Action> {
+        private final double time;
+        private final long sequence;
+        private final Runnable task;
+
+        private Action(double time, long sequence, Runnable task) {
+            this.time = time;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Action other) {
+            int c = Double.compare(time, other.time);
+            return c != 0 ? c : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    private final Random random;
+    private final PriorityQueue<Action> actions = new PriorityQueue<>();
+    private final List<VirtualClient> clients = new ArrayList<>();
+    private final ActivityMetrics metrics = new ActivityMetrics();
+    private long sequence = 0;
+    private double now = 0;
+
+    private int idleThreshold = 30000;
+    private int inactiveThreshold = 60000;
+    private final Map<String, Integer> customTimers = new LinkedHashMap<>();
+    private int eventBatchDelay = 0;
+    private VisibilityMode visibilityMode = VisibilityMode.IGNORE;
+
+    private long rpcCount = 0;
+    private long eventCount = 0;
+    private long heapBytes = 0;
+
+    /**
+     * Create an empty simulation.
+     *
+     * @param seed
+     *            seed for the user behavior
+     */
+    public LoadSimulation(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * Set the idle and inactive thresholds of clients added after this call.
+     * Default: 30 and 60 seconds, as in {@link ActivityMonitor}.
+     *
+     * @param idle
+     *            idle threshold in milliseconds
+     * @param inactive
+     *            inactive threshold in milliseconds
+     */
+    public void setThresholds(int idle, int inactive) {
+        idleThreshold = idle;
+        inactiveThreshold = inactive;
+    }
+
+    /**
+     * Add a custom timer to clients added after this call.
+     *
+     * @param name
+     *            name of the timer
+     * @param threshold
+     *            time of inactivity until the timer fires, in milliseconds
+     */
+    public void addCustomTimer(String name, int threshold) {
+        customTimers.put(name, threshold);
+    }
+
+    /**
+     * Set the event batch delay of clients added after this call. Default: 0.
+     *
+     * @see ActivityMonitor#setEventBatchDelay(int)
+     * @param msec
+     *            delay in milliseconds
+     */
+    public void setEventBatchDelay(int msec) {
+        eventBatchDelay = Math.max(msec, 0);
+    }
+
+    int getEventBatchDelay() {
+        return eventBatchDelay;
+    }
+
+    /**
+     * Set how clients react to their page being hidden. Default:
+     * {@link VisibilityMode#IGNORE}.
+     *
+     * @see ActivityMonitor#setVisibilityMode(VisibilityMode)
+     * @param mode
+     *            a {@link VisibilityMode} value
+     */
+    public void setVisibilityMode(VisibilityMode mode) {
+        visibilityMode = mode;
+    }
+
+    VisibilityMode getVisibilityMode() {
+        return visibilityMode;
+    }
+
+    Random getRandom() {
+        return random;
+    }
+
+    /**
+     * Add a number of clients, each in its own session, with their first
+     * action spread over the next ten seconds. The heap used by the clients
+     * and their UIs, sessions and monitors is measured as a side effect.
+     *
+     * @param count
+     *            number of clients
+     * @param profile
+     *            behavior of the users
+     * @return the new clients
+     */
+    public List<VirtualClient> addClients(int count, UserProfile profile) {
+        long before = usedHeap();
+        List<VirtualClient> added = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            added.add(createClient(profile));
+        }
+        heapBytes += Math.max(0, usedHeap() - before);
+        for (VirtualClient client : added) {
+            client.start(idleThreshold, inactiveThreshold, customTimers,
+                    now + random.nextInt(10000));
+        }
+        clients.addAll(added);
+        return added;
+    }
+
+    /**
+     * Add a client without any behavior of its own, to be driven with
+     * actions scheduled through {@link #schedule(double, Runnable)}.
+     *
+     * @return the new client
+     */
+    public VirtualClient addClient() {
+        VirtualClient client = createClient(null);
+        client.start(idleThreshold, inactiveThreshold, customTimers, now);
+        clients.add(client);
+        return client;
+    }
+
+    private VirtualClient createClient(UserProfile profile) {
+        // Monitors pick up the instrumentation when attached
+        ActivityInstrumentation previous = ActivityMonitor
+                .getInstrumentation();
+        ActivityMonitor.setInstrumentation(metrics);
+        try {
+            ActivityMonitor monitor = new ActivityMonitor(
+                    new MockSession().createUI());
+            monitor.setIdleTimeThreshold(idleThreshold);
+            monitor.setInactiveTimeThreshold(inactiveThreshold);
+            for (Map.Entry<String, Integer> e : customTimers.entrySet()) {
+                monitor.addCustomTimer(e.getKey(), e.getValue());
+            }
+            monitor.setEventBatchDelay(eventBatchDelay);
+            monitor.setVisibilityMode(visibilityMode);
+            // Stand-in for application logic
+            monitor.addClientStatusChangeListener(status -> {
+            });
+            return new VirtualClient(this, monitor,
+                    MockSession.rpc(monitor), profile);
+        } finally {
+            ActivityMonitor.setInstrumentation(previous);
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Schedule an action at the given virtual time. Actions scheduled for
+     * the same time run in the order they were scheduled.
+     *
+     * @param time
+     *            virtual time in milliseconds
+     * @param task
+     *            the action
+     */
+    public void schedule(double time, Runnable task) {
+        actions.add(new Action(time, sequence++, task));
+    }
+
+    /**
+     * Get the current virtual time.
+     *
+     * @return time in milliseconds since the start of the simulation
+     */
+    public double now() {
+        return now;
+    }
+
+    void rpcSent(int events) {
+        rpcCount++;
+        eventCount += events;
+    }
+
+    /**
+     * Run the simulation for the given virtual time. May be called
+     * repeatedly; each report covers the whole simulation so far.
+     *
+     * @param duration
+     *            virtual time to simulate, in milliseconds
+     * @return the results so far
+     */
+    public SimulationReport run(long duration) {
+        double end = now + duration;
+        long start = System.nanoTime();
+        Action action;
+        while ((action = actions.peek()) != null && action.time <= end) {
+            actions.poll();
+            now = action.time;
+            action.task.run();
+        }
+        now = end;
+        return new SimulationReport(clients.size(), (long) now, rpcCount,
+                eventCount, heapBytes, System.nanoTime() - start, metrics);
+    }
+}
@@ -0,0 +1,43 @@
+package org.vaadin.addons.activitymonitor.benchmarks.simulation;
+
+import java.util.Locale;
+
+import org.vaadin.addons.activitymonitor.client.shared.VisibilityMode;
+
+/**
+ * Command line entry point for capacity planning. Simulates a population
+ * split evenly between the {@link UserProfile} presets and prints a
+ * {@link SimulationReport}.
+ *
+ * Usage: {@code java -cp benchmarks.jar
+ * org.vaadin.addons.activitymonitor.benchmarks.simulation.LoadSimulator
+ * [clients] [minutes] [visibility mode] [seed]}
+ *
+ * Defaults: 10000 clients, 60 minutes, IGNORE, seed 1. Large populations need
+ * a few kilobytes of heap per client for the mock UI and session; raise
+ * {@code -Xmx} accordingly.
+ */
+public class LoadSimulator {
+
+    private static final UserProfile[] PROFILES = {
+            UserProfile.BURSTY_TYPING, UserProfile.WALK_AWAY,
+            UserProfile.TAB_SWITCHING };
+
+    public static void main(String[] args) {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        int minutes = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        VisibilityMode mode = args.length > 2
+                ? VisibilityMode.valueOf(args[2].toUpperCase(Locale.ROOT))
+                : VisibilityMode.IGNORE;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 1;
+
+        LoadSimulation simulation = new LoadSimulation(seed);
+        simulation.setVisibilityMode(mode);
+        for (int i = 0; i < PROFILES.length; i++) {
+            int count = clients / PROFILES.length
+                    + (i < clients % PROFILES.length ? 1 : 0);
+            simulation.addClients(count, PROFILES[i]);
+        }
+        System.out.println(simulation.run(minutes * 60000L));
+    }
+}
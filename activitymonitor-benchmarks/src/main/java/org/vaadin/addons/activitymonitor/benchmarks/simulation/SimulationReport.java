@@ -0,0 +1,169 @@
+package org.vaadin.addons.activitymonitor.benchmarks.simulation;
+
+import java.util.Locale;
+
+import org.vaadin.addons.activitymonitor.ActivityInstrumentation.Rpc;
+import org.vaadin.addons.activitymonitor.ActivityMetrics;
+import org.vaadin.addons.activitymonitor.ActivityMetrics.Histogram;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+
+/**
+ * Results of a {@link LoadSimulation}. Rates are per second of virtual time.
+ */
+public final class SimulationReport {
+
+    private final int clients;
+    private final long duration;
+    private final long rpcCount;
+    private final long eventCount;
+    private final long heapBytes;
+    private final long wallTime;
+    private final ActivityMetrics metrics;
+
+    SimulationReport(int clients, long duration, long rpcCount,
+            long eventCount, long heapBytes, long wallTime,
+            ActivityMetrics metrics) {
+        this.clients = clients;
+        this.duration = duration;
+        this.rpcCount = rpcCount;
+        this.eventCount = eventCount;
+        this.heapBytes = heapBytes;
+        this.wallTime = wallTime;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get the number of simulated clients.
+     *
+     * @return number of clients
+     */
+    public int getClients() {
+        return clients;
+    }
+
+    /**
+     * Get the virtual time simulated so far.
+     *
+     * @return time in milliseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Get the number of RPC calls sent by the clients.
+     *
+     * @return number of calls
+     */
+    public long getRpcCount() {
+        return rpcCount;
+    }
+
+    /**
+     * Get the number of status changes and custom timer events sent by the
+     * clients. Events sent in the same batch share a call.
+     *
+     * @return number of events
+     */
+    public long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Get the RPC calls per second, across all clients.
+     *
+     * @return calls per second of virtual time
+     */
+    public double getRpcRate() {
+        return duration == 0 ? 0 : rpcCount * 1000.0 / duration;
+    }
+
+    /**
+     * Get the number of transitions between two statuses seen by the
+     * server.
+     *
+     * @param from
+     *            the previous status
+     * @param to
+     *            the new status
+     * @return number of transitions
+     */
+    public long getTransitionCount(ClientStatus from, ClientStatus to) {
+        return metrics.getTransitionCount(from, to);
+    }
+
+    /**
+     * Get the number of monitors currently in the given status.
+     *
+     * @param status
+     *            a {@link ClientStatus} value
+     * @return number of monitors
+     */
+    public long getMonitorCount(ClientStatus status) {
+        return metrics.getMonitorCount(status);
+    }
+
+    /**
+     * Get the time the server-side listeners took per event.
+     *
+     * @return a histogram of times in nanoseconds
+     */
+    public Histogram getListenerLatency() {
+        return metrics.getListenerLatency();
+    }
+
+    /**
+     * Get the heap retained per client, including its mock UI and session.
+     * Measured once when the clients are added; approximate.
+     *
+     * @return bytes per client
+     */
+    public long getHeapPerClient() {
+        return clients == 0 ? 0 : heapBytes / clients;
+    }
+
+    /**
+     * Get the real time taken by the simulation run.
+     *
+     * @return time in nanoseconds
+     */
+    public long getWallTime() {
+        return wallTime;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT,
+                "%d clients, %.1f simulated minutes in %.1f s%n", clients,
+                duration / 60000.0, wallTime / 1e9));
+        sb.append(String.format(Locale.ROOT,
+                "RPC calls: %d (%.1f/s), events: %d, server-side batches: %d%n",
+                rpcCount, getRpcRate(), eventCount,
+                metrics.getRpcCount(Rpc.BATCH)));
+        for (ClientStatus from : ClientStatus.values()) {
+            for (ClientStatus to : ClientStatus.values()) {
+                long count = getTransitionCount(from, to);
+                if (count > 0) {
+                    sb.append(String.format(Locale.ROOT,
+                            "  %s -> %s: %d (%.2f/s)%n", from, to, count,
+                            count * 1000.0 / Math.max(duration, 1)));
+                }
+            }
+        }
+        sb.append("Monitors now:");
+        for (ClientStatus status : ClientStatus.values()) {
+            sb.append(' ').append(status).append('=')
+                    .append(getMonitorCount(status));
+        }
+        sb.append(System.lineSeparator());
+        Histogram latency = getListenerLatency();
+        sb.append(String.format(Locale.ROOT,
+                "Listener latency: mean %.0f ns, p99 < %d ns, max %d ns%n",
+                latency.getMean(), latency.getPercentile(99),
+                latency.getMax()));
+        sb.append(String.format(Locale.ROOT, "Heap per client: ~%d bytes",
+                getHeapPerClient()));
+        return sb.toString();
+    }
+}
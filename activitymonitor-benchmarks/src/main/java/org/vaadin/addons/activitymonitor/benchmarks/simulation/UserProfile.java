@@ -0,0 +1,71 @@
+package org.vaadin.addons.activitymonitor.benchmarks.simulation;
+
+import java.util.Random;
+
+/**
+ * Synthetic behavior of a simulated user. A profile is invoked once per user
+ * action; it performs the action on the client and decides when the next one
+ * takes place. All randomness must come from the given {@link Random}, so that
+ * a simulation is reproducible from its seed.
+ */
+public interface UserProfile {
+
+    /**
+     * Bursts of typing lasting 2 to 10 seconds, with random pauses in
+     * between. Pauses are exponentially distributed with a mean of 45
+     * seconds, so the client regularly crosses the default idle threshold and
+     * sometimes the inactive one. Only the first and the last keystroke of a
+     * burst are simulated, as the keystrokes in between do not affect any
+     * threshold.
+     */
+    public static final UserProfile BURSTY_TYPING = (client, random) -> {
+        client.activity();
+        if (random.nextBoolean()) {
+            // Until the last keystroke of the burst
+            return 2000 + random.nextInt(8000);
+        }
+        return -45000 * Math.log(1 - random.nextDouble());
+    };
+
+    /**
+     * Steady interaction every few seconds, occasionally interrupted by
+     * walking away from the computer for 2 to 30 minutes.
+     */
+    public static final UserProfile WALK_AWAY = (client, random) -> {
+        client.activity();
+        if (random.nextDouble() < 0.02) {
+            return 120000 + random.nextInt(1680000);
+        }
+        return 1000 + random.nextInt(14000);
+    };
+
+    /**
+     * Interaction every few seconds, regularly switching to another tab for
+     * 5 seconds to 5 minutes. The effect of the hidden periods depends on the
+     * visibility mode of the simulation.
+     */
+    public static final UserProfile TAB_SWITCHING = (client, random) -> {
+        if (client.isHidden()) {
+            client.show();
+            client.activity();
+            return 1000 + random.nextInt(9000);
+        }
+        if (random.nextDouble() < 0.1) {
+            client.hide();
+            return 5000 + random.nextInt(295000);
+        }
+        client.activity();
+        return 500 + random.nextInt(4500);
+    };
+
+    /**
+     * Perform the next action of a user.
+     *
+     * @param client
+     *            the client of the user
+     * @param random
+     *            source of randomness
+     * @return time in milliseconds until the next action
+     */
+    double act(VirtualClient client, Random random);
+}
@@ -0,0 +1,208 @@
+package org.vaadin.addons.activitymonitor.benchmarks.simulation;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.vaadin.addons.activitymonitor.ActivityMonitor;
+import org.vaadin.addons.activitymonitor.client.shared.ActivityEvent;
+import org.vaadin.addons.activitymonitor.client.shared.ActivityMonitorRPC;
+import org.vaadin.addons.activitymonitor.client.shared.ActivityScheduler;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+import org.vaadin.addons.activitymonitor.client.shared.VisibilityMode;
+
+/**
+ * A browser-less model of the client side of an {@link ActivityMonitor}. It
+ * runs the same {@link ActivityScheduler} as the connector, arms its watchdog
+ * and batches its events the same way, but on the virtual clock of a
+ * {@link LoadSimulation}, and sends the resulting RPC calls straight to the
+ * server-side monitor.
+ *
+ * Only client timing with immediate delivery is modelled; activity sampling
+ * is not, as it does not affect the RPC traffic.
+ */
+public final class VirtualClient implements ActivityScheduler.Callback {
+
+    private final LoadSimulation simulation;
+    private final ActivityMonitor monitor;
+    private final ActivityMonitorRPC rpc;
+    private final UserProfile profile;
+    private final ActivityScheduler scheduler = new ActivityScheduler(this);
+
+    private final List<ActivityEvent> pendingEvents = new ArrayList<>();
+    private boolean batchScheduled = false;
+    private ClientStatus reportedStatus = ClientStatus.ACTIVE;
+
+    // Incremented to cancel an armed watchdog
+    private int watchdogGeneration = 0;
+    private boolean watchdogArmed = false;
+    private boolean hidden = false;
+
+    VirtualClient(LoadSimulation simulation, ActivityMonitor monitor,
+            ActivityMonitorRPC rpc, UserProfile profile) {
+        this.simulation = simulation;
+        this.monitor = monitor;
+        this.rpc = rpc;
+        this.profile = profile;
+    }
+
+    void start(int idleThreshold, int inactiveThreshold,
+            Map<String, Integer> customTimers, double firstAction) {
+        scheduler.configure(idleThreshold, inactiveThreshold, customTimers);
+        scheduler.onActivity(simulation.now());
+        armWatchdog(scheduler.getNextDeadline());
+        if (profile != null) {
+            simulation.schedule(firstAction, this::act);
+        }
+    }
+
+    private void act() {
+        double delay = profile.act(this, simulation.getRandom());
+        // Whole milliseconds, like browser timestamps
+        simulation.schedule(simulation.now() + Math.ceil(Math.max(delay, 0)),
+                this::act);
+    }
+
+    /**
+     * Get the server-side monitor of this client.
+     *
+     * @return the monitor
+     */
+    public ActivityMonitor getMonitor() {
+        return monitor;
+    }
+
+    /**
+     * Record user input, such as a keystroke or a mouse click, at the current
+     * virtual time.
+     */
+    public void activity() {
+        if (scheduler.isSuspended()) {
+            return;
+        }
+        scheduler.onActivity(simulation.now());
+        if (!watchdogArmed) {
+            armWatchdog(scheduler.getNextDeadline());
+        }
+    }
+
+    /**
+     * Hide the page, e.g. by switching to another tab.
+     */
+    public void hide() {
+        hidden = true;
+        VisibilityMode mode = simulation.getVisibilityMode();
+        if (mode != VisibilityMode.IGNORE && !scheduler.isSuspended()) {
+            stopWatchdog();
+            scheduler.suspend(getHiddenStatus(mode), simulation.now());
+        }
+    }
+
+    /**
+     * Show the page again.
+     */
+    public void show() {
+        hidden = false;
+        if (scheduler.isSuspended()) {
+            armWatchdog(scheduler.resume(simulation.now()));
+        }
+    }
+
+    /**
+     * Check whether the page is hidden.
+     *
+     * @return true if hidden
+     */
+    public boolean isHidden() {
+        return hidden;
+    }
+
+    /**
+     * Get the status last sent to the server.
+     *
+     * @return a {@link ClientStatus} value
+     */
+    public ClientStatus getReportedStatus() {
+        return reportedStatus;
+    }
+
+    private static ClientStatus getHiddenStatus(VisibilityMode mode) {
+        switch (mode) {
+        case IDLE:
+            return ClientStatus.IDLE;
+        case INACTIVE:
+            return ClientStatus.INACTIVE;
+        case HIDDEN:
+            return ClientStatus.HIDDEN;
+        default:
+            return null;
+        }
+    }
+
+    private void armWatchdog(double deadline) {
+        if (deadline == ActivityScheduler.NO_DEADLINE) {
+            return;
+        }
+        int generation = ++watchdogGeneration;
+        watchdogArmed = true;
+        simulation.schedule(Math.max(deadline, simulation.now()), () -> {
+            if (generation == watchdogGeneration) {
+                watchdogArmed = false;
+                armWatchdog(scheduler.advance(simulation.now()));
+            }
+        });
+    }
+
+    private void stopWatchdog() {
+        watchdogGeneration++;
+        watchdogArmed = false;
+    }
+
+    @Override
+    public void statusChanged(ClientStatus status, double time) {
+        if (status == reportedStatus) {
+            // Changed and changed back before the batch was sent
+            for (Iterator<ActivityEvent> i = pendingEvents.iterator(); i
+                    .hasNext();) {
+                if (i.next().status != null) {
+                    i.remove();
+                }
+            }
+            return;
+        }
+        queueEvent(new ActivityEvent(status, null, time));
+    }
+
+    @Override
+    public void customTimerTriggered(String name, double time) {
+        queueEvent(new ActivityEvent(null, name, time));
+    }
+
+    private void queueEvent(ActivityEvent event) {
+        pendingEvents.add(event);
+        if (batchScheduled) {
+            return;
+        }
+        batchScheduled = true;
+        // A delay of 0 collects everything reported at the same instant
+        simulation.schedule(simulation.now() + simulation.getEventBatchDelay(),
+                this::sendEvents);
+    }
+
+    private void sendEvents() {
+        batchScheduled = false;
+        if (pendingEvents.isEmpty()) {
+            return;
+        }
+        for (ActivityEvent event : pendingEvents) {
+            if (event.status != null) {
+                reportedStatus = event.status;
+            }
+        }
+        List<ActivityEvent> events = new ArrayList<>(pendingEvents);
+        pendingEvents.clear();
+        simulation.rpcSent(events.size());
+        rpc.activityReported(events, simulation.now());
+    }
+}
@@ -0,0 +1,97 @@
+package org.vaadin.addons.activitymonitor.benchmarks.simulation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.vaadin.addons.activitymonitor.ActivityMonitor;
+import org.vaadin.addons.activitymonitor.client.shared.ClientStatus;
+import org.vaadin.addons.activitymonitor.client.shared.VisibilityMode;
+
+public class LoadSimulationTest {
+
+    private static List<String> record(VirtualClient client) {
+        List<String> events = new ArrayList<>();
+        ActivityMonitor monitor = client.getMonitor();
+        monitor.addClientStatusChangeListener(
+                status -> events.add(status.name()));
+        monitor.addCustomTimerListener(name -> events.add(name));
+        return events;
+    }
+
+    @Test
+    public void thresholdsAreReportedInOrder() {
+        LoadSimulation simulation = new LoadSimulation(1);
+        simulation.setThresholds(1000, 2000);
+        simulation.addCustomTimer("timer", 1500);
+        VirtualClient client = simulation.addClient();
+        List<String> events = record(client);
+
+        simulation.schedule(500, client::activity);
+        SimulationReport report = simulation.run(5000);
+        assertEquals("[IDLE, timer, INACTIVE]", events.toString());
+        assertEquals(3, report.getRpcCount());
+        assertEquals(ClientStatus.INACTIVE, client.getReportedStatus());
+
+        simulation.schedule(6000, client::activity);
+        report = simulation.run(1500);
+        assertEquals("[IDLE, timer, INACTIVE, ACTIVE]", events.toString());
+        assertEquals(4, report.getRpcCount());
+        assertEquals(1, report.getMonitorCount(ClientStatus.ACTIVE));
+    }
+
+    @Test
+    public void batchDelayCombinesEvents() {
+        LoadSimulation simulation = new LoadSimulation(1);
+        simulation.setThresholds(1000, 2000);
+        simulation.addCustomTimer("timer", 1500);
+        simulation.setEventBatchDelay(2000);
+        VirtualClient client = simulation.addClient();
+        List<String> events = record(client);
+
+        SimulationReport report = simulation.run(5000);
+        assertEquals("[IDLE, timer, INACTIVE]", events.toString());
+        assertEquals(1, report.getRpcCount());
+        assertEquals(3, report.getEventCount());
+    }
+
+    @Test
+    public void statusIsReconciledWhenShown() {
+        LoadSimulation simulation = new LoadSimulation(1);
+        simulation.setThresholds(1000, 2000);
+        simulation.setVisibilityMode(VisibilityMode.HIDDEN);
+        VirtualClient client = simulation.addClient();
+        List<String> events = record(client);
+
+        simulation.schedule(100, client::hide);
+        simulation.schedule(5000, client::show);
+        simulation.run(10000);
+        // Only the resulting status is reported on resume
+        assertEquals("[HIDDEN, INACTIVE]", events.toString());
+    }
+
+    @Test
+    public void simulationIsReproducible() {
+        SimulationReport first = simulate();
+        SimulationReport second = simulate();
+        assertEquals(first.getRpcCount(), second.getRpcCount());
+        assertEquals(first.getEventCount(), second.getEventCount());
+        for (ClientStatus from : ClientStatus.values()) {
+            for (ClientStatus to : ClientStatus.values()) {
+                assertEquals(first.getTransitionCount(from, to),
+                        second.getTransitionCount(from, to));
+            }
+        }
+    }
+
+    private static SimulationReport simulate() {
+        LoadSimulation simulation = new LoadSimulation(42);
+        simulation.setVisibilityMode(VisibilityMode.HIDDEN);
+        simulation.addClients(50, UserProfile.BURSTY_TYPING);
+        simulation.addClients(50, UserProfile.WALK_AWAY);
+        simulation.addClients(50, UserProfile.TAB_SWITCHING);
+        return simulation.run(30 * 60000);
+    }
+}